@@ -0,0 +1,522 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.rsna.isn.dao.Dao;
+import org.rsna.isn.dao.JobDao;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.dcm.PacsSimulator;
+import org.rsna.isn.util.Environment;
+
+/**
+ * Runs the whole application (monitor, workers, C-FIND, C-MOVE and SCP) 
+ * against a PacsSimulator and reports how quickly jobs become ready for 
+ * transfer. 
+ * <p>
+ * The harness registers the simulator as a device, inserts a batch of jobs, 
+ * starts the application in the same JVM and polls the job statuses until 
+ * every job has finished.  It then reports jobs/hour, time-to-ready 
+ * percentiles and how long jobs spent in each phase.  The phases are
+ * measured from the database and from the simulator: 
+ * <ul>
+ * <li>queued: job inserted until picked up by the monitor</li>
+ * <li>find: picked up until the simulator receives the C-FIND</li>
+ * <li>find-to-move: C-FIND until the C-MOVE</li>
+ * <li>move-to-first: C-MOVE until the first object is sent</li>
+ * <li>transfer: first object until the last object is sent</li>
+ * <li>handoff: last object until the job is ready for transfer</li>
+ * </ul>
+ * Statuses are polled, so database-side times have a resolution of 
+ * poll-interval-ms. 
+ * <p>
+ * The application uses PostgreSQL, so the harness must be pointed at a 
+ * scratch copy of the RSNA database.  The properties file must set 
+ * scratch-root to an RSNA root directory whose configuration points at that
+ * copy; the harness uses it in place of rsna.root and refuses to run without
+ * it.  The rows the harness adds to the patients, exams, jobs and devices 
+ * tables are deleted once the report has been printed. 
+ * <p>
+ * Run with: ThroughputHarness &lt;properties file&gt;.  Besides scratch-root 
+ * and the PacsSimulator settings, the file may contain jobs (100), 
+ * poll-interval-ms (250) and timeout-in-mins (60). 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class ThroughputHarness
+{
+	private static final double PERCENTILES[] =
+	{
+		50, 90, 95, 99, 100
+	};
+
+	private static final String PHASES[] =
+	{
+		"queued", "find", "find-to-move", "move-to-first", "transfer", "handoff"
+	};
+
+	private final Properties props;
+
+	private final PacsSimulator simulator;
+
+	private final HarnessDao harnessDao = new HarnessDao();
+
+	private final JobDao jobDao = new JobDao();
+
+	private final Map<Integer, Run> runs = new LinkedHashMap<Integer, Run>();
+
+	private ThroughputHarness(Properties props) throws Exception
+	{
+		this.props = props;
+		this.simulator = new PacsSimulator(props);
+	}
+
+	private void run() throws Exception
+	{
+		try
+		{
+			measure();
+		}
+		finally
+		{
+			harnessDao.deleteAll();
+		}
+	}
+
+	private void measure() throws Exception
+	{
+		int jobs = NumberUtils.toInt(props.getProperty("jobs"), 100);
+		long pollInterval = NumberUtils.toLong(props.getProperty("poll-interval-ms"), 250);
+		long timeout = NumberUtils.toLong(props.getProperty("timeout-in-mins"), 60) * 60 * 1000;
+
+		simulator.start();
+
+		harnessDao.addDevice(simulator.getAeTitle(), "localhost", simulator.getPort());
+
+
+		// An on-disk corpus determines the exams, otherwise they're made up
+		List<String[]> exams = new ArrayList<String[]>();
+		Collection<PacsSimulator.Study> studies = simulator.getStudies();
+		if (!studies.isEmpty())
+		{
+			for (PacsSimulator.Study study : studies)
+			{
+				if (exams.size() < jobs)
+					exams.add(new String[] { study.mrn, study.accNum });
+			}
+		}
+		else
+		{
+			String prefix = "SIM" + Long.toString(System.currentTimeMillis(), 36);
+			for (int i = 1; i <= jobs; i++)
+			{
+				exams.add(new String[] { prefix + "-" + i, prefix + "-A" + i });
+			}
+		}
+
+		for (String exam[] : exams)
+		{
+			Run run = new Run(exam[0], exam[1]);
+			run.jobId = harnessDao.addJob(exam[0], exam[1]);
+
+			runs.put(run.jobId, run);
+		}
+
+		System.out.println("Queued " + runs.size() + " jobs. Starting application.");
+
+
+		App.main(new String[0]);
+
+		long start = System.currentTimeMillis();
+		int remaining = runs.size();
+		while (remaining > 0 && System.currentTimeMillis() - start < timeout)
+		{
+			Thread.sleep(pollInterval);
+
+			long now = System.currentTimeMillis();
+
+			remaining = 0;
+			for (Run run : runs.values())
+			{
+				if (run.finished > 0)
+					continue;
+
+				Job job = jobDao.getJobById(run.jobId);
+				int status = job.getStatus();
+				if (status == Job.RSNA_STARTED_DICOM_C_MOVE)
+				{
+					if (run.dispatched == 0)
+						run.dispatched = now;
+				}
+				else if (isFinished(status))
+				{
+					run.finished = now;
+					run.status = status;
+				}
+
+				if (run.finished == 0)
+					remaining++;
+			}
+		}
+
+		report(remaining);
+	}
+
+	private static boolean isFinished(int status)
+	{
+		return status == Job.RSNA_WAITING_FOR_TRANSFER_CONTENT
+				|| status == Job.RSNA_DICOM_C_MOVE_FAILED
+				|| status == Job.RSNA_UNABLE_TO_FIND_IMAGES
+				|| status == Job.RSNA_NO_DEVICES_FOUND
+				|| status == Job.RSNA_FAILED_TO_PREPARE_CONTENT;
+	}
+
+	private void report(int unfinished)
+	{
+		List<Long> ready = new ArrayList<Long>();
+		Map<String, List<Long>> phases = new LinkedHashMap<String, List<Long>>();
+		for (String phase : PHASES)
+		{
+			phases.put(phase, new ArrayList<Long>());
+		}
+
+		long first = Long.MAX_VALUE;
+		long last = 0;
+		long bytes = 0;
+		int failed = 0;
+		for (Run run : runs.values())
+		{
+			first = Math.min(first, run.queued);
+
+			if (run.finished == 0)
+				continue;
+
+			if (run.status != Job.RSNA_WAITING_FOR_TRANSFER_CONTENT)
+			{
+				failed++;
+
+				continue;
+			}
+
+			last = Math.max(last, run.finished);
+			ready.add(run.finished - run.queued);
+
+			PacsSimulator.Study study = simulator.getStudy(run.mrn, run.accNum);
+			long find = study.findTime.get();
+			long move = study.moveTime.get();
+			long firstStore = study.firstStoreTime.get();
+			long lastStore = study.lastStoreTime.get();
+
+			// The dispatch can be missed if the job finishes between polls
+			long dispatched = (run.dispatched > 0) ? Math.min(run.dispatched, find) : find;
+
+			add(phases.get("queued"), run.queued, dispatched);
+			add(phases.get("find"), dispatched, find);
+			add(phases.get("find-to-move"), find, move);
+			add(phases.get("move-to-first"), move, firstStore);
+			add(phases.get("transfer"), firstStore, lastStore);
+			add(phases.get("handoff"), lastStore, run.finished);
+
+			bytes += study.bytes.get();
+		}
+
+		System.out.println();
+		System.out.println("Jobs: " + runs.size() + ", ready: " + ready.size()
+				+ ", failed: " + failed + ", unfinished: " + unfinished);
+
+		if (!ready.isEmpty())
+		{
+			double hours = (last - first) / 3600000.0;
+			double secs = (last - first) / 1000.0;
+
+			System.out.println(String.format("Throughput: %.1f jobs/hour, %.1f MB/s",
+					ready.size() / hours, bytes / secs / 1000000.0));
+		}
+
+		System.out.println();
+		System.out.print(String.format("%-16s", "ms"));
+		for (double p : PERCENTILES)
+		{
+			System.out.print(String.format("%10s", (p == 100) ? "max" : "p" + (int) p));
+		}
+		System.out.println();
+
+		print("time-to-ready", ready);
+		for (Map.Entry<String, List<Long>> entry : phases.entrySet())
+		{
+			print(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private static void add(List<Long> values, long from, long to)
+	{
+		if (from > 0 && to > 0)
+			values.add(Math.max(0, to - from));
+	}
+
+	private static void print(String name, List<Long> values)
+	{
+		System.out.print(String.format("%-16s", name));
+
+		long sorted[] = new long[values.size()];
+		for (int i = 0; i < sorted.length; i++)
+		{
+			sorted[i] = values.get(i);
+		}
+		Arrays.sort(sorted);
+
+		for (double p : PERCENTILES)
+		{
+			System.out.print(String.format("%10s", percentile(sorted, p)));
+		}
+		System.out.println();
+	}
+
+	static String percentile(long sorted[], double p)
+	{
+		if (sorted.length == 0)
+			return "-";
+
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+
+		return Long.toString(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+	}
+
+	private static class Run
+	{
+		private final String mrn;
+
+		private final String accNum;
+
+		private final long queued = System.currentTimeMillis();
+
+		private int jobId;
+
+		private long dispatched;
+
+		private long finished;
+
+		private int status;
+
+		private Run(String mrn, String accNum)
+		{
+			this.mrn = mrn;
+			this.accNum = accNum;
+		}
+
+	}
+
+	/**
+	 * Adds the test data and removes it again.  Assumes the standard RSNA 
+	 * edge server schema. 
+	 */
+	private static class HarnessDao extends Dao
+	{
+		private final List<Integer> deviceIds = new ArrayList<Integer>();
+
+		private final List<Integer> patientIds = new ArrayList<Integer>();
+
+		private final List<Integer> examIds = new ArrayList<Integer>();
+
+		private final List<Integer> jobIds = new ArrayList<Integer>();
+
+		private void addDevice(String aeTitle, String host, int port) throws SQLException
+		{
+			Connection con = getConnection();
+			try
+			{
+				PreparedStatement stmt = con.prepareStatement("SELECT 1 FROM devices "
+						+ "WHERE ae_title = ? AND host = ? AND port_number = ?");
+				stmt.setString(1, aeTitle);
+				stmt.setString(2, host);
+				stmt.setInt(3, port);
+				if (stmt.executeQuery().next())
+					return;
+
+				stmt = con.prepareStatement("INSERT INTO devices "
+						+ "(ae_title, host, port_number, modified_date) VALUES (?, ?, ?, now()) "
+						+ "RETURNING device_id");
+				stmt.setString(1, aeTitle);
+				stmt.setString(2, host);
+				stmt.setInt(3, port);
+				deviceIds.add(getId(stmt.executeQuery()));
+			}
+			finally
+			{
+				con.close();
+			}
+		}
+
+		private int addJob(String mrn, String accNum) throws SQLException
+		{
+			Connection con = getConnection();
+			try
+			{
+				PreparedStatement stmt = con.prepareStatement("INSERT INTO patients "
+						+ "(mrn, patient_name, modified_date) VALUES (?, ?, now()) "
+						+ "RETURNING patient_id");
+				stmt.setString(1, mrn);
+				stmt.setString(2, "SYNTHETIC^PATIENT");
+				int patientId = getId(stmt.executeQuery());
+				patientIds.add(patientId);
+
+				stmt = con.prepareStatement("INSERT INTO exams "
+						+ "(accession_number, patient_id, status, modified_date) "
+						+ "VALUES (?, ?, 'FINALIZED', now()) RETURNING exam_id");
+				stmt.setString(1, accNum);
+				stmt.setInt(2, patientId);
+				int examId = getId(stmt.executeQuery());
+				examIds.add(examId);
+
+				stmt = con.prepareStatement("INSERT INTO jobs "
+						+ "(exam_id, delay, status, status_message, modified_date) "
+						+ "VALUES (?, 0, ?, 'Queued by throughput harness', now()) "
+						+ "RETURNING job_id");
+				stmt.setInt(1, examId);
+				stmt.setInt(2, Job.RSNA_WAITING_FOR_PREPARE_CONTENT);
+				int jobId = getId(stmt.executeQuery());
+				jobIds.add(jobId);
+
+				return jobId;
+			}
+			finally
+			{
+				con.close();
+			}
+		}
+
+		/**
+		 * Delete the rows added by the harness, including the status history
+		 * the application wrote for its jobs. 
+		 */
+		private void deleteAll() throws SQLException
+		{
+			Connection con = getConnection();
+			try
+			{
+				con.setAutoCommit(false);
+
+				delete(con, "transactions", "job_id", jobIds);
+				delete(con, "jobs", "job_id", jobIds);
+				delete(con, "exams", "exam_id", examIds);
+				delete(con, "patients", "patient_id", patientIds);
+				delete(con, "devices", "device_id", deviceIds);
+
+				con.commit();
+			}
+			catch (SQLException ex)
+			{
+				con.rollback();
+
+				throw ex;
+			}
+			finally
+			{
+				con.setAutoCommit(true);
+				con.close();
+			}
+
+			System.out.println("Deleted " + jobIds.size() + " jobs and their "
+					+ "exams, patients and devices.");
+		}
+
+		private static void delete(Connection con, String table, String column,
+				List<Integer> ids) throws SQLException
+		{
+			if (ids.isEmpty())
+				return;
+
+			PreparedStatement stmt = con.prepareStatement("DELETE FROM " + table
+					+ " WHERE " + column + " = ANY (?)");
+			stmt.setArray(1, con.createArrayOf("integer", ids.toArray()));
+			stmt.executeUpdate();
+		}
+
+		private static int getId(ResultSet rs) throws SQLException
+		{
+			rs.next();
+
+			return rs.getInt(1);
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: ThroughputHarness <properties file>");
+			System.exit(1);
+		}
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		try
+		{
+			props.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+
+		// Never fall back to the default root, which is likely to be the 
+		// production database
+		String scratchRoot = StringUtils.trimToNull(props.getProperty("scratch-root"));
+		if (scratchRoot == null || !new File(scratchRoot).isDirectory())
+		{
+			System.err.println("scratch-root must be set to the RSNA root directory "
+					+ "of a scratch database. The harness adds and deletes rows in "
+					+ "the patients, exams, jobs and devices tables.");
+			System.exit(1);
+		}
+
+		System.setProperty("rsna.root", scratchRoot);
+		Environment.init("prep");
+
+		ThroughputHarness harness = new ThroughputHarness(props);
+		harness.run();
+
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,200 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Measures how fast CStoreHandler can ingest objects.  Each operation spools,
+ * parses, routes and links one synthetic object, so the primary score is 
+ * instances/s.  The bytes counter gives the ingest rate in bytes/s.  
+ * <p>
+ * Jobs are put straight into the JobIndex, so no database is needed.  Objects 
+ * are written to a temp directory, which should be on the same kind of disk
+ * as the production dcm directory. 
+ * <p>
+ * Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=IngestBenchmark
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class IngestBenchmark
+{
+	private static final String MRN = "BENCH-MRN";
+
+	private static final String ACC_NUM = "BENCH-ACC";
+
+	private static final String UID_ROOT = "1.2.826.0.1.3680043.2.1143.9";
+
+	private static final String STUDY_UID = UID_ROOT + ".1";
+
+	private static final String SERIES_UID = UID_ROOT + ".1.1";
+
+	@Param(
+	{
+		"CR", "CT", "TOMO"
+	})
+	public SyntheticInstance.Type type;
+
+	@Param(
+	{
+		"1", "2", "4"
+	})
+	public int jobsPerInstance;
+
+	private final AtomicLong seq = new AtomicLong();
+
+	private final List<Job> jobs = new ArrayList<Job>();
+
+	private File baseDir;
+
+	private File dcmDir;
+
+	private File storeDir;
+
+	private CStoreHandler handler;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		baseDir = Files.createTempDirectory("ingest-bench").toFile();
+
+		dcmDir = new File(baseDir, "dcm");
+		dcmDir.mkdirs();
+
+		File tmpDir = new File(baseDir, "tmp");
+		tmpDir.mkdirs();
+
+		storeDir = new File(baseDir, "instances");
+
+		InstanceStore store = new InstanceStore(storeDir, true, 24);
+
+		String sopClasses[] =
+		{
+			type.getSopClassUid()
+		};
+		handler = new CStoreHandler(sopClasses, store, null, false, dcmDir, tmpDir);
+
+
+		for (int i = 1; i <= jobsPerInstance; i++)
+		{
+			Exam exam = new Exam();
+			exam.setMrn(MRN);
+			exam.setAccNum(ACC_NUM);
+
+			Job job = new Job();
+			job.setJobId(i);
+			job.setExam(exam);
+
+			jobs.add(job);
+		}
+
+		JobIndex.addExam(MRN, ACC_NUM, STUDY_UID, jobs);
+	}
+
+	@TearDown(Level.Iteration)
+	public void clean() throws IOException
+	{
+		// Keep the disk from filling up across iterations.  Cleaning after 
+		// every invocation would put the cost of the directory walk (and 
+		// the timer overhead of a per invocation fixture) into the score. 
+		// The temp directory needs room for one iteration's worth of objects
+		FileUtils.cleanDirectory(dcmDir);
+		FileUtils.cleanDirectory(storeDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		for (Job job : jobs)
+		{
+			JobIndex.remove(job);
+		}
+		jobs.clear();
+
+		FileUtils.deleteDirectory(baseDir);
+	}
+
+	@Benchmark
+	public void ingest(Counters counters) throws Exception
+	{
+		String iuid = SERIES_UID + "." + seq.incrementAndGet();
+
+		SyntheticInstance instance = new SyntheticInstance(type, MRN, ACC_NUM,
+				STUDY_UID, SERIES_UID, iuid);
+
+		handler.store(null, instance.createCommand(), instance.openStream(),
+				SyntheticInstance.TSUID);
+
+		counters.bytes += instance.getLength();
+	}
+
+	/**
+	 * Secondary results reported as a rate alongside instances/s.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters
+	{
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			bytes = 0;
+		}
+
+	}
+
+}
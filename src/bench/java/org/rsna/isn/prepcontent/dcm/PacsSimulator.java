@@ -0,0 +1,1197 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.log4j.Logger;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.CommandUtils;
+import org.dcm4che2.net.DataWriter;
+import org.dcm4che2.net.Device;
+import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.NetworkApplicationEntity;
+import org.dcm4che2.net.NetworkConnection;
+import org.dcm4che2.net.PDVOutputStream;
+import org.dcm4che2.net.Status;
+import org.dcm4che2.net.TransferCapability;
+import org.dcm4che2.net.service.CFindSCP;
+import org.dcm4che2.net.service.CMoveSCP;
+import org.dcm4che2.net.service.DicomService;
+import org.dcm4che2.net.service.VerificationService;
+
+/**
+ * A stand-in for a PACS that answers C-ECHO, C-FIND and C-MOVE requests.  
+ * Studies either come from a directory of DICOM files or are generated on 
+ * the fly (see SyntheticInstance) for any patient id and accession number 
+ * that's queried. 
+ * <p>
+ * The simulator is configured with a properties file.  Besides the corpus, it
+ * can add latency to each operation, cap the bandwidth used for C-STOREs, 
+ * fail a fraction of the C-STORE sub-operations and, like some vendors (e.g. 
+ * Intelerad), return the C-MOVE response before any objects are sent.  See
+ * {@link #PacsSimulator(Properties)} for the settings. 
+ * <p>
+ * The simulator also records when each study was queried, moved and sent so
+ * the ThroughputHarness can break the time spent on each job into phases.
+ * <p>
+ * Run standalone with: PacsSimulator [properties file]
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class PacsSimulator
+{
+	private static final Logger logger = Logger.getLogger(PacsSimulator.class);
+
+	private static final String UID_ROOT = "1.2.826.0.1.3680043.2.1143.8";
+
+	private static final String TS[] =
+	{
+		UID.ImplicitVRLittleEndian,
+		UID.ExplicitVRLittleEndian
+	};
+
+	private static final String QR_FIND[] =
+	{
+		UID.PatientRootQueryRetrieveInformationModelFIND,
+		UID.StudyRootQueryRetrieveInformationModelFIND
+	};
+
+	private static final String QR_MOVE[] =
+	{
+		UID.PatientRootQueryRetrieveInformationModelMOVE,
+		UID.StudyRootQueryRetrieveInformationModelMOVE
+	};
+
+	private final String aeTitle;
+
+	private final int port;
+
+	private final Map<String, NetworkApplicationEntity> destinations =
+			new HashMap<String, NetworkApplicationEntity>();
+
+	private final long findLatency;
+
+	private final long moveLatency;
+
+	private final long storeLatency;
+
+	private final boolean deferred;
+
+	private final long deferredDelay;
+
+	private final double failureRate;
+
+	private final Throttle throttle;
+
+	private final Corpus corpus;
+
+	private final Random random = new Random();
+
+	private final ExecutorService executor =
+			Executors.newCachedThreadPool(new SimulatorThreadFactory());
+
+	private final ScheduledExecutorService scheduler =
+			Executors.newSingleThreadScheduledExecutor(new SimulatorThreadFactory());
+
+	private final NetworkApplicationEntity ae;
+
+	private final Device device;
+
+	/**
+	 * Create a new simulator.  The following settings are recognized: 
+	 * <ul>
+	 * <li>ae-title, port: where the simulator listens (PACS-SIM, 11112)</li>
+	 * <li>destinations: comma separated list of AE=host:port pairs that can 
+	 * be used as C-MOVE destinations (RSNA-ISN=localhost:4104)</li>
+	 * <li>corpus-dir: directory of DICOM files to serve.  If not set, 
+	 * studies are generated.</li>
+	 * <li>modality, series, instances-per-series: the shape of generated 
+	 * studies (CT, 4, 50)</li>
+	 * <li>find-latency-ms, move-latency-ms, store-latency-ms: delays added 
+	 * to each C-FIND, C-MOVE and C-STORE sub-operation (0)</li>
+	 * <li>deferred-send: return the C-MOVE response right away and send the 
+	 * objects afterwards (false)</li>
+	 * <li>deferred-delay-ms: how long to wait before sending deferred 
+	 * objects (5000)</li>
+	 * <li>failure-rate: fraction of C-STORE sub-operations that fail 
+	 * without being sent (0.0)</li>
+	 * <li>bandwidth-mbps: total bandwidth used for C-STOREs in megabits per 
+	 * second.  0 means no limit (0)</li>
+	 * </ul>
+	 *
+	 * @param props The settings
+	 * @throws IOException If there was an error loading the corpus
+	 */
+	public PacsSimulator(Properties props) throws IOException
+	{
+		aeTitle = props.getProperty("ae-title", "PACS-SIM");
+		port = NumberUtils.toInt(props.getProperty("port"), 11112);
+
+		for (String dest : StringUtils.split(props.getProperty("destinations",
+				"RSNA-ISN=localhost:4104"), ','))
+		{
+			String aet = StringUtils.substringBefore(dest, "=").trim();
+			String addr = StringUtils.substringAfter(dest, "=").trim();
+
+			NetworkConnection conn = new NetworkConnection();
+			conn.setHostname(StringUtils.substringBefore(addr, ":"));
+			conn.setPort(NumberUtils.toInt(StringUtils.substringAfter(addr, ":"), 104));
+
+			NetworkApplicationEntity remoteAe = new NetworkApplicationEntity();
+			remoteAe.setAETitle(aet);
+			remoteAe.setAssociationAcceptor(true);
+			remoteAe.setNetworkConnection(conn);
+
+			destinations.put(aet, remoteAe);
+		}
+
+		findLatency = NumberUtils.toLong(props.getProperty("find-latency-ms"), 0);
+		moveLatency = NumberUtils.toLong(props.getProperty("move-latency-ms"), 0);
+		storeLatency = NumberUtils.toLong(props.getProperty("store-latency-ms"), 0);
+		deferred = Boolean.parseBoolean(props.getProperty("deferred-send"));
+		deferredDelay = NumberUtils.toLong(props.getProperty("deferred-delay-ms"), 5000);
+		failureRate = NumberUtils.toDouble(props.getProperty("failure-rate"), 0.0);
+
+		double mbps = NumberUtils.toDouble(props.getProperty("bandwidth-mbps"), 0.0);
+		throttle = (mbps > 0) ? new Throttle((long) (mbps * 1000000 / 8)) : null;
+
+
+		String corpusDir = props.getProperty("corpus-dir");
+		if (StringUtils.isNotBlank(corpusDir))
+		{
+			corpus = new DirectoryCorpus(new File(corpusDir));
+		}
+		else
+		{
+			SyntheticInstance.Type type = SyntheticInstance.Type.valueOf(
+					props.getProperty("modality", "CT"));
+			int series = NumberUtils.toInt(props.getProperty("series"), 4);
+			int instances = NumberUtils.toInt(props.getProperty("instances-per-series"), 50);
+
+			corpus = new SyntheticCorpus(type, series, instances);
+		}
+
+
+		NetworkConnection nc = new NetworkConnection();
+		nc.setPort(port);
+
+		ae = new NetworkApplicationEntity();
+		ae.setAETitle(aeTitle);
+		ae.setAssociationAcceptor(true);
+		ae.setAssociationInitiator(true);
+		ae.setNetworkConnection(nc);
+		ae.register(new VerificationService());
+		ae.register(new QueryRetrieveService());
+
+		List<TransferCapability> capabilities = new ArrayList<TransferCapability>();
+		capabilities.add(new TransferCapability(UID.VerificationSOPClass,
+				TS, TransferCapability.SCP));
+		for (String cuid : QR_FIND)
+		{
+			capabilities.add(new TransferCapability(cuid, TS, TransferCapability.SCP));
+		}
+		for (String cuid : QR_MOVE)
+		{
+			capabilities.add(new TransferCapability(cuid, TS, TransferCapability.SCP));
+		}
+
+		Map<String, Set<String>> storage = corpus.getStorageClasses();
+		for (Map.Entry<String, Set<String>> entry : storage.entrySet())
+		{
+			capabilities.add(new TransferCapability(entry.getKey(),
+					entry.getValue().toArray(new String[0]), TransferCapability.SCU));
+		}
+		ae.setTransferCapability(capabilities.toArray(new TransferCapability[0]));
+
+		device = new Device();
+		device.setNetworkConnection(nc);
+		device.setNetworkApplicationEntity(ae);
+	}
+
+	public void start() throws IOException
+	{
+		device.startListening(executor);
+
+		logger.info("PACS simulator listening on port " + port
+				+ " with AE title " + aeTitle);
+	}
+
+	public void stop()
+	{
+		device.stopListening();
+
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	public String getAeTitle()
+	{
+		return aeTitle;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Get the studies in an on-disk corpus.  Generated studies are only 
+	 * returned once they've been queried. 
+	 *
+	 * @return The studies
+	 */
+	public Collection<Study> getStudies()
+	{
+		return corpus.getStudies();
+	}
+
+	/**
+	 * Get a study by patient id and accession number.  For a generated 
+	 * corpus, the study is created if it doesn't exist yet. 
+	 *
+	 * @param mrn The patient id
+	 * @param accNum The accession number
+	 * @return The study or null if there isn't one
+	 */
+	public Study getStudy(String mrn, String accNum)
+	{
+		return corpus.find(mrn, accNum);
+	}
+
+	private static void sleep(long millis)
+	{
+		if (millis <= 0)
+			return;
+
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class QueryRetrieveService extends DicomService
+			implements CFindSCP, CMoveSCP
+	{
+		private QueryRetrieveService()
+		{
+			super(concat(QR_FIND, QR_MOVE));
+		}
+
+		@Override
+		public void cfind(final Association as, final int pcid,
+				final DicomObject cmd, final DicomObject keys)
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						doFind(as, pcid, cmd, keys);
+					}
+					catch (IOException ex)
+					{
+						logger.warn("Unable to complete C-FIND from "
+								+ as.getCallingAET(), ex);
+					}
+				}
+
+			});
+		}
+
+		@Override
+		public void cmove(final Association as, final int pcid,
+				final DicomObject cmd, final DicomObject keys)
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						doMove(as, pcid, cmd, keys);
+					}
+					catch (IOException ex)
+					{
+						logger.warn("Unable to complete C-MOVE from "
+								+ as.getCallingAET(), ex);
+					}
+				}
+
+			});
+		}
+
+	}
+
+	private void doFind(Association as, int pcid, DicomObject cmd, DicomObject keys)
+			throws IOException
+	{
+		sleep(findLatency);
+
+		String level = keys.getString(Tag.QueryRetrieveLevel, "STUDY");
+
+		List<DicomObject> matches = new ArrayList<DicomObject>();
+		if ("STUDY".equals(level))
+		{
+			Study study = corpus.find(keys.getString(Tag.PatientID),
+					keys.getString(Tag.AccessionNumber));
+			if (study != null)
+			{
+				study.findTime.compareAndSet(0, System.currentTimeMillis());
+
+				DicomObject match = new BasicDicomObject();
+				match.putString(Tag.QueryRetrieveLevel, VR.CS, level);
+				match.putString(Tag.PatientID, VR.LO, study.mrn);
+				match.putString(Tag.AccessionNumber, VR.SH, study.accNum);
+				match.putString(Tag.StudyInstanceUID, VR.UI, study.studyUid);
+				match.putInt(Tag.NumberOfStudyRelatedInstances, VR.IS, 
+						study.instances.size());
+				matches.add(match);
+			}
+		}
+		else
+		{
+			Study study = corpus.get(keys.getString(Tag.StudyInstanceUID));
+			if (study != null)
+			{
+				String seriesUid = keys.getString(Tag.SeriesInstanceUID);
+
+				Map<String, Integer> series = new LinkedHashMap<String, Integer>();
+				for (Instance instance : study.instances)
+				{
+					String uid = instance.getSeriesUid();
+					if ("SERIES".equals(level))
+					{
+						Integer count = series.get(uid);
+						series.put(uid, (count == null) ? 1 : count + 1);
+					}
+					else if (uid.equals(seriesUid))
+					{
+						DicomObject match = new BasicDicomObject();
+						match.putString(Tag.QueryRetrieveLevel, VR.CS, level);
+						match.putString(Tag.StudyInstanceUID, VR.UI, study.studyUid);
+						match.putString(Tag.SeriesInstanceUID, VR.UI, uid);
+						match.putString(Tag.SOPInstanceUID, VR.UI, instance.getInstanceUid());
+						matches.add(match);
+					}
+				}
+
+				for (Map.Entry<String, Integer> entry : series.entrySet())
+				{
+					DicomObject match = new BasicDicomObject();
+					match.putString(Tag.QueryRetrieveLevel, VR.CS, level);
+					match.putString(Tag.StudyInstanceUID, VR.UI, study.studyUid);
+					match.putString(Tag.SeriesInstanceUID, VR.UI, entry.getKey());
+					match.putInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, entry.getValue());
+					matches.add(match);
+				}
+			}
+		}
+
+		for (DicomObject match : matches)
+		{
+			as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, Status.Pending), match);
+		}
+
+		as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
+	}
+
+	private void doMove(final Association as, final int pcid, 
+			final DicomObject cmd, DicomObject keys) throws IOException
+	{
+		sleep(moveLatency);
+
+		final Study study = corpus.get(keys.getString(Tag.StudyInstanceUID));
+		if (study == null)
+		{
+			as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
+
+			return;
+		}
+
+		study.moveTime.compareAndSet(0, System.currentTimeMillis());
+
+
+		String level = keys.getString(Tag.QueryRetrieveLevel, "STUDY");
+		String seriesUid = keys.getString(Tag.SeriesInstanceUID);
+		Set<String> instanceUids = new HashSet<String>();
+		String uids[] = keys.getStrings(Tag.SOPInstanceUID);
+		if (uids != null)
+			Collections.addAll(instanceUids, uids);
+
+		final List<Instance> instances = new ArrayList<Instance>();
+		for (Instance instance : study.instances)
+		{
+			if ("SERIES".equals(level) && !instance.getSeriesUid().equals(seriesUid))
+				continue;
+
+			if ("IMAGE".equals(level) && !instanceUids.contains(instance.getInstanceUid()))
+				continue;
+
+			instances.add(instance);
+		}
+
+
+		String destination = cmd.getString(Tag.MoveDestination);
+		final NetworkApplicationEntity remoteAe = destinations.get(destination);
+		if (remoteAe == null)
+		{
+			DicomObject rsp = CommandUtils.mkRSP(cmd, 0xA801);
+			rsp.putString(Tag.ErrorComment, VR.LO, "Unknown move destination: " 
+					+ destination);
+			as.writeDimseRSP(pcid, rsp);
+
+			return;
+		}
+
+
+		if (deferred)
+		{
+			// Report success before anything has been sent
+			as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
+
+			scheduler.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					executor.execute(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								send(remoteAe, study, instances, null, 0, cmd);
+							}
+							catch (Exception ex)
+							{
+								logger.warn("Deferred send of " + study.studyUid 
+										+ " failed", ex);
+							}
+						}
+
+					});
+				}
+
+			}, deferredDelay, TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			try
+			{
+				send(remoteAe, study, instances, as, pcid, cmd);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception ex)
+			{
+				logger.warn("Unable to send " + study.studyUid + " to " 
+						+ destination, ex);
+
+				DicomObject rsp = CommandUtils.mkRSP(cmd, 0xA702);
+				rsp.putString(Tag.ErrorComment, VR.LO, "Unable to send objects: " 
+						+ ex.getMessage());
+				as.writeDimseRSP(pcid, rsp);
+			}
+		}
+	}
+
+	/**
+	 * Send objects to a move destination.  If an association is given, 
+	 * pending and final C-MOVE responses are written to it. 
+	 */
+	private void send(NetworkApplicationEntity remoteAe, Study study,
+			List<Instance> instances, Association moveAs, int pcid,
+			DicomObject moveCmd) throws Exception
+	{
+		int remaining = instances.size();
+		int completed = 0;
+		int failed = 0;
+		List<String> failedUids = new ArrayList<String>();
+
+		Association as = ae.connect(remoteAe, executor);
+		try
+		{
+			for (Instance instance : instances)
+			{
+				sleep(storeLatency);
+
+				boolean ok = false;
+				if (random.nextDouble() >= failureRate)
+				{
+					DimseRSP rsp = as.cstore(instance.getSopClassUid(),
+							instance.getInstanceUid(), 0, 
+							new InstanceWriter(instance), 
+							instance.getTransferSyntaxUid());
+					rsp.next();
+
+					ok = rsp.getCommand().getInt(Tag.Status) == CommandUtils.SUCCESS;
+				}
+
+				remaining--;
+				if (ok)
+				{
+					completed++;
+
+					long now = System.currentTimeMillis();
+					study.firstStoreTime.compareAndSet(0, now);
+					study.lastStoreTime.set(now);
+					study.sent.incrementAndGet();
+					study.bytes.addAndGet(instance.getLength());
+				}
+				else
+				{
+					failed++;
+					failedUids.add(instance.getInstanceUid());
+				}
+
+				if (moveAs != null && remaining > 0)
+				{
+					moveAs.writeDimseRSP(pcid, createMoveRsp(moveCmd, 
+							Status.Pending, remaining, completed, failed));
+				}
+			}
+		}
+		finally
+		{
+			as.release(true);
+		}
+
+
+		if (moveAs != null)
+		{
+			// Partial failures are reported as a warning
+			DicomObject rsp = createMoveRsp(moveCmd, (failed == 0) 
+					? CommandUtils.SUCCESS : 0xB000, 0, completed, failed);
+			if (!failedUids.isEmpty())
+			{
+				DicomObject data = new BasicDicomObject();
+				data.putStrings(Tag.FailedSOPInstanceUIDList, VR.UI, 
+						failedUids.toArray(new String[0]));
+
+				moveAs.writeDimseRSP(pcid, rsp, data);
+			}
+			else
+			{
+				moveAs.writeDimseRSP(pcid, rsp);
+			}
+		}
+	}
+
+	private static DicomObject createMoveRsp(DicomObject cmd, int status,
+			int remaining, int completed, int failed)
+	{
+		DicomObject rsp = CommandUtils.mkRSP(cmd, status);
+		if (remaining > 0)
+			rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, remaining);
+		rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, completed);
+		rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, failed);
+		rsp.putInt(Tag.NumberOfWarningSuboperations, VR.US, 0);
+
+		return rsp;
+	}
+
+	private static String[] concat(String a[], String b[])
+	{
+		String c[] = new String[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+
+		return c;
+	}
+
+	/**
+	 * A study served by the simulator along with the times (in milliseconds
+	 * since the epoch) it was first queried, moved and sent.  A time is 0 if
+	 * it hasn't happened yet. 
+	 */
+	public static class Study
+	{
+		public final String mrn;
+
+		public final String accNum;
+
+		public final String studyUid;
+
+		public final AtomicLong findTime = new AtomicLong();
+
+		public final AtomicLong moveTime = new AtomicLong();
+
+		public final AtomicLong firstStoreTime = new AtomicLong();
+
+		public final AtomicLong lastStoreTime = new AtomicLong();
+
+		public final AtomicInteger sent = new AtomicInteger();
+
+		public final AtomicLong bytes = new AtomicLong();
+
+		private final List<Instance> instances;
+
+		private Study(String mrn, String accNum, String studyUid,
+				List<Instance> instances)
+		{
+			this.mrn = mrn;
+			this.accNum = accNum;
+			this.studyUid = studyUid;
+			this.instances = instances;
+		}
+
+		public int getInstanceCount()
+		{
+			return instances.size();
+		}
+
+	}
+
+	private interface Instance
+	{
+		String getSopClassUid();
+
+		String getSeriesUid();
+
+		String getInstanceUid();
+
+		String getTransferSyntaxUid();
+
+		long getLength();
+
+		void writeTo(OutputStream out) throws IOException;
+
+	}
+
+	private interface Corpus
+	{
+		Study find(String mrn, String accNum);
+
+		Study get(String studyUid);
+
+		Collection<Study> getStudies();
+
+		/**
+		 * Get the storage SOP classes and transfer syntaxes used by the
+		 * corpus. 
+		 */
+		Map<String, Set<String>> getStorageClasses();
+
+	}
+
+	private static class SyntheticCorpus implements Corpus
+	{
+		private final SyntheticInstance.Type type;
+
+		private final int series;
+
+		private final int instancesPerSeries;
+
+		private final AtomicInteger seq = new AtomicInteger();
+
+		private final Map<String, Study> byAccNum = new ConcurrentHashMap<String, Study>();
+
+		private final Map<String, Study> byStudyUid = new ConcurrentHashMap<String, Study>();
+
+		private SyntheticCorpus(SyntheticInstance.Type type, int series,
+				int instancesPerSeries)
+		{
+			this.type = type;
+			this.series = series;
+			this.instancesPerSeries = instancesPerSeries;
+		}
+
+		@Override
+		public synchronized Study find(String mrn, String accNum)
+		{
+			if (StringUtils.isEmpty(mrn) || StringUtils.isEmpty(accNum))
+				return null;
+
+			String key = mrn + "/" + accNum;
+			Study study = byAccNum.get(key);
+			if (study == null)
+			{
+				String studyUid = UID_ROOT + "." + seq.incrementAndGet();
+
+				List<Instance> instances = new ArrayList<Instance>();
+				for (int i = 1; i <= series; i++)
+				{
+					String seriesUid = studyUid + "." + i;
+					for (int j = 1; j <= instancesPerSeries; j++)
+					{
+						instances.add(new SyntheticEntry(new SyntheticInstance(
+								type, mrn, accNum, studyUid, seriesUid, 
+								seriesUid + "." + j)));
+					}
+				}
+
+				study = new Study(mrn, accNum, studyUid, instances);
+				byAccNum.put(key, study);
+				byStudyUid.put(studyUid, study);
+			}
+
+			return study;
+		}
+
+		@Override
+		public Study get(String studyUid)
+		{
+			return (studyUid != null) ? byStudyUid.get(studyUid) : null;
+		}
+
+		@Override
+		public Collection<Study> getStudies()
+		{
+			return byStudyUid.values();
+		}
+
+		@Override
+		public Map<String, Set<String>> getStorageClasses()
+		{
+			return Collections.singletonMap(type.getSopClassUid(), 
+					Collections.singleton(SyntheticInstance.TSUID));
+		}
+
+	}
+
+	private static class SyntheticEntry implements Instance
+	{
+		private final SyntheticInstance instance;
+
+		private SyntheticEntry(SyntheticInstance instance)
+		{
+			this.instance = instance;
+		}
+
+		@Override
+		public String getSopClassUid()
+		{
+			return instance.getSopClassUid();
+		}
+
+		@Override
+		public String getSeriesUid()
+		{
+			return instance.getSeriesUid();
+		}
+
+		@Override
+		public String getInstanceUid()
+		{
+			return instance.getInstanceUid();
+		}
+
+		@Override
+		public String getTransferSyntaxUid()
+		{
+			return SyntheticInstance.TSUID;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return instance.getLength();
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			instance.writeTo(out);
+		}
+
+	}
+
+	/**
+	 * Serves the DICOM files in a directory (and its subdirectories).  Only 
+	 * the headers are kept in memory. 
+	 */
+	private static class DirectoryCorpus implements Corpus
+	{
+		private final Map<String, Study> byAccNum = new HashMap<String, Study>();
+
+		private final Map<String, Study> byStudyUid = new HashMap<String, Study>();
+
+		private final Map<String, Set<String>> storageClasses =
+				new HashMap<String, Set<String>>();
+
+		private DirectoryCorpus(File dir) throws IOException
+		{
+			Map<String, List<Instance>> studies = new HashMap<String, List<Instance>>();
+			Map<String, DicomObject> headers = new HashMap<String, DicomObject>();
+
+			scan(dir, studies, headers);
+
+			for (Map.Entry<String, List<Instance>> entry : studies.entrySet())
+			{
+				DicomObject header = headers.get(entry.getKey());
+				String mrn = header.getString(Tag.PatientID);
+				String accNum = header.getString(Tag.AccessionNumber);
+
+				Study study = new Study(mrn, accNum, entry.getKey(), entry.getValue());
+				byAccNum.put(mrn + "/" + accNum, study);
+				byStudyUid.put(study.studyUid, study);
+			}
+
+			logger.info("Loaded " + byStudyUid.size() + " studies from " + dir);
+		}
+
+		private void scan(File dir, Map<String, List<Instance>> studies,
+				Map<String, DicomObject> headers) throws IOException
+		{
+			File files[] = dir.listFiles();
+			if (files == null)
+				return;
+
+			for (File file : files)
+			{
+				if (file.isDirectory())
+				{
+					scan(file, studies, headers);
+
+					continue;
+				}
+
+				DicomInputStream din = null;
+				try
+				{
+					din = new DicomInputStream(file);
+					din.setHandler(new StopTagInputHandler(Tag.PixelData));
+					DicomObject header = din.readDicomObject();
+
+					String studyUid = header.getString(Tag.StudyInstanceUID);
+					String cuid = header.getString(Tag.SOPClassUID);
+					if (studyUid == null || cuid == null)
+						continue;
+
+					FileEntry entry = new FileEntry(file, cuid,
+							header.getString(Tag.SeriesInstanceUID),
+							header.getString(Tag.SOPInstanceUID),
+							din.getTransferSyntax().uid());
+
+					List<Instance> instances = studies.get(studyUid);
+					if (instances == null)
+					{
+						instances = new ArrayList<Instance>();
+						studies.put(studyUid, instances);
+						headers.put(studyUid, header);
+					}
+					instances.add(entry);
+
+					Set<String> tsuids = storageClasses.get(cuid);
+					if (tsuids == null)
+					{
+						tsuids = new HashSet<String>();
+						storageClasses.put(cuid, tsuids);
+					}
+					tsuids.add(entry.tsuid);
+				}
+				catch (IOException ex)
+				{
+					logger.debug("Skipping " + file + ". Not a DICOM file.");
+				}
+				finally
+				{
+					IOUtils.closeQuietly(din);
+				}
+			}
+		}
+
+		@Override
+		public Study find(String mrn, String accNum)
+		{
+			return byAccNum.get(mrn + "/" + accNum);
+		}
+
+		@Override
+		public Study get(String studyUid)
+		{
+			return byStudyUid.get(studyUid);
+		}
+
+		@Override
+		public Collection<Study> getStudies()
+		{
+			return byStudyUid.values();
+		}
+
+		@Override
+		public Map<String, Set<String>> getStorageClasses()
+		{
+			return storageClasses;
+		}
+
+	}
+
+	private static class FileEntry implements Instance
+	{
+		private final File file;
+
+		private final String cuid;
+
+		private final String seriesUid;
+
+		private final String iuid;
+
+		private final String tsuid;
+
+		private FileEntry(File file, String cuid, String seriesUid,
+				String iuid, String tsuid)
+		{
+			this.file = file;
+			this.cuid = cuid;
+			this.seriesUid = seriesUid;
+			this.iuid = iuid;
+			this.tsuid = tsuid;
+		}
+
+		@Override
+		public String getSopClassUid()
+		{
+			return cuid;
+		}
+
+		@Override
+		public String getSeriesUid()
+		{
+			return seriesUid;
+		}
+
+		@Override
+		public String getInstanceUid()
+		{
+			return iuid;
+		}
+
+		@Override
+		public String getTransferSyntaxUid()
+		{
+			return tsuid;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return file.length();
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				DicomInputStream din = new DicomInputStream(in);
+				DicomObject data = din.readDicomObject();
+
+				DicomOutputStream dos = new DicomOutputStream(out);
+				dos.writeDataset(data.dataset(), tsuid);
+				dos.flush();
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+	}
+
+	private class InstanceWriter implements DataWriter
+	{
+		private final Instance instance;
+
+		private InstanceWriter(Instance instance)
+		{
+			this.instance = instance;
+		}
+
+		@Override
+		public void writeTo(PDVOutputStream out, String tsuid) throws IOException
+		{
+			OutputStream os = (throttle != null) 
+					? new ThrottledOutputStream(out, throttle) : out;
+
+			instance.writeTo(os);
+		}
+
+	}
+
+	/**
+	 * Limits the total rate at which bytes are written by all senders. 
+	 */
+	private static class Throttle
+	{
+		private final long bytesPerSec;
+
+		private long next = System.nanoTime();
+
+		private Throttle(long bytesPerSec)
+		{
+			this.bytesPerSec = bytesPerSec;
+		}
+
+		private void acquire(int bytes) throws InterruptedIOException
+		{
+			long wait;
+			synchronized (this)
+			{
+				long now = System.nanoTime();
+				if (next < now)
+					next = now;
+
+				wait = next - now;
+				next += bytes * 1000000000L / bytesPerSec;
+			}
+
+			if (wait > 0)
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException ex)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+	}
+
+	private static class ThrottledOutputStream extends FilterOutputStream
+	{
+		private static final int CHUNK = 16 * 1024;
+
+		private final Throttle throttle;
+
+		private ThrottledOutputStream(OutputStream out, Throttle throttle)
+		{
+			super(out);
+
+			this.throttle = throttle;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			throttle.acquire(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				int n = Math.min(len, CHUNK);
+				throttle.acquire(n);
+				out.write(b, off, n);
+
+				off += n;
+				len -= n;
+			}
+		}
+
+	}
+
+	private static class SimulatorThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "pacs-sim-" + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Properties props = new Properties();
+		if (args.length > 0)
+		{
+			InputStream in = new FileInputStream(args[0]);
+			try
+			{
+				props.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		PacsSimulator simulator = new PacsSimulator(props);
+		simulator.start();
+
+		Thread.currentThread().join();
+	}
+
+}
@@ -0,0 +1,289 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomOutputStream;
+
+/**
+ * A generated DICOM object with a realistic header and zero filled pixel 
+ * data.  The pixel data is produced as it's read, so even a 500 MB object 
+ * doesn't take up any memory.  Objects are encoded in implicit VR little 
+ * endian. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class SyntheticInstance
+{
+	public static final String TSUID = UID.ImplicitVRLittleEndian;
+
+	/**
+	 * The kinds of objects that can be generated
+	 */
+	public enum Type
+	{
+		/**
+		 * A 200 KB computed radiography image
+		 */
+		CR(UID.ComputedRadiographyImageStorage, "CR", 320, 320, 1),
+		/**
+		 * A single 512x512 CT slice
+		 */
+		CT(UID.CTImageStorage, "CT", 512, 512, 1),
+		/**
+		 * A 500 MB multiframe breast tomosynthesis object
+		 */
+		TOMO("1.2.840.10008.5.1.4.1.1.13.1.3", "MG", 2560, 2048, 50);
+
+		private final String sopClassUid;
+
+		private final String modality;
+
+		private final int rows;
+
+		private final int columns;
+
+		private final int frames;
+
+		private Type(String sopClassUid, String modality, int rows, 
+				int columns, int frames)
+		{
+			this.sopClassUid = sopClassUid;
+			this.modality = modality;
+			this.rows = rows;
+			this.columns = columns;
+			this.frames = frames;
+		}
+
+		public String getSopClassUid()
+		{
+			return sopClassUid;
+		}
+
+		/**
+		 * Get the size of the pixel data in bytes.
+		 *
+		 * @return The size of the pixel data
+		 */
+		public long getPixelDataLength()
+		{
+			return 2L * rows * columns * frames;
+		}
+
+	}
+
+	private final Type type;
+
+	private final DicomObject header;
+
+	private final byte[] encodedHeader;
+
+	public SyntheticInstance(Type type, String mrn, String accNum,
+			String studyUid, String seriesUid, String instanceUid)
+	{
+		this.type = type;
+
+		header = new BasicDicomObject();
+		header.putString(Tag.SOPClassUID, VR.UI, type.sopClassUid);
+		header.putString(Tag.SOPInstanceUID, VR.UI, instanceUid);
+		header.putString(Tag.AccessionNumber, VR.SH, accNum);
+		header.putString(Tag.Modality, VR.CS, type.modality);
+		header.putString(Tag.PatientName, VR.PN, "SYNTHETIC^PATIENT");
+		header.putString(Tag.PatientID, VR.LO, mrn);
+		header.putString(Tag.StudyInstanceUID, VR.UI, studyUid);
+		header.putString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+		header.putInt(Tag.SamplesPerPixel, VR.US, 1);
+		header.putString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+		if (type.frames > 1)
+			header.putInt(Tag.NumberOfFrames, VR.IS, type.frames);
+		header.putInt(Tag.Rows, VR.US, type.rows);
+		header.putInt(Tag.Columns, VR.US, type.columns);
+		header.putInt(Tag.BitsAllocated, VR.US, 16);
+		header.putInt(Tag.BitsStored, VR.US, 12);
+		header.putInt(Tag.HighBit, VR.US, 11);
+		header.putInt(Tag.PixelRepresentation, VR.US, 0);
+
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DicomOutputStream dos = new DicomOutputStream(bos);
+			dos.writeDataset(header, TransferSyntax.ImplicitVRLittle);
+			dos.close();
+
+			// Pixel data element header: tag (7FE0,0010) and 32 bit length
+			long length = type.getPixelDataLength();
+			byte[] tag =
+			{
+				(byte) 0xE0, (byte) 0x7F, (byte) 0x10, (byte) 0x00,
+				(byte) length, (byte) (length >> 8),
+				(byte) (length >> 16), (byte) (length >> 24)
+			};
+			bos.write(tag);
+
+			encodedHeader = bos.toByteArray();
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException("Unable to encode header", ex);
+		}
+	}
+
+	public Type getType()
+	{
+		return type;
+	}
+
+	public DicomObject getHeader()
+	{
+		return header;
+	}
+
+	public String getSopClassUid()
+	{
+		return type.sopClassUid;
+	}
+
+	public String getInstanceUid()
+	{
+		return header.getString(Tag.SOPInstanceUID);
+	}
+
+	public String getSeriesUid()
+	{
+		return header.getString(Tag.SeriesInstanceUID);
+	}
+
+	/**
+	 * Get the size of the encoded dataset in bytes.
+	 *
+	 * @return The size of the dataset
+	 */
+	public long getLength()
+	{
+		return encodedHeader.length + type.getPixelDataLength();
+	}
+
+	/**
+	 * Create the C-STORE request for this object.
+	 *
+	 * @return The command
+	 */
+	public DicomObject createCommand()
+	{
+		DicomObject cmd = new BasicDicomObject();
+		cmd.putString(Tag.AffectedSOPClassUID, VR.UI, getSopClassUid());
+		cmd.putString(Tag.AffectedSOPInstanceUID, VR.UI, getInstanceUid());
+
+		return cmd;
+	}
+
+	/**
+	 * Open a stream containing the encoded dataset.
+	 *
+	 * @return The stream
+	 */
+	public InputStream openStream()
+	{
+		return new SequenceInputStream(new ByteArrayInputStream(encodedHeader),
+				new ZeroInputStream(type.getPixelDataLength()));
+	}
+
+	/**
+	 * Write the encoded dataset to a stream. 
+	 *
+	 * @param out The stream
+	 * @throws IOException If there was an error writing the dataset
+	 */
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(encodedHeader);
+
+		byte buffer[] = new byte[64 * 1024];
+		long remaining = type.getPixelDataLength();
+		while (remaining > 0)
+		{
+			int n = (int) Math.min(buffer.length, remaining);
+			out.write(buffer, 0, n);
+
+			remaining -= n;
+		}
+	}
+
+	private static class ZeroInputStream extends InputStream
+	{
+		private long remaining;
+
+		private ZeroInputStream(long length)
+		{
+			this.remaining = length;
+		}
+
+		@Override
+		public int read()
+		{
+			if (remaining <= 0)
+				return -1;
+
+			remaining--;
+
+			return 0;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (remaining <= 0)
+				return -1;
+
+			int n = (int) Math.min(len, remaining);
+			Arrays.fill(b, off, off + n, (byte) 0);
+
+			remaining -= n;
+
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return (int) Math.min(Integer.MAX_VALUE, remaining);
+		}
+
+	}
+
+}
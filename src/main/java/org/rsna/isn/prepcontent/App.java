@@ -23,15 +23,20 @@
  */
 package org.rsna.isn.prepcontent;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
+import org.rsna.isn.dao.ConfigurationDao;
 import org.rsna.isn.prepcontent.dcm.Scp;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.Metrics;
 import org.rsna.isn.util.Environment;
 
 /**
  * Main class of prepare content app.
  * 
  * @author Wyatt Tellis
- * @version 2.1.0
+ * @version 5.0.0
  */
 public class App
 {
@@ -47,6 +52,17 @@ public class App
 	{
 		Environment.init("prep");
 
+		ConfigurationDao configDao = new ConfigurationDao();
+		int ttl = NumberUtils.toInt(configDao.getConfiguration("config-cache-ttl-in-secs"), 60);
+		logger.info("Setting configuration cache TTL to " + ttl + " second(s).");
+
+		ConfigCache.start(ttl * 1000L);
+
+		// Metrics are always available over JMX
+		int metricsPort = NumberUtils.toInt(configDao.getConfiguration("metrics-http-port"), 0);
+		String metricsBind = StringUtils.defaultIfEmpty(
+				configDao.getConfiguration("metrics-http-bind"), "localhost");
+		Metrics.startHttp(metricsBind, metricsPort);
 		
 		logger.info("Attempting to start SCP");
 		Scp scp = new Scp();
@@ -58,16 +74,19 @@ public class App
 		
 		
 		
-		Runtime.getRuntime().addShutdownHook(new ShutdownHook(monitor));
+		Runtime.getRuntime().addShutdownHook(new ShutdownHook(monitor, scp));
 	}
 
 	private static class ShutdownHook extends Thread
 	{
 		private final Monitor monitor;
 
-		public ShutdownHook(Monitor monitor)
+		private final Scp scp;
+
+		public ShutdownHook(Monitor monitor, Scp scp)
 		{
 			this.monitor = monitor;
+			this.scp = scp;
 		}
 
 		@Override
@@ -83,6 +102,17 @@ public class App
 			{
 				logger.fatal("Uncaught exception while stopping job monitor", ex);
 			}
+
+			try
+			{
+				logger.info("Attempting to stop SCP.");
+
+				scp.stop(10 * 1000);
+			}
+			catch (InterruptedException ex)
+			{
+				logger.fatal("Uncaught exception while stopping SCP", ex);
+			}
 		}
 
 	}
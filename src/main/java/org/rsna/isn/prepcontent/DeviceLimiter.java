@@ -0,0 +1,114 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import org.apache.log4j.Logger;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+
+/**
+ * Limits the number of concurrent retrievals from each device.  The limit
+ * for a device is read from the max-concurrent-moves-[AE title] configuration
+ * value. If that isn't set, the max-concurrent-moves-per-device value is used.
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class DeviceLimiter
+{
+	private static final Logger logger = Logger.getLogger(DeviceLimiter.class);
+
+	private final ConcurrentMap<String, Semaphore> permits =
+			new ConcurrentHashMap<String, Semaphore>();
+
+	private final int defaultLimit;
+
+	DeviceLimiter(int defaultLimit)
+	{
+		this.defaultLimit = defaultLimit;
+	}
+
+	/**
+	 * Try to reserve a retrieval slot for a device. 
+	 *
+	 * @param aeTitle The AE title of the device
+	 * @return True if a slot was reserved, false if the device is already 
+	 * at its limit. 
+	 * @throws SQLException If there was an error loading the limit for the
+	 * device
+	 */
+	boolean tryAcquire(String aeTitle) throws SQLException
+	{
+		return getPermits(aeTitle).tryAcquire();
+	}
+
+	/**
+	 * Release a slot reserved by tryAcquire.
+	 *
+	 * @param aeTitle The AE title of the device
+	 */
+	void release(String aeTitle)
+	{
+		Semaphore s = permits.get(aeTitle);
+		if (s != null)
+			s.release();
+	}
+
+	/**
+	 * Get the maximum number of concurrent retrievals for a device. 
+	 *
+	 * @param aeTitle The AE title of the device
+	 * @return The limit
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	int getLimit(String aeTitle) throws SQLException
+	{
+		return Math.max(1, ConfigCache.getInt("max-concurrent-moves-" + aeTitle, defaultLimit));
+	}
+
+	private Semaphore getPermits(String aeTitle) throws SQLException
+	{
+		Semaphore s = permits.get(aeTitle);
+		if (s == null)
+		{
+			int limit = getLimit(aeTitle);
+
+			Semaphore prev = permits.putIfAbsent(aeTitle, new Semaphore(limit));
+			if (prev == null)
+			{
+				logger.info("Setting max concurrent C-MOVEs for " + aeTitle 
+						+ " to " + limit + ".");
+			}
+
+			s = permits.get(aeTitle);
+		}
+
+		return s;
+	}
+
+}
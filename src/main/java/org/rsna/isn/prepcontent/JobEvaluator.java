@@ -0,0 +1,258 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.apache.log4j.Logger;
+import org.rsna.isn.domain.Exam;
+import static org.rsna.isn.domain.Exam.*;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Decides what should happen to a job that is waiting to be processed.  The
+ * evaluation is done entirely in memory so the monitor can load all pending
+ * jobs at once and then write back only the jobs whose status has changed. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class JobEvaluator
+{
+	private static final Logger logger = Logger.getLogger(JobEvaluator.class);
+
+	/**
+	 * The statuses of jobs that need to be evaluated on every pass.  Jobs
+	 * waiting for their delay to expire are only evaluated when the delay
+	 * is up.
+	 */
+	static final int PENDING[] =
+	{
+		Job.RSNA_WAITING_FOR_PREPARE_CONTENT,
+		Job.RSNA_WAITING_FOR_EXAM_COMPLETION,
+		Job.RSNA_WAITING_FOR_EXAM_FINALIZATION
+	};
+
+	private static final String IMAGES_AVAILABLE[] =
+	{
+		COMPLETED, DICTATED, PRELIMINARY, FINALIZED, REVISED,
+		ADDENDED, NON_REPORTABLE
+	};
+
+	private JobEvaluator()
+	{
+	}
+
+	/**
+	 * Evaluate a pending job. 
+	 *
+	 * @param job The job
+	 * @return The result of the evaluation
+	 */
+	static Transition evaluate(Job job)
+	{
+		int status = job.getStatus();
+
+		Exam exam = job.getExam();
+		if (exam == null)
+		{
+			// This is pretty serious and suggests there's a
+			// database problem
+			logger.warn("Unable to load exam data for " + job);
+
+			return new Transition(job, Job.RSNA_FAILED_TO_PREPARE_CONTENT,
+					"Unable to load exam data");
+		}
+
+
+		if (status == Job.RSNA_WAITING_FOR_DELAY_EXPIRATION)
+		{
+			if (isDelayNeeded(exam, job))
+				return null;
+
+			return new Transition(job);
+		}
+
+
+		if (!isExamReadyForSend(exam, job))
+		{
+			boolean canceled = "CANCELED".equals(exam.getStatus());
+			if (status == Job.RSNA_WAITING_FOR_PREPARE_CONTENT)
+			{
+				if (canceled)
+				{
+					logger.warn("Exam has been canceled for " + job);
+
+					return new Transition(job, Job.RSNA_EXAM_CANCELED,
+							"Exam has been canceled");
+				}
+				else if (job.isSendOnComplete())
+				{
+					logger.debug("Waiting for exam completion for " + job);
+
+					return new Transition(job, Job.RSNA_WAITING_FOR_EXAM_COMPLETION, null);
+				}
+				else
+				{
+					logger.debug("Report is pending finalization for " + job);
+
+					return new Transition(job, Job.RSNA_WAITING_FOR_EXAM_FINALIZATION, null);
+				}
+			}
+			else if (canceled)
+			{
+				logger.warn("Exam has been canceled for " + job);
+
+				return new Transition(job, Job.RSNA_UNABLE_TO_FIND_IMAGES,
+						"Exam has been canceled");
+			}
+
+			return null;
+		}
+
+
+		// Jobs waiting for exam completion don't have a delay
+		if (status != Job.RSNA_WAITING_FOR_EXAM_COMPLETION
+				&& isDelayNeeded(exam, job))
+		{
+			return new Transition(job, Job.RSNA_WAITING_FOR_DELAY_EXPIRATION, null);
+		}
+
+		return new Transition(job);
+	}
+
+	/**
+	 * Get the time when a job's transmit delay expires. 
+	 *
+	 * @param job The job
+	 * @return The time the delay expires (in milliseconds since the epoch)
+	 */
+	static long getDelayExpiration(Job job)
+	{
+		Exam exam = job.getExam();
+		if (exam == null)
+			return System.currentTimeMillis();
+
+		long delay = job.getDelay() * 3600000L;
+
+		if (delay < 0)
+			delay = 0;
+
+		return exam.getStatusTimestamp().getTime() + delay;
+	}
+
+	private static boolean isExamReadyForSend(Exam exam, Job job)
+	{
+		String status = exam.getStatus();
+		boolean noReport = job.isSendOnComplete();
+
+
+		if (FINALIZED.equals(status))
+			return true;
+		else if (NON_REPORTABLE.equals(status))
+			return true;
+		else if (noReport && ArrayUtils.contains(IMAGES_AVAILABLE, status))
+			return true;
+		else
+			return false;
+	}
+
+	private static boolean isDelayNeeded(Exam exam, Job job)
+	{
+		if (job.isSendOnComplete())
+			return false;
+
+		long age = System.currentTimeMillis()
+				- exam.getStatusTimestamp().getTime();
+
+		if (age < 0)
+			age = 0;
+
+		long delay = job.getDelay() * 3600000L;
+
+		if (delay < 0)
+			delay = 0;
+
+		return age < delay;
+	}
+
+	/**
+	 * The result of evaluating a job.  Either the job is ready to be 
+	 * processed or its status needs to be changed. 
+	 */
+	static class Transition
+	{
+		private final Job job;
+
+		private final boolean ready;
+
+		private final int status;
+
+		private final String comments;
+
+		private Transition(Job job)
+		{
+			this.job = job;
+			this.ready = true;
+			this.status = job.getStatus();
+			this.comments = null;
+		}
+
+		private Transition(Job job, int status, String comments)
+		{
+			this.job = job;
+			this.ready = false;
+			this.status = status;
+			this.comments = comments;
+		}
+
+		Job getJob()
+		{
+			return job;
+		}
+
+		/**
+		 * Check if the job is ready to be processed. 
+		 *
+		 * @return True if the job can be queued, false if its status 
+		 * needs to be changed
+		 */
+		boolean isReady()
+		{
+			return ready;
+		}
+
+		int getStatus()
+		{
+			return status;
+		}
+
+		String getComments()
+		{
+			return comments;
+		}
+
+	}
+
+}
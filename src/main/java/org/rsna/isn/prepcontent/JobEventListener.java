@@ -0,0 +1,243 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.rsna.isn.dao.Dao;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+
+/**
+ * Listens for PostgreSQL notifications on job and exam changes and wakes up
+ * the monitor thread when one arrives.  The triggers that send the 
+ * notifications are in job-events.sql, which is packaged next to this 
+ * class. 
+ * <p>
+ * Drivers from 42.0.0 on can block until a notification arrives.  Older 
+ * drivers only read notifications when a query is executed, so with those
+ * the connection is polled instead. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class JobEventListener extends Thread
+{
+	private static final Logger logger = Logger.getLogger(JobEventListener.class);
+
+	/**
+	 * How long to block waiting for notifications.  The listener checks 
+	 * whether it has been stopped in between. 
+	 */
+	private static final int WAIT_TIMEOUT = 10 * 1000;
+
+	/**
+	 * How often to poll for notifications if the driver can't block
+	 */
+	private static final long CHECK_INTERVAL = 500;
+
+	/**
+	 * PGConnection.getNotifications(int) or null if the driver doesn't 
+	 * have it
+	 */
+	private static final Method blockingGet = findBlockingGet();
+
+	private static final long RECONNECT_DELAY = 10 * 1000;
+
+	private final String channel;
+
+	private volatile boolean keepRunning = true;
+
+	JobEventListener(String channel)
+	{
+		super("job-event-listener");
+
+		this.channel = channel;
+
+		setDaemon(true);
+	}
+
+	@Override
+	@SuppressWarnings("SleepWhileInLoop")
+	public void run()
+	{
+		logger.info("Started listening for notifications on " + channel
+				+ (blockingGet != null ? "" : ". Polling every " + CHECK_INTERVAL + " ms."));
+
+		while (keepRunning)
+		{
+			try
+			{
+				listen();
+			}
+			catch (SQLException ex)
+			{
+				logger.warn("Lost connection while listening for notifications "
+						+ "on " + channel + ". Reconnecting in "
+						+ (RECONNECT_DELAY / 1000) + " secs.", ex);
+
+				// Have the monitor check for anything we may have missed
+				JobEvents.signal();
+
+				try
+				{
+					sleep(RECONNECT_DELAY);
+				}
+				catch (InterruptedException iex)
+				{
+					break;
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				break;
+			}
+		}
+
+		logger.info("Stopped listening for notifications on " + channel);
+	}
+
+	void stopRunning()
+	{
+		keepRunning = false;
+
+		interrupt();
+	}
+
+	@SuppressWarnings("SleepWhileInLoop")
+	private void listen() throws SQLException, InterruptedException
+	{
+		Connection con = new ListenerDao().open();
+		try
+		{
+			Statement stmt = con.createStatement();
+			stmt.execute("LISTEN " + quote(channel));
+
+			PGConnection pgCon = con.unwrap(PGConnection.class);
+			while (keepRunning)
+			{
+				PGNotification notifications[];
+				if (blockingGet != null)
+				{
+					notifications = getNotifications(pgCon, WAIT_TIMEOUT);
+				}
+				else
+				{
+					// The driver only reads notifications when a query is 
+					// executed
+					stmt.execute("SELECT 1");
+
+					notifications = pgCon.getNotifications();
+				}
+
+				if (notifications != null && notifications.length > 0)
+				{
+					logger.debug("Received " + notifications.length 
+							+ " notification(s) on " + channel);
+
+					for (PGNotification notification : notifications)
+					{
+						if ("configurations".equals(notification.getParameter()))
+						{
+							ConfigCache.refresh();
+
+							break;
+						}
+					}
+
+					JobEvents.signal();
+				}
+				else if (blockingGet == null)
+				{
+					sleep(CHECK_INTERVAL);
+				}
+			}
+
+			stmt.execute("UNLISTEN " + quote(channel));
+			stmt.close();
+		}
+		finally
+		{
+			con.close();
+		}
+	}
+
+	/**
+	 * Quote a channel name so it's used exactly as given, the same way 
+	 * pg_notify uses it. 
+	 */
+	private static String quote(String channel)
+	{
+		return "\"" + channel.replace("\"", "\"\"") + "\"";
+	}
+
+	private static PGNotification[] getNotifications(PGConnection con, int timeout)
+			throws SQLException
+	{
+		try
+		{
+			return (PGNotification[]) blockingGet.invoke(con, timeout);
+		}
+		catch (InvocationTargetException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			else
+				throw new SQLException(cause);
+		}
+		catch (IllegalAccessException ex)
+		{
+			throw new SQLException(ex);
+		}
+	}
+
+	private static Method findBlockingGet()
+	{
+		try
+		{
+			return PGConnection.class.getMethod("getNotifications", int.class);
+		}
+		catch (NoSuchMethodException ex)
+		{
+			return null;
+		}
+	}
+
+	private static class ListenerDao extends Dao
+	{
+		private Connection open() throws SQLException
+		{
+			return getConnection();
+		}
+
+	}
+
+}
@@ -0,0 +1,87 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+/**
+ * Used to wake up the monitor thread when a job might need attention (e.g. a
+ * job or exam status has changed in the database, or a worker has finished).
+ * Signals are coalesced: any number of signals received while the monitor is
+ * busy result in a single wake up. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class JobEvents
+{
+	private static final Object lock = new Object();
+
+	private static boolean pending = false;
+
+	private JobEvents()
+	{
+	}
+
+	/**
+	 * Wake up the monitor thread.
+	 */
+	static void signal()
+	{
+		synchronized (lock)
+		{
+			pending = true;
+
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait for a signal.
+	 *
+	 * @param timeout The max amount of time to wait (in milliseconds)
+	 * @return True if a signal was received, false if the timeout expired
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	static boolean await(long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+
+		synchronized (lock)
+		{
+			long remaining = timeout;
+			while (!pending && remaining > 0)
+			{
+				lock.wait(remaining);
+
+				remaining = end - System.currentTimeMillis();
+			}
+
+			boolean signaled = pending;
+			pending = false;
+
+			return signaled;
+		}
+	}
+
+}
@@ -23,11 +23,17 @@
  */
 package org.rsna.isn.prepcontent;
 
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.apache.log4j.LogManager;
@@ -35,13 +41,25 @@ import org.apache.log4j.Logger;
 import org.rsna.isn.dao.ConfigurationDao;
 import org.rsna.isn.dao.JobDao;
 import org.rsna.isn.domain.Exam;
-import static org.rsna.isn.domain.Exam.*;
 import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.JobEvaluator.Transition;
+import org.rsna.isn.prepcontent.WakeupScheduler.Wakeup;
+import org.rsna.isn.prepcontent.dcm.AssociationPool;
+import org.rsna.isn.prepcontent.dcm.CFind;
+import org.rsna.isn.prepcontent.dcm.DeviceHealth;
+import org.rsna.isn.prepcontent.dcm.JobIndex;
+import org.rsna.isn.prepcontent.dcm.JobProgress;
+import org.rsna.isn.prepcontent.dcm.StudyArrivals;
+import org.rsna.isn.prepcontent.util.JobTimeline;
+import org.rsna.isn.prepcontent.util.Metrics;
+import org.rsna.isn.prepcontent.util.MonitorDao;
+import org.rsna.isn.prepcontent.util.MonitorDao.StatusUpdate;
+import org.rsna.isn.util.Environment;
 
 /**
  * This class monitors the RSNA database for new jobs. If it finds a new job, it
- * will spawn a worker thread to process the job. Currently a max of five
- * concurrent worker threads are allowed.
+ * will queue the job in the worker pool. The size of the pool is set by the
+ * max-concurrent-jobs configuration value (five by default). 
  *
  * @author Wyatt Tellis
  * @version 5.0.0
@@ -51,13 +69,20 @@ class Monitor extends Thread
 {
 	private static final Logger logger = Logger.getLogger(Monitor.class);
 
-	private static final String IMAGES_AVAILABLE[] =
-	{
-		COMPLETED, DICTATED, PRELIMINARY, FINALIZED, REVISED,
-		ADDENDED, NON_REPORTABLE
-	};
+	private WorkerPool pool;
+
+	private JobEventListener listener;
+
+	private final WakeupScheduler scheduler = new WakeupScheduler();
 
-	private final ThreadGroup group = new ThreadGroup("workers");
+	private static final long BATCH_RETRY_INTERVAL = 5 * DateUtils.MILLIS_PER_MINUTE;
+
+	private MonitorDao monitorDao = new MonitorDao(false);
+
+	/**
+	 * When to try batched status updates again after a batch failed
+	 */
+	private long batchRetryTime;
 
 	private boolean keepRunning;
 
@@ -67,7 +92,6 @@ class Monitor extends Thread
 	}
 
 	@Override
-	@SuppressWarnings("SleepWhileInLoop")
 	public void run()
 	{
 		logger.info("Started monitor thread");
@@ -75,6 +99,8 @@ class Monitor extends Thread
 		
 
 		int retryDelay;
+		long pollInterval;
+		long resyncInterval;
 		try
 		{
 			ConfigurationDao configDao = new ConfigurationDao();
@@ -84,6 +110,65 @@ class Monitor extends Thread
 			logger.info("Setting retry delay to " + delay + " minute(s).");
 			
 			retryDelay = (int) (delay * DateUtils.MILLIS_PER_MINUTE * -1);
+
+			int workers = NumberUtils.toInt(configDao.getConfiguration("max-concurrent-jobs"), 5);
+			logger.info("Setting max concurrent jobs to " + workers + ".");
+
+			int moves = NumberUtils.toInt(configDao.getConfiguration("max-concurrent-moves-per-device"), 3);
+			logger.info("Setting max concurrent C-MOVEs per device to " + moves + ".");
+
+			File statsFile = new File(Environment.getTmpDir(), "worker-pool-stats.properties");
+			pool = new WorkerPool(workers, new DeviceLimiter(moves), scheduler, statsFile);
+
+			int flush = NumberUtils.toInt(configDao.getConfiguration("progress-flush-interval-in-secs"), 5);
+			logger.info("Setting progress flush interval to " + flush + " second(s).");
+
+			JobProgress.start(flush * DateUtils.MILLIS_PER_SECOND);
+
+			int probe = NumberUtils.toInt(configDao.getConfiguration("device-probe-interval-in-secs"), 30);
+			int failures = NumberUtils.toInt(configDao.getConfiguration("device-failure-threshold"), 3);
+			logger.info("Checking devices every " + probe + " second(s).");
+
+			DeviceHealth.start(probe * DateUtils.MILLIS_PER_SECOND, failures);
+
+			int idle = NumberUtils.toInt(configDao.getConfiguration("association-idle-timeout-in-secs"), 30);
+			int idleMax = NumberUtils.toInt(configDao.getConfiguration("association-pool-size"), 2);
+			logger.info("Setting association idle timeout to " + idle + " second(s).");
+
+			AssociationPool.start(idle * DateUtils.MILLIS_PER_SECOND, idleMax);
+
+			if (Boolean.parseBoolean(configDao.getConfiguration("watch-study-dirs")))
+				StudyArrivals.startWatching();
+
+
+			// If job events are enabled, the database is only polled as a 
+			// fallback in case a notification is missed
+			boolean events = Boolean.parseBoolean(configDao.getConfiguration("job-events-enabled"));
+			int interval = NumberUtils.toInt(configDao.getConfiguration("monitor-poll-interval-in-secs"),
+					events ? 60 : 1);
+			logger.info("Setting monitor poll interval to " + interval + " second(s).");
+
+			pollInterval = interval * DateUtils.MILLIS_PER_SECOND;
+
+
+			// Jobs waiting for a transmit delay or a retry are woken up by 
+			// the scheduler. The full list is reloaded from the database
+			// every so often in case something was missed.
+			int resync = NumberUtils.toInt(configDao.getConfiguration("monitor-resync-interval-in-mins"), 10);
+			logger.info("Setting monitor resync interval to " + resync + " minute(s).");
+
+			resyncInterval = resync * DateUtils.MILLIS_PER_MINUTE;
+
+			if (events)
+			{
+				String channel = StringUtils.defaultIfEmpty(
+						configDao.getConfiguration("job-events-channel"), "prep_content");
+
+				listener = new JobEventListener(channel);
+				listener.start();
+
+				monitorDao = new MonitorDao(true);
+			}
 		}
 		catch (Exception ex)
 		{
@@ -114,272 +199,174 @@ class Monitor extends Thread
 			return;
 		}
 
+		long nextResync = 0;
+
+		Metrics.Histogram loopTime = Metrics.histogram("monitor_loop_duration_ms",
+				"Time taken by each pass of the monitor loop");
+
 		keepRunning = true;
 		while (keepRunning)
 		{
 			try
 			{
-				Set<Job> jobsToProcess = new HashSet<Job>();
-
+				long loopStart = System.currentTimeMillis();
 
-				//
-				// Evaluate newly created jobs
-				//
-				logger.debug("Retrieving list of new jobs...");
-				Set<Job> newJobs = dao.getJobsByStatus(Job.RSNA_WAITING_FOR_PREPARE_CONTENT);
-				for (Job job : newJobs)
+				if (System.currentTimeMillis() >= nextResync)
 				{
-					Exam exam = job.getExam();
-					if (exam == null)
-					{
-						// This is pretty serious and suggests there's a
-						// database problem
-						dao.updateStatus(job,
-								Job.RSNA_FAILED_TO_PREPARE_CONTENT, "Unable to load exam data");
-
-						logger.warn("Unable to load exam data for " + job);
-
-						continue;
-					}
-
-
-					if (!isExamReadyForSend(exam, job))
-					{
-						if ("CANCELED".equals(exam.getStatus()))
-						{
-							dao.updateStatus(job, Job.RSNA_EXAM_CANCELED,
-									"Exam has been canceled");
-
-							logger.warn("Exam has been canceled for " + job);
-						}
-						else if (job.isSendOnComplete())
-						{
-							dao.updateStatus(job, Job.RSNA_WAITING_FOR_EXAM_COMPLETION);
-
-							logger.debug("Waiting for exam completion for " + job);
-						}
-						else
-						{
-							dao.updateStatus(job, Job.RSNA_WAITING_FOR_EXAM_FINALIZATION);
+					resync(dao, retryDelay);
 
-							logger.debug("Report is pending finalization for " + job);
-						}
+					nextResync = System.currentTimeMillis() + resyncInterval;
+				}
 
-						continue;
-					}
 
-					if (isDelayNeeded(exam, job))
+				//
+				// Schedule retries for jobs that failed since the last pass
+				//
+				for (int jobId : pool.pollCompleted())
+				{
+					Job job = dao.getJobById(jobId);
+					if (job != null && isRetryable(job))
 					{
-						dao.updateStatus(job, Job.RSNA_WAITING_FOR_DELAY_EXPIRATION);
+						pool.recordFailure(job);
 
-						continue;
+						scheduler.schedule(jobId, WakeupScheduler.Type.RETRY,
+								System.currentTimeMillis() - retryDelay);
 					}
-
-					jobsToProcess.add(job);
 				}
 
 
-
 				//
-				// Evaluate jobs that are waiting for exam completion
+				// Load all pending jobs and work out what needs to happen to
+				// each of them before writing anything back.  Exams that are
+				// already being retrieved are loaded along with them since
+				// some PACS don't like multiple C-MOVE requests for the same 
+				// exam. 
 				//
-				logger.debug("Retrieving list of jobs with exams awaiting completion.");
-				Set<Job> jobsAwaitingCompletion = dao.getJobsByStatus(Job.RSNA_WAITING_FOR_EXAM_COMPLETION);
-				for (Job job : jobsAwaitingCompletion)
+				logger.debug("Retrieving list of pending jobs...");
+				List<Transition> transitions = new ArrayList<Transition>();
+				Set<String> activeExams = new HashSet<String>();
+				for (Job job : getJobs(dao))
 				{
-					Exam exam = job.getExam();
-					if (exam == null)
+					if (job.getStatus() == Job.RSNA_STARTED_DICOM_C_MOVE)
 					{
-						// This is pretty serious and suggests there's a
-						// database problem
-						dao.updateStatus(job,
-								Job.RSNA_FAILED_TO_PREPARE_CONTENT, "Unable to load exam data");
-
-						logger.warn("Unable to load exam data for " + job);
-
-						continue;
+						Exam exam = job.getExam();
+						if (exam != null)
+							activeExams.add(exam.getMrn() + "/" + exam.getAccNum());
 					}
-
-					if (!isExamReadyForSend(exam, job))
+					else
 					{
-						if ("CANCELED".equals(exam.getStatus()))
-						{
-							dao.updateStatus(job, Job.RSNA_UNABLE_TO_FIND_IMAGES,
-									"Exam has been canceled");
-
-							logger.warn("Exam has been canceled for " + job);
-						}
-
-
-						continue;
+						Transition t = JobEvaluator.evaluate(job);
+						if (t != null)
+							transitions.add(t);
 					}
-					
-					jobsToProcess.add(job);
 				}
 
 
-
-
-
-
 				//
-				// Evaluate jobs that are waiting for a final report
+				// Evaluate jobs whose delay has expired, retry jobs whose 
+				// retry delay has passed and queue jobs the workers put aside
 				//
-				logger.debug("Retrieving list of jobs with exams awaiting reports.");
-				Set<Job> jobsWaitingForReport = dao.getJobsByStatus(Job.RSNA_WAITING_FOR_EXAM_FINALIZATION);
-				for (Job job : jobsWaitingForReport)
+				for (Wakeup w : scheduler.pollDue())
 				{
-					Exam exam = job.getExam();
-					if (exam == null)
-					{
-						// This is pretty serious and suggests there's a
-						// database problem
-						dao.updateStatus(job,
-								Job.RSNA_FAILED_TO_PREPARE_CONTENT, "Unable to load exam data");
+					int jobId = w.getJobId();
 
-						logger.warn("Unable to load exam data for " + job);
+					if (w.getType() == WakeupScheduler.Type.REQUEUE)
+					{
+						pool.resume(jobId);
 
 						continue;
 					}
 
+					Job job = dao.getJobById(jobId);
+					if (job == null)
+						continue;
 
-
-					if (!isExamReadyForSend(exam, job))
+					if (w.getType() == WakeupScheduler.Type.DELAY_EXPIRED
+							&& job.getStatus() == Job.RSNA_WAITING_FOR_DELAY_EXPIRATION)
 					{
-						if ("CANCELED".equals(exam.getStatus()))
-						{
-							dao.updateStatus(job, Job.RSNA_UNABLE_TO_FIND_IMAGES,
-									"Exam has been canceled");
-
-							logger.warn("Exam has been canceled for " + job);
-						}
-
-
-						continue;
+						Transition t = JobEvaluator.evaluate(job);
+						if (t != null)
+							transitions.add(t);
+						else
+							scheduleDelay(job);
 					}
-
-					if (isDelayNeeded(exam, job))
+					else if (w.getType() == WakeupScheduler.Type.RETRY
+							&& isRetryable(job))
 					{
-						dao.updateStatus(job, Job.RSNA_WAITING_FOR_DELAY_EXPIRATION);
+						if (dao.retryJob(jobId))
+						{
+							JobIndex.remove(job);
 
-						continue;
+							logger.warn("Retried job #" + jobId);
+						}
 					}
-
-					jobsToProcess.add(job);
 				}
 
 
-
-
-
 				//
-				// Evaluate jobs that are waiting for transmit delay to
-				// expire
+				// Work out the status changes and write them in one batch
 				//
-				logger.debug("Retrieving list of jobs waiting for delay expiration...");
-				Set<Job> jobsWaitingForTransmitDelay = dao.getJobsByStatus(Job.RSNA_WAITING_FOR_DELAY_EXPIRATION);
-				for (Job job : jobsWaitingForTransmitDelay)
+				List<StatusUpdate> updates = new ArrayList<StatusUpdate>();
+				List<Job> delayed = new ArrayList<Job>();
+				List<Job> dispatched = new ArrayList<Job>();
+				for (Transition t : transitions)
 				{
-					Exam exam = job.getExam();
-					if (exam == null)
+					Job job = t.getJob();
+					if (t.isReady())
 					{
-						// This is pretty serious and suggests there's a
-						// database problem
-						dao.updateStatus(job,
-								Job.RSNA_FAILED_TO_PREPARE_CONTENT, "Unable to load exam data");
-
-						logger.warn("Unable to load exam data for " + job);
-
-						continue;
-					}
-
-					if (isDelayNeeded(exam, job))
-						continue;
-
-
-					jobsToProcess.add(job);
-				}
-
-
+						if (pool.isActive(job))
+							continue;
 
-				for (Job job : jobsToProcess)
-				{
-					if (group.activeCount() >= 5)
-					{
-						logger.warn("Too many jobs active.  Pausing monitor thread");
+						Exam exam = job.getExam();
+						String key = exam.getMrn() + "/" + exam.getAccNum();
+						if (!activeExams.add(key))
+							continue;
 
-						Thread.sleep(10 * 1000);
+						updates.add(new StatusUpdate(job, 
+								Job.RSNA_STARTED_DICOM_C_MOVE, "Queued for processing"));
 
-						break;
+						dispatched.add(job);
 					}
-
-
-					Exam exam = job.getExam();
-					String mrn = exam.getMrn();
-					String accNum = exam.getAccNum();
-
-					//
-					// Make sure we're not already processing this MRN/acc #
-					// combo.  Some PACS don't like multiple C-MOVE requests
-					// for the same exam. 
-					//
-					List<Job> otherJobs = dao.findJobs(mrn, accNum, Job.RSNA_STARTED_DICOM_C_MOVE);
-					if (!otherJobs.isEmpty())
+					else
 					{
-						continue;
-					}
-
-					String name = "worker-" + job.getJobId();
+						updates.add(new StatusUpdate(job, t.getStatus(), t.getComments()));
 
+						if (t.getStatus() == Job.RSNA_WAITING_FOR_DELAY_EXPIRATION)
+							delayed.add(job);
+					}
+				}
 
-					Thread active[] = new Thread[group.activeCount()];
-					int count = group.enumerate(active);
-
-					boolean alreadyRunning = false;
-					for (int i = 0; i < count && i < active.length; i++)
-					{
-						Thread t = active[i];
-						if (t == null)
-							continue;
+				updateStatus(dao, updates);
 
-						if (name.equals(t.getName()))
-						{
-							logger.warn("Unable to start thread for " + job
-									+ ". An existing thread is already active.");
+				for (StatusUpdate update : updates)
+				{
+					JobIndex.remove(update.getJob());
+				}
 
-							alreadyRunning = true;
-							break;
-						}
-					}
+				for (Job job : delayed)
+				{
+					scheduleDelay(job);
+				}
 
+				for (Job job : dispatched)
+				{
+					JobIndex.add(job);
+					JobTimeline.queued(job);
+				}
 
-					if (!alreadyRunning)
-					{
-						dao.updateStatus(job, Job.RSNA_STARTED_DICOM_C_MOVE);
+				// Query the devices for the whole batch up front so the 
+				// workers don't each have to open their own association
+				CFind.prefetch(dispatched);
 
-						Worker worker = new Worker(group, job, name);
-						worker.start();
-					}
-				}
-				
-				
-				logger.debug("Retrieving list of jobs to retry...");
-				Date now = new Date();
-				Date lastUpdate = DateUtils.addMilliseconds(now, retryDelay);
-				Set<Job> jobsToRetry = 
-						dao.findRetryableJobs(lastUpdate, Job.RSNA_DICOM_C_MOVE_FAILED,Job.RSNA_NO_DEVICES_FOUND);
-				
-				for(Job job : jobsToRetry)
+				for (Job job : dispatched)
 				{
-					int jobId = job.getJobId();
-					if(dao.retryJob(jobId))
-					{
-						logger.warn("Retried job #" + jobId);
-					}
+					pool.submit(job);
 				}
-				
 
-				sleep(1000);
+				loopTime.updateSince(loopStart);
+				
+				
+				JobEvents.await(Math.min(pollInterval, scheduler.getNextDelay()));
 			}
 			catch (InterruptedException ex)
 			{
@@ -405,46 +392,138 @@ class Monitor extends Thread
 		logger.info("Stopped monitor thread");
 	}
 
-	public void stopRunning() throws InterruptedException
+	/**
+	 * Reload the jobs that are waiting for their delay to expire and retry
+	 * any failed jobs whose retry delay has passed. 
+	 */
+	private void resync(JobDao dao, int retryDelay) throws SQLException
 	{
-		keepRunning = false;
+		logger.debug("Retrieving list of jobs waiting for delay expiration...");
+		for (Job job : dao.getJobsByStatus(Job.RSNA_WAITING_FOR_DELAY_EXPIRATION))
+		{
+			scheduleDelay(job);
+		}
 
-		join(10 * 1000);
+
+		logger.debug("Retrieving list of jobs to retry...");
+		Date now = new Date();
+		Date lastUpdate = DateUtils.addMilliseconds(now, retryDelay);
+		Set<Job> jobsToRetry = 
+				dao.findRetryableJobs(lastUpdate, Job.RSNA_DICOM_C_MOVE_FAILED,Job.RSNA_NO_DEVICES_FOUND);
+
+		for(Job job : jobsToRetry)
+		{
+			int jobId = job.getJobId();
+			if(dao.retryJob(jobId))
+			{
+				JobIndex.remove(job);
+
+				logger.warn("Retried job #" + jobId);
+			}
+		}
+	}
+
+	/**
+	 * Load the pending jobs and the jobs that are being retrieved, and record
+	 * how many there are of each status. 
+	 */
+	private List<Job> getJobs(JobDao dao) throws SQLException
+	{
+		int statuses[] = ArrayUtils.add(JobEvaluator.PENDING, Job.RSNA_STARTED_DICOM_C_MOVE);
+
+		long start = System.currentTimeMillis();
+		List<Job> jobs = new ArrayList<Job>();
+		for (int status : statuses)
+		{
+			jobs.addAll(dao.getJobsByStatus(status));
+		}
+		Metrics.db("getJobsByStatus").updateSince(start);
+
+
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (Job job : jobs)
+		{
+			Integer count = counts.get(job.getStatus());
+			counts.put(job.getStatus(), count == null ? 1 : count + 1);
+		}
+
+		for (int status : statuses)
+		{
+			Integer count = counts.get(status);
+			Metrics.gauge("jobs", "Number of jobs by status", 
+					"status", Integer.toString(status)).set(count == null ? 0 : count);
+		}
+
+		return jobs;
+	}
+
+	/**
+	 * Write a set of status changes.  The changes are written as a single 
+	 * batch. If that fails, they're written one at a time using JobDao and 
+	 * batches aren't tried again for a few minutes. 
+	 */
+	private void updateStatus(JobDao dao, List<StatusUpdate> updates) throws SQLException
+	{
+		if (updates.isEmpty())
+			return;
+
+		long start = System.currentTimeMillis();
+		if (start >= batchRetryTime)
+		{
+			try
+			{
+				monitorDao.updateStatus(updates);
+
+				Metrics.db("updateStatus").updateSince(start);
+
+				return;
+			}
+			catch (SQLException ex)
+			{
+				logger.warn("Unable to update job statuses in a batch. "
+						+ "Falling back to updating them one at a time.", ex);
+
+				batchRetryTime = System.currentTimeMillis() + BATCH_RETRY_INTERVAL;
+			}
+		}
+
+		for (StatusUpdate update : updates)
+		{
+			if (update.getComments() != null)
+				dao.updateStatus(update.getJob(), update.getStatus(), update.getComments());
+			else
+				dao.updateStatus(update.getJob(), update.getStatus());
+		}
+		Metrics.db("updateStatus").updateSince(start);
 	}
 
-	private boolean isExamReadyForSend(Exam exam, Job job)
+	private void scheduleDelay(Job job)
 	{
-		String status = exam.getStatus();
-		boolean noReport = job.isSendOnComplete();
-
-
-		if (FINALIZED.equals(status))
-			return true;
-		else if (NON_REPORTABLE.equals(status))
-			return true;
-		else if (noReport && ArrayUtils.contains(IMAGES_AVAILABLE, status))
-			return true;
-		else
-			return false;
+		scheduler.schedule(job.getJobId(), WakeupScheduler.Type.DELAY_EXPIRED,
+				JobEvaluator.getDelayExpiration(job));
 	}
 
-	private boolean isDelayNeeded(Exam exam, Job job)
+	private static boolean isRetryable(Job job)
 	{
-		if (job.isSendOnComplete())
-			return false;
+		int status = job.getStatus();
 
-		long age = System.currentTimeMillis()
-				- exam.getStatusTimestamp().getTime();
+		return status == Job.RSNA_DICOM_C_MOVE_FAILED
+				|| status == Job.RSNA_NO_DEVICES_FOUND;
+	}
 
-		if (age < 0)
-			age = 0;
+	public void stopRunning() throws InterruptedException
+	{
+		keepRunning = false;
 
-		long delay = job.getDelay() * 3600000L;
+		JobEvents.signal();
+
+		join(10 * 1000);
 
-		if (delay < 0)
-			delay = 0;
+		if (listener != null)
+			listener.stopRunning();
 
-		return age < delay;
+		if (pool != null)
+			pool.shutdown(10 * 1000);
 	}
 
 }
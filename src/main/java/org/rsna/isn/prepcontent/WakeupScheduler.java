@@ -0,0 +1,184 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of when jobs need to be looked at again, i.e. when a transmit
+ * delay expires, when a failed job can be retried or when a job the workers 
+ * put aside should be queued again.  This lets the monitor
+ * wake up jobs exactly when they're due instead of scanning for them on 
+ * every pass. 
+ * <p>
+ * Each job has at most one pending wake up.  Scheduling a job again replaces
+ * its previous wake up. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class WakeupScheduler
+{
+	/**
+	 * Wake up types
+	 */
+	enum Type
+	{
+		DELAY_EXPIRED, RETRY, REQUEUE
+	}
+
+	private final DelayQueue<Wakeup> queue = new DelayQueue<Wakeup>();
+
+	private final Map<Integer, Wakeup> pending = new ConcurrentHashMap<Integer, Wakeup>();
+
+	/**
+	 * Schedule a job to be woken up.  The monitor is only signaled if the 
+	 * new wake up is due before everything else in the queue. 
+	 *
+	 * @param jobId The job id
+	 * @param type The reason for the wake up
+	 * @param time When to wake up the job (in milliseconds since the epoch)
+	 */
+	synchronized void schedule(int jobId, Type type, long time)
+	{
+		Wakeup old = pending.get(jobId);
+		if (old != null)
+		{
+			if (old.type == type && old.time == time)
+				return;
+
+			queue.remove(old);
+		}
+
+		Wakeup head = queue.peek();
+
+		Wakeup w = new Wakeup(jobId, type, time);
+		pending.put(jobId, w);
+		queue.add(w);
+
+		if (head == null || time < head.time)
+			JobEvents.signal();
+	}
+
+	/**
+	 * Cancel a job's pending wake up (if any).
+	 *
+	 * @param jobId The job id
+	 */
+	synchronized void cancel(int jobId)
+	{
+		Wakeup old = pending.remove(jobId);
+		if (old != null)
+			queue.remove(old);
+	}
+
+	/**
+	 * Get the wake ups that are due. 
+	 *
+	 * @return A list of wake ups that are due.  May be empty.
+	 */
+	synchronized List<Wakeup> pollDue()
+	{
+		List<Wakeup> due = new ArrayList<Wakeup>();
+
+		Wakeup w;
+		while ((w = queue.poll()) != null)
+		{
+			// Skip wake ups that were replaced or canceled
+			if (pending.remove(w.jobId, w))
+				due.add(w);
+		}
+
+		return due;
+	}
+
+	/**
+	 * Get the time until the next wake up is due.
+	 *
+	 * @return The time until the next wake up (in milliseconds) or 
+	 * Long.MAX_VALUE if there are no pending wake ups.
+	 */
+	long getNextDelay()
+	{
+		Wakeup w = queue.peek();
+		if (w == null)
+			return Long.MAX_VALUE;
+
+		return Math.max(0, w.getDelay(TimeUnit.MILLISECONDS));
+	}
+
+	int size()
+	{
+		return pending.size();
+	}
+
+	static class Wakeup implements Delayed
+	{
+		private final int jobId;
+
+		private final Type type;
+
+		private final long time;
+
+		private Wakeup(int jobId, Type type, long time)
+		{
+			this.jobId = jobId;
+			this.type = type;
+			this.time = time;
+		}
+
+		int getJobId()
+		{
+			return jobId;
+		}
+
+		Type getType()
+		{
+			return type;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o)
+		{
+			long other = ((Wakeup) o).time;
+
+			return time < other ? -1 : (time == other ? 0 : 1);
+		}
+
+	}
+
+}
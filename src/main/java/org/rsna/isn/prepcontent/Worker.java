@@ -30,30 +30,38 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
 import org.dcm4che2.net.CommandUtils;
-import org.rsna.isn.dao.ConfigurationDao;
 import org.rsna.isn.dao.JobDao;
 import org.rsna.isn.domain.Device;
 import org.rsna.isn.domain.Exam;
 import org.rsna.isn.domain.Job;
-import org.rsna.isn.prepcontent.dcm.CEcho;
 import org.rsna.isn.prepcontent.dcm.CFind;
 import org.rsna.isn.prepcontent.dcm.CFindResponse;
+import org.rsna.isn.prepcontent.dcm.CFindIncompleteException;
+import org.rsna.isn.prepcontent.dcm.CGet;
 import org.rsna.isn.prepcontent.dcm.CMove;
 import org.rsna.isn.prepcontent.dcm.CMoveResponse;
+import org.rsna.isn.prepcontent.dcm.DeviceHealth;
+import org.rsna.isn.prepcontent.dcm.JfrEvent;
+import org.rsna.isn.prepcontent.dcm.JobIndex;
+import org.rsna.isn.prepcontent.dcm.JobProgress;
+import org.rsna.isn.prepcontent.dcm.StudyArrivals;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.JobTimeline;
+import org.rsna.isn.prepcontent.util.JobTimeline.Phase;
+import org.rsna.isn.prepcontent.util.Metrics;
 import org.rsna.isn.util.Environment;
 import org.rsna.isn.util.FileUtil;
 
 /**
- * Worker thread that processes jobs.
+ * Processes a single job.  Workers are run by the WorkerPool.
  *
  * @author Wyatt Tellis
  * @since 1.0.0
  * @version 5.0.0
  */
-class Worker extends Thread
+class Worker implements Runnable
 {
 	private static final Logger logger = Logger.getLogger(Worker.class);
 
@@ -61,11 +69,21 @@ class Worker extends Thread
 
 	private final JobDao dao = new JobDao();
 
-	Worker(ThreadGroup group, Job job, String name)
-	{
-		super(group, name);
+	private final WorkerPool pool;
+
+	private final List<CFindResponse> studies;
 
+	/**
+	 * @param job The job to process
+	 * @param pool The pool running the worker
+	 * @param studies The studies found by an earlier attempt or null if the
+	 * devices need to be queried
+	 */
+	Worker(Job job, WorkerPool pool, List<CFindResponse> studies)
+	{
 		this.job = job;
+		this.pool = pool;
+		this.studies = studies;
 	}
 
 	@Override
@@ -73,6 +91,8 @@ class Worker extends Thread
 	{
 		logger.info("Started processing " + job);
 
+		JobTimeline.mark(job, Phase.STARTED);
+
 		try
 		{
 			Exam exam = job.getExam();
@@ -80,7 +100,7 @@ class Worker extends Thread
 			String mrn = exam.getMrn();
 			if (StringUtils.isEmpty(mrn))
 			{
-				dao.updateStatus(job, Job.RSNA_FAILED_TO_PREPARE_CONTENT, "No MRN");
+				updateStatus(Job.RSNA_FAILED_TO_PREPARE_CONTENT, "No MRN");
 
 				return;
 			}
@@ -88,16 +108,16 @@ class Worker extends Thread
 			String accNum = exam.getAccNum();
 			if (StringUtils.isEmpty(accNum))
 			{
-				dao.updateStatus(job, Job.RSNA_FAILED_TO_PREPARE_CONTENT, "No accession number");
+				updateStatus(Job.RSNA_FAILED_TO_PREPARE_CONTENT, "No accession number");
 
 				return;
 			}
                                                                                      
 			try
                         {	
-                                if (CEcho.isDevicesOffline())
+                                if (!DeviceHealth.isAnyOnline())
                                 {
-   					dao.updateStatus(job, Job.RSNA_NO_DEVICES_FOUND,
+   					updateStatus(Job.RSNA_NO_DEVICES_FOUND,
 							"Unable to communicate with devices.");
 
 					logger.error("Unable to communicate with devices. " + job + " failed.");
@@ -105,10 +125,50 @@ class Worker extends Thread
                                         return;
                                 }
                                 
-                                List<CFindResponse> findRsps = CFind.findStudies(job);                          
+                                List<CFindResponse> findRsps;
+				try
+				{
+					findRsps = (studies != null) ? studies : CFind.findStudies(job);
+				}
+				catch (CFindIncompleteException ex)
+				{
+					// Some devices weren't queried, so the job can't be 
+					// failed for lack of images.  Try it again later, 
+					// backing off each time. 
+					String aeTitles = StringUtils.join(ex.getAeTitles(), ", ");
+
+					int attempts = pool.recordIncompleteFind(job);
+					int limit = ConfigCache.getInt("cfind-retry-limit", 5);
+					if (attempts > limit)
+					{
+						pool.clearIncompleteFinds(job);
+
+						updateStatus(Job.RSNA_NO_DEVICES_FOUND,
+								"Unable to query " + aeTitles);
+
+						logger.error(ex.getMessage() + ". " + job + " failed after " 
+								+ limit + " retries.");
+
+						return;
+					}
+
+					long delay = ConfigCache.getLong("cfind-retry-delay-in-secs", 30) 
+							* 1000L << Math.min(attempts - 1, 5);
+
+					logger.warn(ex.getMessage() + ". Requeuing " + job + " in " 
+							+ (delay / 1000) + " secs");
+
+					JobProgress.update(job, "Waiting for " + aeTitles);
+
+					pool.requeueLater(job, delay);
+
+					return;
+				}
+				pool.clearIncompleteFinds(job);
+				JobTimeline.mark(job, Phase.FIND);
 				if (findRsps.isEmpty())
 				{
-					dao.updateStatus(job, Job.RSNA_UNABLE_TO_FIND_IMAGES,
+					updateStatus(Job.RSNA_UNABLE_TO_FIND_IMAGES,
 							"Could not find any images for this exam.");
 
 					logger.error("Could not find any images associated with " + job);
@@ -118,14 +178,14 @@ class Worker extends Thread
 
 				// Remove any duplicate studies
 				// Need this for complex setups like the Mayo
-				Map<String, CFindResponse> studies = 
+				Map<String, CFindResponse> uniqueStudies = 
 						new HashMap<String, CFindResponse>();
 				for (CFindResponse response : findRsps)
 				{
 					String studyUid = response.getStudyUid();
-					if (studies.containsKey(studyUid))
+					if (uniqueStudies.containsKey(studyUid))
 					{
-						CFindResponse temp = studies.get(studyUid);
+						CFindResponse temp = uniqueStudies.get(studyUid);
 						String tempAe = temp.getDevice().getAeTitle();
 						String responseAe = response.getDevice().getAeTitle();
 
@@ -135,7 +195,7 @@ class Worker extends Thread
 									+ tempAe + " and "
 									+ responseAe + ". Using instance from " + responseAe);
 
-							studies.put(studyUid, response);
+							uniqueStudies.put(studyUid, response);
 						}
 						else
 						{
@@ -146,21 +206,29 @@ class Worker extends Thread
 					}
 					else
 					{
-						studies.put(studyUid, response);
+						uniqueStudies.put(studyUid, response);
 					}
 				}
 
+				int size = 0;
+				for (CFindResponse response : uniqueStudies.values())
+				{
+					size += response.getCount();
+				}
+				pool.setStudySize(job, size);
 
 
 
 				File dcmDir = Environment.getDcmDir();
 				File jobDir = FileUtil.newFile(dcmDir, job.getJobId());
 
-				for (CFindResponse findRsp : studies.values())
+				for (CFindResponse findRsp : uniqueStudies.values())
 				{
 					Device device = findRsp.getDevice();
 					String ae = device.getAeTitle();
 
+					pool.setDevice(job, ae);
+
 
 					int expectedCount = findRsp.getCount();
 					String studyUid = findRsp.getStudyUid();
@@ -181,131 +249,184 @@ class Worker extends Thread
 
 						continue;
 					}
-					else if (expectedCount > 0 && dirCount > expectedCount)
+
+					// Only so many retrievals are allowed per device.  The pool
+					// normally reserves a slot before handing over the job, but 
+					// the device isn't known on the first attempt.  If the device
+					// is busy, put the job back in the pool's queue behind the 
+					// device so the worker can be used for another device.  The
+					// studies are kept so the devices aren't queried again. 
+					if (!pool.tryAcquire(job, device))
 					{
-						// We got more images than expected, so let's just
-						// wait to see how many total we get
+						logger.info("Too many retrievals active for " + ae
+								+ ". Requeuing " + job);
+
+						JobProgress.update(job, "Waiting for a free connection to " + ae);
 
-						logger.warn("Found cached copy of images for "
-								+ studyUid + " for " + job + " in directory "
-								+ studyDir + " with more images that expected. "
-								+ "Expected " + expectedCount + ", found " + dirCount + ".  "
-								+ "Going to skip C-MOVE and wait for all images to arrive.");
+						pool.requeue(job, findRsps);
 
-						// We don't really know how many images to expect
-						expectedCount = 0;
+						return;
 					}
-					else
-					{
-						// Do the C-MOVE
 
-						CMoveResponse moveRsp =
-								CMove.retrieveStudy(device, job, studyUid, expectedCount);
-						if (moveRsp == null)
+					// With C-GET the objects arrive on the same association, 
+					// so they've all been saved by the time the C-GET returns
+					boolean cget = CGet.isEnabled(device);
+
+					JobIndex.addStudy(job, studyUid);
+					JobTimeline.addStudy(job, ae, expectedCount);
+
+					StudyArrivals arrivals = StudyArrivals.register(studyDir);
+					try
+					{
+						if (expectedCount > 0 && dirCount > expectedCount)
 						{
-							logger.fatal("C-MOVE of study " + studyUid + " from " + ae
-									+ " for job " + job + " failed due to an unknown error");
+							// We got more images than expected, so let's just
+							// wait to see how many total we get
 
-							dao.updateStatus(job, Job.RSNA_DICOM_C_MOVE_FAILED,
-									"C-MOVE of study " + studyUid + " from "
-									+ ae + " failed due to an unknown error");
+							logger.warn("Found cached copy of images for "
+									+ studyUid + " for " + job + " in directory "
+									+ studyDir + " with more images that expected. "
+									+ "Expected " + expectedCount + ", found " + dirCount + ".  "
+									+ "Going to skip C-MOVE and wait for all images to arrive.");
 
-							return;
+							// We don't really know how many images to expect
+							expectedCount = 0;
 						}
 						else
 						{
-							int status = moveRsp.getStatus();
-							if (status != CommandUtils.SUCCESS)
-							{
-								String comment = moveRsp.getComments();
+							// Do the C-MOVE.  If part of the study was already
+							// received (e.g. this is a retry), only fetch the
+							// instances that are missing. 
 
-								logger.fatal("C-MOVE of study " + studyUid + " from "
-										+ ae + " for job " + job + " failed. Error code "
-										+ "returned by remote PACS is: " + status + ".  "
-										+ "Error comment returned by remote PACS is: " + comment);
+							JobTimeline.mark(job, Phase.MOVE_START);
 
-								dao.updateStatus(job, Job.RSNA_DICOM_C_MOVE_FAILED,
+							CMoveResponse moveRsp;
+							if (cget)
+							{
+								moveRsp = CGet.retrieveStudy(device, job,
+										studyUid, studyDir);
+							}
+							else if (dirCount > 0)
+							{
+								moveRsp = CMove.retrieveMissing(device, job,
+										studyUid, expectedCount, studyDir);
+							}
+							else
+							{
+								moveRsp = CMove.retrieveStudy(device, job,
+										studyUid, expectedCount);
+							}
+							if (moveRsp == null)
+							{
+								logger.fatal("C-MOVE of study " + studyUid + " from " + ae
+										+ " for job " + job + " failed due to an unknown error");
+
+								updateStatus(Job.RSNA_DICOM_C_MOVE_FAILED,
 										"C-MOVE of study " + studyUid + " from "
-										+ ae + " failed. Error code returned "
-										+ "by remote PACS is: " + status + ".  "
-										+ "Error comment returned by "
-										+ "remote PACS is: \"" + comment + "\".  ");
+										+ ae + " failed due to an unknown error");
 
 								return;
 							}
-						}
+							else
+							{
+								int status = moveRsp.getStatus();
+								if (status != CommandUtils.SUCCESS)
+								{
+									String comment = moveRsp.getComments();
+
+									logger.fatal("C-MOVE of study " + studyUid + " from "
+											+ ae + " for job " + job + " failed. Error code "
+											+ "returned by remote PACS is: " + status + ".  "
+											+ "Error comment returned by remote PACS is: " + comment);
+
+									updateStatus(Job.RSNA_DICOM_C_MOVE_FAILED,
+											"C-MOVE of study " + studyUid + " from "
+											+ ae + " failed. Error code returned "
+											+ "by remote PACS is: " + status + ".  "
+											+ "Error comment returned by "
+											+ "remote PACS is: \"" + comment + "\".  ");
+
+									return;
+								}
+							}
 
-						// Make sure we actually got the expected number of images
-						dirCount = FileUtil.getFileCount(studyDir);
-						if (expectedCount > 0 && dirCount == expectedCount)
-						{
-							logger.info("Received " + dirCount + " objects "
-									+ "for study " + studyUid + " from " + ae + " "
-									+ "for " + job);
+							// Make sure we actually got the expected number of images
+							dirCount = arrivals.getCount();
+							if (expectedCount > 0 && dirCount == expectedCount)
+							{
+								logger.info("Received " + dirCount + " objects "
+										+ "for study " + studyUid + " from " + ae + " "
+										+ "for " + job);
 
-							continue;
+								continue;
+							}
 						}
-					}
 
-					// Wait to see if images arrive at a later point in time
-					// Some PACS systems (e.g. Intelerad) do an asynchronous
-					// C-MOVE
-					ConfigurationDao configDao = new ConfigurationDao();
-					String config = configDao.getConfiguration("fail-on-incomplete-study");
-					boolean fail = Boolean.parseBoolean(config);
+						// Wait to see if images arrive at a later point in time
+						// Some PACS systems (e.g. Intelerad) do an asynchronous
+						// C-MOVE
+						boolean fail = ConfigCache.getBoolean("fail-on-incomplete-study", false);
 
-					dirCount = waitForImages(studyDir, expectedCount);
-					if (dirCount == 0)
-					{
-						// Nothing arrived so just mark the job as failed
-						logger.warn("Retrieval of study " + studyUid + " from "
-								+ ae + " for " + job + " failed.  "
-								+ "No images were received.");
+						dirCount = cget ? arrivals.getCount()
+								: waitForImages(studyDir, ae, arrivals, expectedCount);
+						if (dirCount == 0)
+						{
+							// Nothing arrived so just mark the job as failed
+							logger.warn("Retrieval of study " + studyUid + " from "
+									+ ae + " for " + job + " failed.  "
+									+ "No images were received.");
 
-						dao.updateStatus(job, Job.RSNA_DICOM_C_MOVE_FAILED,
-								"Retrieval of study " + studyUid + " from "
-								+ ae + " failed.  No images were received.");
+							updateStatus(Job.RSNA_DICOM_C_MOVE_FAILED,
+									"Retrieval of study " + studyUid + " from "
+									+ ae + " failed.  No images were received.");
 
-						return;
-					}
-					else if (expectedCount > 0 && fail && dirCount < expectedCount)
-					{
-						// We got fewer images than expected. 
-						logger.warn("Retrieval of study " + studyUid + " from "
-								+ ae + " for " + job + " failed.  "
-								+ "Only " + dirCount + " of " + expectedCount
-								+ " images were received.");
+							return;
+						}
+						else if (expectedCount > 0 && fail && dirCount < expectedCount)
+						{
+							// We got fewer images than expected. 
+							logger.warn("Retrieval of study " + studyUid + " from "
+									+ ae + " for " + job + " failed.  "
+									+ "Only " + dirCount + " of " + expectedCount
+									+ " images were received.");
 
-						dao.updateStatus(job, Job.RSNA_DICOM_C_MOVE_FAILED,
-								"Retrieval of study " + studyUid + " from "
-								+ ae + " failed. Only " + dirCount
-								+ " of " + expectedCount + " images were received.");
+							updateStatus(Job.RSNA_DICOM_C_MOVE_FAILED,
+									"Retrieval of study " + studyUid + " from "
+									+ ae + " failed. Only " + dirCount
+									+ " of " + expectedCount + " images were received.");
 
-						return;
-					}
-					else
-					{
-						// We're done, go on to the next study (if any)
-						
-						if (expectedCount > 0 && dirCount < expectedCount)
-						{
-							logger.warn("Retrieval of study " + studyUid + " for "
-									+ job + " was partially completed.  A total of " 
-									+ dirCount + " out of " + expectedCount
-									+ " images were received and stored in " + studyDir);
+							return;
 						}
 						else
-						{							
-							logger.info("Retrieval of study " + studyUid + " for "
-									+ job + " was successful.  A total of " + dirCount
-									+ " images were received and stored in " + studyDir);
+						{
+							// We're done, go on to the next study (if any)
+						
+							if (expectedCount > 0 && dirCount < expectedCount)
+							{
+								logger.warn("Retrieval of study " + studyUid + " for "
+										+ job + " was partially completed.  A total of " 
+										+ dirCount + " out of " + expectedCount
+										+ " images were received and stored in " + studyDir);
+							}
+							else
+							{							
+								logger.info("Retrieval of study " + studyUid + " for "
+										+ job + " was successful.  A total of " + dirCount
+										+ " images were received and stored in " + studyDir);
+							}
+
+							continue;
 						}
+					}
+					finally
+					{
+						StudyArrivals.unregister(studyDir);
 
-						continue;
+						pool.release(device);
 					}
 				}
 
-				dao.updateStatus(job, Job.RSNA_WAITING_FOR_TRANSFER_CONTENT);
+				updateStatus(Job.RSNA_WAITING_FOR_TRANSFER_CONTENT);
 
 				logger.info("Successfully processed " + job);
 			}
@@ -313,7 +434,7 @@ class Worker extends Thread
 			{
 				logger.error("Uncaught exception while processing job " + job, ex);
 
-				dao.updateStatus(job, Job.RSNA_DICOM_C_MOVE_FAILED, ex);
+				updateStatus(Job.RSNA_DICOM_C_MOVE_FAILED, ex);
 			}
 		}
 		catch (SQLException ex)
@@ -326,17 +447,32 @@ class Worker extends Thread
 		}
 	}
 
-	@SuppressWarnings("SleepWhileInLoop")
-	private int waitForImages(File dir, int expected) throws SQLException, InterruptedException
+	private int waitForImages(File dir, String ae, StudyArrivals arrivals, 
+			int expected) throws SQLException, InterruptedException
 	{
-		int current = FileUtil.getFileCount(dir);
-		int prev = current;
+		JfrEvent event = JfrEvent.begin(JfrEvent.Type.WAIT_FOR_IMAGES);
+		try
+		{
+			int count = waitForImages(dir, arrivals, expected);
+			event.setOutcome((expected > 0 && count < expected)
+					? JfrEvent.INCOMPLETE : JfrEvent.SUCCESS);
 
+			return count;
+		}
+		finally
+		{
+			event.commit(job.getJobId(), ae, 0, arrivals.getCount());
+		}
+	}
+
+	private int waitForImages(File dir, StudyArrivals arrivals, int expected)
+			throws SQLException, InterruptedException
+	{
+		int current = arrivals.getCount();
+		int prev = current;
 
-		ConfigurationDao config = new ConfigurationDao();
-		String str = config.getConfiguration("retrieve-timeout-in-secs");
 
-		long timeout = NumberUtils.toLong(str, 600) * 1000L;
+		long timeout = ConfigCache.getLong("retrieve-timeout-in-secs", 600) * 1000L;
 		long start = System.currentTimeMillis();
 		long now = System.currentTimeMillis();
 		long elapsed = now - start;
@@ -344,7 +480,6 @@ class Worker extends Thread
 
 		while (elapsed < timeout)
 		{
-			current = FileUtil.getFileCount(dir);
 			if (expected > 0 && current >= expected)
 				return current;
 
@@ -376,14 +511,54 @@ class Worker extends Thread
 
 			long remaining = (timeout - elapsed) / 1000L;
 
-			dao.updateComments(job, Job.RSNA_STARTED_DICOM_C_MOVE,
-					"Waiting for images. Timeout expires in " + remaining + " secs.");
+			JobProgress.update(job, "Waiting for images. Timeout expires in " 
+					+ remaining + " secs.");
 
-			sleep(1000);
+			// Wakes up as soon as an image arrives
+			current = arrivals.awaitChange(current, 1000);
 		}
 
 
 		return current;
 	}
 
+	//
+	// Any pending progress comment has to be discarded before the status is
+	// changed, otherwise it could overwrite the new status.  The job also
+	// stops receiving objects once its status changes, so this is where its
+	// timeline ends. 
+	//
+	private void updateStatus(int status) throws SQLException
+	{
+		JobProgress.clear(job);
+		JobIndex.remove(job);
+		JobTimeline.finish(job, status);
+
+		long start = System.currentTimeMillis();
+		dao.updateStatus(job, status);
+		Metrics.db("updateStatus").updateSince(start);
+	}
+
+	private void updateStatus(int status, String comments) throws SQLException
+	{
+		JobProgress.clear(job);
+		JobIndex.remove(job);
+		JobTimeline.finish(job, status);
+
+		long start = System.currentTimeMillis();
+		dao.updateStatus(job, status, comments);
+		Metrics.db("updateStatus").updateSince(start);
+	}
+
+	private void updateStatus(int status, Exception ex) throws SQLException
+	{
+		JobProgress.clear(job);
+		JobIndex.remove(job);
+		JobTimeline.finish(job, status);
+
+		long start = System.currentTimeMillis();
+		dao.updateStatus(job, status, ex);
+		Metrics.db("updateStatus").updateSince(start);
+	}
+
 }
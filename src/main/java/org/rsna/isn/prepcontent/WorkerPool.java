@@ -0,0 +1,852 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.log4j.Logger;
+import org.rsna.isn.domain.Device;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.dcm.CFindResponse;
+import org.rsna.isn.prepcontent.util.Metrics;
+
+/**
+ * Fixed size pool of worker threads.  The jobs are run by a 
+ * ThreadPoolExecutor, but they're only handed to it when a thread is free, 
+ * so the order is decided by the queues in front of it.  Jobs are grouped 
+ * by the device they were last retrieved from and the devices are served 
+ * round robin, so a slow device can't take up all the workers while another
+ * device sits idle. 
+ * Jobs for a device that is at its retrieval limit stay in the queue until 
+ * a slot frees up, and the slot is reserved for the job when it's handed to
+ * a worker.  Jobs that haven't been retrieved yet are served as if they 
+ * were for a device of their own. 
+ * <p>
+ * Within a device, jobs are queued in priority order: jobs
+ * that have failed the fewest times go first, then jobs for smaller 
+ * studies (if the size is known from a previous attempt), then jobs for
+ * older exams.  Jobs whose size isn't known yet go after jobs with a known
+ * size.  The failure counts and sizes are saved to a file so they survive 
+ * a restart. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class WorkerPool
+{
+	private static final Logger logger = Logger.getLogger(WorkerPool.class);
+
+	private static final int MAX_STATS = 10000;
+
+	/**
+	 * The size of a job that hasn't been queried yet
+	 */
+	static final int UNKNOWN_SIZE = -1;
+
+	/**
+	 * The queue for jobs whose device isn't known yet
+	 */
+	private static final String UNKNOWN_DEVICE = "";
+
+	private final int size;
+
+	private final ThreadPoolExecutor executor;
+
+	private final File statsFile;
+
+	private final ConcurrentMap<Integer, QueuedJob> jobs = new ConcurrentHashMap<Integer, QueuedJob>();
+
+	private final Map<Integer, JobStats> stats = Collections.synchronizedMap(
+			new LinkedHashMap<Integer, JobStats>(16, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, JobStats> eldest)
+				{
+					return size() > MAX_STATS;
+				}
+
+			});
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final Queue<Integer> completed = new ConcurrentLinkedQueue<Integer>();
+
+	private final DeviceLimiter limiter;
+
+	private final WakeupScheduler scheduler;
+
+	/**
+	 * Jobs put aside by requeueLater until their wake up is due
+	 */
+	private final ConcurrentMap<Integer, QueuedJob> parked = new ConcurrentHashMap<Integer, QueuedJob>();
+
+	/**
+	 * Jobs waiting for a worker, by device.  The device that was served last
+	 * is moved to the end, so iterating over the map visits the devices in 
+	 * round robin order.  Guarded by lock. 
+	 */
+	private final Map<String, PriorityQueue<QueuedJob>> queues = 
+			new LinkedHashMap<String, PriorityQueue<QueuedJob>>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Jobs handed to the executor that haven't finished.  Guarded by lock. 
+	 */
+	private int running;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	WorkerPool(int size, DeviceLimiter limiter)
+	{
+		this(size, limiter, new WakeupScheduler(), null);
+	}
+
+	/**
+	 * @param size The number of worker threads
+	 * @param limiter Limits the number of retrievals per device
+	 * @param scheduler Wakes up jobs put aside by requeueLater.  The monitor
+	 * must hand the REQUEUE wake ups back to resume. 
+	 * @param statsFile The file the failure counts and sizes are saved to or
+	 * null if they shouldn't be saved
+	 */
+	WorkerPool(int size, DeviceLimiter limiter, WakeupScheduler scheduler, 
+			File statsFile)
+	{
+		this.size = size;
+		this.limiter = limiter;
+		this.scheduler = scheduler;
+		this.statsFile = statsFile;
+
+		executor = new ThreadPoolExecutor(Math.max(size, 1), Math.max(size, 1), 
+				0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new WorkerThreadFactory());
+
+		loadStats();
+
+		Metrics.gauge("worker_pool_size", "Number of worker threads").set(size);
+		Metrics.register(new Metrics.Gauge("worker_pool_active", 
+				"Number of workers processing a job")
+		{
+			@Override
+			public long getValue()
+			{
+				return getActiveCount();
+			}
+
+		});
+		Metrics.register(new Metrics.Gauge("worker_pool_queued", 
+				"Number of jobs waiting for a worker")
+		{
+			@Override
+			public long getValue()
+			{
+				return getQueueSize();
+			}
+
+		});
+	}
+
+	/**
+	 * Queue a job for processing.
+	 *
+	 * @param job The job to process
+	 * @return True if the job was queued, false if the job is already queued
+	 * or being processed. 
+	 */
+	boolean submit(Job job)
+	{
+		QueuedJob queued = new QueuedJob(job, prioritize(job), null);
+		if (jobs.putIfAbsent(job.getJobId(), queued) != null)
+			return false;
+
+		enqueue(queued);
+
+		return true;
+	}
+
+	/**
+	 * Put a job that is being processed back in the queue.  This is used 
+	 * when the job's device turns out to be at its limit.  The job stays 
+	 * active and is 
+	 * queued behind its device (if known), so it's only handed to a worker
+	 * again once the device has a free slot. This doesn't count as a failure.
+	 *
+	 * @param job The job
+	 * @param studies The studies found for the job.  They are handed to the
+	 * next worker so the devices don't have to be queried again.  If null, 
+	 * the devices are queried again. 
+	 */
+	void requeue(Job job, List<CFindResponse> studies)
+	{
+		QueuedJob queued = new QueuedJob(job, prioritize(job), studies);
+		jobs.put(job.getJobId(), queued);
+
+		enqueue(queued);
+	}
+
+	/**
+	 * Put a job that is being processed aside and queue it again once a
+	 * delay has passed.  This is used when some devices couldn't be queried
+	 * for the job's studies.  The job stays active while it waits, so the 
+	 * monitor doesn't submit it again.  This doesn't count as a failure.
+	 *
+	 * @param job The job
+	 * @param delay How long to wait (in milliseconds)
+	 */
+	void requeueLater(Job job, long delay)
+	{
+		QueuedJob queued = new QueuedJob(job, prioritize(job), null);
+		jobs.put(job.getJobId(), queued);
+		parked.put(job.getJobId(), queued);
+
+		scheduler.schedule(job.getJobId(), WakeupScheduler.Type.REQUEUE,
+				System.currentTimeMillis() + delay);
+	}
+
+	/**
+	 * Queue a job that was put aside by requeueLater. 
+	 *
+	 * @param jobId The job id
+	 * @return True if the job was queued, false if it wasn't put aside
+	 */
+	boolean resume(int jobId)
+	{
+		QueuedJob queued = parked.remove(jobId);
+		if (queued == null)
+			return false;
+
+		enqueue(queued);
+
+		return true;
+	}
+
+	/**
+	 * Record that some devices couldn't be queried for a job's studies. 
+	 *
+	 * @param job The job
+	 * @return The number of times in a row this has happened to the job
+	 */
+	int recordIncompleteFind(Job job)
+	{
+		return ++getStats(job.getJobId()).incompleteFinds;
+	}
+
+	/**
+	 * Reset the count kept by recordIncompleteFind.  This is called once
+	 * all devices have been queried or the job has given up. 
+	 *
+	 * @param job The job
+	 */
+	void clearIncompleteFinds(Job job)
+	{
+		getStats(job.getJobId()).incompleteFinds = 0;
+	}
+
+	/**
+	 * Check if a job is queued or being processed. 
+	 *
+	 * @param job The job to check
+	 * @return True if the job is queued or being processed
+	 */
+	boolean isActive(Job job)
+	{
+		return jobs.containsKey(job.getJobId());
+	}
+
+	/**
+	 * Get the ids of jobs that have finished processing since the last call.
+	 *
+	 * @return A list of job ids.  May be empty. 
+	 */
+	List<Integer> pollCompleted()
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+
+		Integer id;
+		while ((id = completed.poll()) != null)
+		{
+			ids.add(id);
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Record the number of images in a job's studies.  This is used to
+	 * prioritize the job if it needs to be retried. 
+	 *
+	 * @param job The job
+	 * @param count The number of images.  Devices that don't report image
+	 * counts return zero, in which case the size stays unknown.
+	 */
+	void setStudySize(Job job, int count)
+	{
+		if (count > 0)
+			getStats(job.getJobId()).size = count;
+	}
+
+	/**
+	 * Record that a job failed and will be retried.  Jobs that have failed
+	 * more often are queued behind other jobs.  Jobs that were only put back
+	 * in the queue (e.g. because their device was busy) don't count. 
+	 *
+	 * @param job The job
+	 */
+	void recordFailure(Job job)
+	{
+		getStats(job.getJobId()).failures++;
+
+		saveStats();
+	}
+
+	/**
+	 * Record the device a job is being retrieved from.  The next time the 
+	 * job is queued, it's queued behind that device. 
+	 *
+	 * @param job The job
+	 * @param aeTitle The AE title of the device
+	 */
+	void setDevice(Job job, String aeTitle)
+	{
+		getStats(job.getJobId()).device = aeTitle;
+	}
+
+	/**
+	 * Reserve a retrieval slot on a device for a job that is being processed.
+	 * If a slot was reserved for the job when it was handed to the worker, 
+	 * that slot is used.  Each successful call must be matched by a call to
+	 * release. 
+	 *
+	 * @param job The job
+	 * @param device The device
+	 * @return True if a slot was reserved, false if the device is at its limit
+	 * @throws SQLException If there was an error loading the limit for the
+	 * device
+	 */
+	boolean tryAcquire(Job job, Device device) throws SQLException
+	{
+		QueuedJob queued = jobs.get(job.getJobId());
+		if (queued != null && queued.useReservation(device.getAeTitle()))
+			return true;
+
+		return limiter.tryAcquire(device.getAeTitle());
+	}
+
+	/**
+	 * Release a slot reserved by tryAcquire.
+	 *
+	 * @param device The device
+	 */
+	void release(Device device)
+	{
+		release(device.getAeTitle());
+	}
+
+	int getActiveCount()
+	{
+		return active.get();
+	}
+
+	int getQueueSize()
+	{
+		return queued.get();
+	}
+
+	void shutdown(long timeout) throws InterruptedException
+	{
+		executor.shutdownNow();
+		executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+
+		saveStats();
+	}
+
+	/**
+	 * Work out where a job goes in the queue. 
+	 *
+	 * @param job The job
+	 * @return The job's priority
+	 */
+	Priority prioritize(Job job)
+	{
+		JobStats js = getStats(job.getJobId());
+
+		Exam exam = job.getExam();
+		Date date = (exam != null) ? exam.getStatusTimestamp() : null;
+		long timestamp = (date != null) ? date.getTime() : Long.MAX_VALUE;
+
+		return new Priority(js.failures, js.size, timestamp, sequence.getAndIncrement());
+	}
+
+	/**
+	 * Remove the next job that can be run from the queue.  The devices are 
+	 * visited in round robin order and devices that are at their limit are
+	 * skipped.  A slot is reserved on the job's device before it's returned.
+	 *
+	 * @return The next job or null if there are no jobs that can be run
+	 */
+	QueuedJob poll()
+	{
+		lock.lock();
+		try
+		{
+			Iterator<Map.Entry<String, PriorityQueue<QueuedJob>>> it = 
+					queues.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Map.Entry<String, PriorityQueue<QueuedJob>> entry = it.next();
+
+				String device = entry.getKey();
+				if (!UNKNOWN_DEVICE.equals(device) && !reserve(device))
+					continue;
+
+				PriorityQueue<QueuedJob> queue = entry.getValue();
+				QueuedJob next = queue.poll();
+
+				// Move the device to the end of the line
+				it.remove();
+				if (!queue.isEmpty())
+					queues.put(device, queue);
+
+				if (!UNKNOWN_DEVICE.equals(device))
+					next.reserved = device;
+
+				queued.decrementAndGet();
+
+				return next;
+			}
+
+			return null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hand jobs to the executor while there are free threads and jobs that
+	 * can be run. 
+	 */
+	private void dispatch()
+	{
+		lock.lock();
+		try
+		{
+			while (running < size && !executor.isShutdown())
+			{
+				QueuedJob next = poll();
+				if (next == null)
+					break;
+
+				running++;
+				executor.execute(next);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(QueuedJob queued)
+	{
+		String device = getStats(queued.job.getJobId()).device;
+		if (device == null)
+			device = UNKNOWN_DEVICE;
+
+		lock.lock();
+		try
+		{
+			PriorityQueue<QueuedJob> queue = queues.get(device);
+			if (queue == null)
+			{
+				queue = new PriorityQueue<QueuedJob>();
+				queues.put(device, queue);
+			}
+
+			queue.add(queued);
+			this.queued.incrementAndGet();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		dispatch();
+	}
+
+	private boolean reserve(String aeTitle)
+	{
+		try
+		{
+			return limiter.tryAcquire(aeTitle);
+		}
+		catch (SQLException ex)
+		{
+			logger.warn("Unable to load the retrieval limit for " + aeTitle, ex);
+
+			return false;
+		}
+	}
+
+	private void release(String aeTitle)
+	{
+		limiter.release(aeTitle);
+
+		// Jobs queued behind the device may now be runnable
+		dispatch();
+	}
+
+	/**
+	 * Load the failure counts and sizes saved by an earlier run. 
+	 */
+	private void loadStats()
+	{
+		if (statsFile == null || !statsFile.exists())
+			return;
+
+		Properties props = new Properties();
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(statsFile);
+			props.load(in);
+		}
+		catch (IOException ex)
+		{
+			logger.warn("Unable to load job stats from " + statsFile, ex);
+
+			return;
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+
+		for (String key : props.stringPropertyNames())
+		{
+			String values[] = StringUtils.splitPreserveAllTokens(props.getProperty(key), ',');
+			if (values.length < 3)
+				continue;
+
+			JobStats js = getStats(NumberUtils.toInt(key));
+			js.failures = NumberUtils.toInt(values[0]);
+			js.size = NumberUtils.toInt(values[1], UNKNOWN_SIZE);
+			js.device = StringUtils.defaultIfEmpty(values[2], null);
+		}
+
+		logger.info("Loaded stats for " + props.size() + " job(s) from " + statsFile);
+	}
+
+	/**
+	 * Save the failure counts and sizes of the jobs that have them.  The 
+	 * file is written to a temp file first so a crash can't leave it half 
+	 * written. 
+	 */
+	private synchronized void saveStats()
+	{
+		if (statsFile == null)
+			return;
+
+		Properties props = new Properties();
+		synchronized (stats)
+		{
+			for (Map.Entry<Integer, JobStats> entry : stats.entrySet())
+			{
+				JobStats js = entry.getValue();
+				if (js.failures == 0 && js.size == UNKNOWN_SIZE)
+					continue;
+
+				props.setProperty(entry.getKey().toString(), js.failures + "," 
+						+ js.size + "," + StringUtils.defaultString(js.device));
+			}
+		}
+
+		File tmp = new File(statsFile.getPath() + ".tmp");
+		OutputStream out = null;
+		try
+		{
+			out = new FileOutputStream(tmp);
+			props.store(out, "Failure count, size and device of each job");
+			out.close();
+			out = null;
+
+			Files.move(tmp.toPath(), statsFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException ex)
+		{
+			logger.warn("Unable to save job stats to " + statsFile, ex);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private JobStats getStats(int jobId)
+	{
+		synchronized (stats)
+		{
+			JobStats js = stats.get(jobId);
+			if (js == null)
+			{
+				js = new JobStats();
+
+				stats.put(jobId, js);
+			}
+
+			return js;
+		}
+	}
+
+	private static class JobStats
+	{
+		private volatile int failures;
+
+		private volatile int size = UNKNOWN_SIZE;
+
+		private volatile String device;
+
+		private volatile int incompleteFinds;
+
+	}
+
+	/**
+	 * The position of a job in the queue. 
+	 */
+	static class Priority implements Comparable<Priority>
+	{
+		private final int failures;
+
+		private final int size;
+
+		private final long timestamp;
+
+		private final long seq;
+
+		/**
+		 * @param failures The number of times the job has failed
+		 * @param size The number of images in the job's studies or 
+		 * UNKNOWN_SIZE
+		 * @param timestamp When the exam's status last changed
+		 * @param seq Breaks ties between otherwise equal jobs
+		 */
+		Priority(int failures, int size, long timestamp, long seq)
+		{
+			this.failures = failures;
+			this.size = size;
+			this.timestamp = timestamp;
+			this.seq = seq;
+		}
+
+		int getFailures()
+		{
+			return failures;
+		}
+
+		@Override
+		public int compareTo(Priority o)
+		{
+			if (failures != o.failures)
+				return failures < o.failures ? -1 : 1;
+
+			if (size != o.size)
+			{
+				if (size == UNKNOWN_SIZE)
+					return 1;
+				else if (o.size == UNKNOWN_SIZE)
+					return -1;
+				else
+					return size < o.size ? -1 : 1;
+			}
+
+			if (timestamp != o.timestamp)
+				return timestamp < o.timestamp ? -1 : 1;
+
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+
+	}
+
+	/**
+	 * A job waiting for or being processed by a worker. 
+	 */
+	class QueuedJob implements Comparable<QueuedJob>, Runnable
+	{
+		private final Job job;
+
+		private final Priority priority;
+
+		private final List<CFindResponse> studies;
+
+		/**
+		 * The device a slot was reserved on when the job was taken off the 
+		 * queue.  Cleared once the worker uses or gives back the slot. 
+		 */
+		private volatile String reserved;
+
+		private QueuedJob(Job job, Priority priority, List<CFindResponse> studies)
+		{
+			this.job = job;
+			this.priority = priority;
+			this.studies = studies;
+		}
+
+		Job getJob()
+		{
+			return job;
+		}
+
+		String getReserved()
+		{
+			return reserved;
+		}
+
+		private synchronized boolean useReservation(String aeTitle)
+		{
+			if (!aeTitle.equals(reserved))
+				return false;
+
+			reserved = null;
+
+			return true;
+		}
+
+		private synchronized void releaseReservation()
+		{
+			if (reserved != null)
+			{
+				release(reserved);
+
+				reserved = null;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			Thread thread = Thread.currentThread();
+			String name = thread.getName();
+
+			active.incrementAndGet();
+			try
+			{
+				thread.setName("worker-" + job.getJobId());
+
+				new Worker(job, WorkerPool.this, studies).run();
+			}
+			catch (Throwable ex)
+			{
+				logger.fatal("Uncaught exception while processing job " + job, ex);
+			}
+			finally
+			{
+				// The worker didn't need the slot (e.g. the images were 
+				// already on disk)
+				releaseReservation();
+
+				// If the job was requeued, it's still active
+				if (jobs.remove(job.getJobId(), this))
+				{
+					completed.add(job.getJobId());
+
+					// Let the monitor know the job has finished
+					JobEvents.signal();
+				}
+
+				active.decrementAndGet();
+
+				thread.setName(name);
+
+				lock.lock();
+				try
+				{
+					running--;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+
+				dispatch();
+			}
+		}
+
+		@Override
+		public int compareTo(QueuedJob o)
+		{
+			return priority.compareTo(o.priority);
+		}
+
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, "worker-pool-" + count.incrementAndGet());
+		}
+
+	}
+
+}
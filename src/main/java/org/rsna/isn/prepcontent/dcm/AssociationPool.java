@@ -0,0 +1,249 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.log4j.Logger;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.ConfigurationException;
+import org.dcm4che2.net.TransferCapability;
+import org.rsna.isn.domain.Device;
+
+/**
+ * Pool of open associations to remote devices.  Associations are keyed by 
+ * device and by the set of transfer capabilities they were negotiated with,
+ * and are closed after they've been idle for a while. 
+ * <p>
+ * Pooling is disabled until {@link #start(long, int)} is called.  Until then 
+ * every borrow opens a new association and every return releases it. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class AssociationPool
+{
+	private static final Logger logger = Logger.getLogger(AssociationPool.class);
+
+	private static final Map<String, LinkedList<Idle>> pool = new HashMap<String, LinkedList<Idle>>();
+
+	private static long idleTimeout = 0;
+
+	private static int maxIdle = 0;
+
+	private static Timer timer;
+
+	private AssociationPool()
+	{
+	}
+
+	/**
+	 * Get an association to a device.  An idle association is reused if one
+	 * is available, otherwise a new association is opened. 
+	 *
+	 * @param device The device
+	 * @param capabilities The transfer capabilities to negotiate
+	 * @param threadName The name of the thread used to open a new association
+	 * @return An open association
+	 */
+	static Association borrow(Device device, TransferCapability[] capabilities,
+			String threadName) throws SQLException, ConfigurationException,
+			IOException, InterruptedException
+	{
+		String key = getKey(device, capabilities);
+
+		while (true)
+		{
+			Idle idle;
+			synchronized (pool)
+			{
+				LinkedList<Idle> list = pool.get(key);
+				idle = (list != null) ? list.pollFirst() : null;
+			}
+
+			if (idle == null)
+				break;
+
+			if (idle.assoc.isReadyForDataTransfer() && !idle.isExpired())
+			{
+				logger.debug("Reusing association to " + device.getAeTitle());
+
+				return idle.assoc;
+			}
+
+			close(idle.assoc);
+		}
+
+		return DcmUtil.connect(device, capabilities, threadName);
+	}
+
+	/**
+	 * Return an association to the pool. 
+	 *
+	 * @param device The device
+	 * @param capabilities The transfer capabilities the association was 
+	 * opened with
+	 * @param assoc The association
+	 * @param reusable False if the association is in an unknown state (e.g. 
+	 * an error occurred) and should be closed
+	 */
+	static void giveBack(Device device, TransferCapability[] capabilities,
+			Association assoc, boolean reusable)
+	{
+		if (reusable && idleTimeout > 0 && assoc.isReadyForDataTransfer())
+		{
+			String key = getKey(device, capabilities);
+			synchronized (pool)
+			{
+				LinkedList<Idle> list = pool.get(key);
+				if (list == null)
+				{
+					list = new LinkedList<Idle>();
+
+					pool.put(key, list);
+				}
+
+				if (list.size() < maxIdle)
+				{
+					list.addFirst(new Idle(assoc));
+
+					return;
+				}
+			}
+		}
+
+		close(assoc);
+	}
+
+	/**
+	 * Enable pooling. 
+	 *
+	 * @param timeout How long an association can be idle before it's closed
+	 * (in milliseconds)
+	 * @param max The max number of idle associations per device
+	 */
+	public static synchronized void start(long timeout, int max)
+	{
+		if (timer != null || timeout <= 0 || max <= 0)
+			return;
+
+		idleTimeout = timeout;
+		maxIdle = max;
+
+		timer = new Timer("association-pool", true);
+		timer.schedule(new EvictTask(), timeout, Math.max(1000, timeout / 2));
+	}
+
+	private static void close(Association assoc)
+	{
+		try
+		{
+			assoc.release(true);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex)
+		{
+			logger.debug("Unable to release association", ex);
+
+			assoc.abort();
+		}
+	}
+
+	private static String getKey(Device device, TransferCapability[] capabilities)
+	{
+		StringBuilder key = new StringBuilder();
+		key.append(device.getAeTitle()).append('@')
+				.append(device.getHost()).append(':').append(device.getPort());
+
+		for (TransferCapability tc : capabilities)
+		{
+			key.append('/').append(tc.getSopClass());
+		}
+
+		return key.toString();
+	}
+
+	private static class Idle
+	{
+		private final Association assoc;
+
+		private final long since = System.currentTimeMillis();
+
+		private Idle(Association assoc)
+		{
+			this.assoc = assoc;
+		}
+
+		private boolean isExpired()
+		{
+			return System.currentTimeMillis() - since >= idleTimeout;
+		}
+
+	}
+
+	private static class EvictTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			List<Association> expired = new ArrayList<Association>();
+			synchronized (pool)
+			{
+				for (LinkedList<Idle> list : pool.values())
+				{
+					Iterator<Idle> it = list.iterator();
+					while (it.hasNext())
+					{
+						Idle idle = it.next();
+						if (idle.isExpired() || !idle.assoc.isReadyForDataTransfer())
+						{
+							expired.add(idle.assoc);
+
+							it.remove();
+						}
+					}
+				}
+			}
+
+			for (Association assoc : expired)
+			{
+				close(assoc);
+			}
+		}
+
+	}
+
+}
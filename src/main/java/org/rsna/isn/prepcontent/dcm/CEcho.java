@@ -26,9 +26,9 @@ package org.rsna.isn.prepcontent.dcm;
 import java.sql.SQLException;
 import java.util.Set;
 import org.dcm4che2.tool.dcmecho.DcmEcho;
-import org.rsna.isn.dao.ConfigurationDao;
 import org.rsna.isn.dao.DeviceDao;
 import org.rsna.isn.domain.Device;
+import org.rsna.isn.prepcontent.util.ConfigCache;
         
  /*
  * @author Clifton Li
@@ -40,10 +40,14 @@ public class CEcho
 {
         public static String CEcho(String host,int port,String aet) throws SQLException 
         {
-                    ConfigurationDao config = new ConfigurationDao();
-                    String device = config.getConfiguration("scu-ae-title");
+                    String device = ConfigCache.getString("scu-ae-title");
                     
-                    DcmEcho dcmecho = new DcmEcho(device);
+                    return CEcho(device, host, port, aet);
+        }
+        
+        public static String CEcho(String scuAeTitle, String host, int port, String aet)
+        {
+                    DcmEcho dcmecho = new DcmEcho(scuAeTitle);
                     dcmecho.setRemoteHost(host);
                     dcmecho.setRemotePort(port);
                     dcmecho.setCalledAET(aet, true);
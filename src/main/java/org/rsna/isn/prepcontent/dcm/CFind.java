@@ -26,8 +26,30 @@ package org.rsna.isn.prepcontent.dcm;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.dcm4che2.data.BasicDicomObject;
@@ -44,6 +66,8 @@ import org.rsna.isn.dao.DeviceDao;
 import org.rsna.isn.domain.Device;
 import org.rsna.isn.domain.Exam;
 import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.Metrics;
 
 /**
  * DICOM C-FIND utility class
@@ -63,8 +87,38 @@ public class CFind
 
 	private final Job job;
 
+	/**
+	 * Max number of C-FIND requests that are run in parallel
+	 */
+	private static final int MAX_THREADS = 16;
+
+	private static final ThreadPoolExecutor executor =
+			new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new FindThreadFactory("cfind-"));
+
+	/**
+	 * Runs the batch queries started by prefetch.  These wait for the 
+	 * per-device queries, so they can't share the executor above. 
+	 */
+	private static final ExecutorService batchExecutor =
+			Executors.newSingleThreadExecutor(new FindThreadFactory("cfind-batch-"));
+
+	/**
+	 * How long prefetched results are considered current
+	 */
+	private static final long PREFETCH_EXPIRATION = 10 * 60 * 1000L;
+
+	private static final Map<Integer, BatchFind> prefetched =
+			new ConcurrentHashMap<Integer, BatchFind>();
+
+	private volatile Association assoc;
+
+	private volatile boolean aborted;
+
 	static
 	{
+		executor.allowCoreThreadTimeOut(true);
+
 		String txs[] =
 		{
 			UID.ImplicitVRLittleEndian,
@@ -93,35 +147,101 @@ public class CFind
 	private List<CFindResponse> doFind() throws SQLException,
 			ConfigurationException, IOException, InterruptedException
 	{
-		List<CFindResponse> responses = new ArrayList<CFindResponse>();
-
 		Exam exam = job.getExam();
-		String mrn = exam.getMrn();
-		String accNum = exam.getAccNum();
 
-		String name = "cfind-" + mrn + "-" + accNum;
-		Association assoc = DcmUtil.connect(device, capabilities, name);
+		String name = "cfind-" + exam.getMrn() + "-" + exam.getAccNum();
+		Association assoc = borrow(device, name);
+		this.assoc = assoc;
 
+		boolean reusable = false;
 		try
 		{
-			TransferCapability tc =
-					DcmUtil.selectCapabilityAsScu(assoc, capabilities);
-			if (tc == null)
+			if (aborted)
+				throw new IOException("C-FIND of " + device.getAeTitle() + " aborted");
+
+			TransferCapability tc = selectCapability(assoc, device);
+
+			String cuid = tc.getSopClass();
+			String tsuid = tc.getTransferSyntax()[0];
+
+			JfrEvent event = JfrEvent.begin(JfrEvent.Type.CFIND);
+			List<CFindResponse> responses;
+			int count = 0;
+			try
 			{
-				throw new ConfigurationException("C-FIND not supported by "
-						+ device.getAeTitle());
+				long start = System.currentTimeMillis();
+				DimseRSP rsp = assoc.cfind(cuid, 0, createKeys(job), tsuid, Integer.MAX_VALUE);
+				responses = collect(rsp);
+				getLatency(device).updateSince(start);
+
+				count = responses.size();
+				event.setOutcome(JfrEvent.SUCCESS);
 			}
+			finally
+			{
+				event.commit(job.getJobId(), device.getAeTitle(), 0, count);
+			}
+
+			DeviceHealth.recordSuccess(device);
+
+			reusable = true;
+
+			return responses;
+		}
+		finally
+		{
+			this.assoc = null;
+
+			AssociationPool.giveBack(device, capabilities, assoc, reusable);
+		}
+	}
+
+	/**
+	 * Abort the query's association (if any).  Interrupting the thread 
+	 * doesn't unblock a socket read, so this is used to stop a query that 
+	 * has timed out. 
+	 */
+	private void abort()
+	{
+		aborted = true;
+
+		Association temp = assoc;
+		if (temp != null)
+			temp.abort();
+	}
+
+	/**
+	 * Find the series that make up a study on a device. 
+	 *
+	 * @param device The device
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 * @return A map of series UIDs to the number of instances in each series.
+	 * May be empty.
+	 * @throws CFindIncompleteException If the final response wasn't success,
+	 * i.e. the list may be incomplete
+	 */
+	static Map<String, Integer> findSeries(Device device, Job job, String studyUid)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		Association assoc = borrow(device, "cfind-series-" + studyUid);
+
+		boolean reusable = false;
+		try
+		{
+			TransferCapability tc = selectCapability(assoc, device);
 
 			String cuid = tc.getSopClass();
 			String tsuid = tc.getTransferSyntax()[0];
 
 			DicomObject keys = new BasicDicomObject();
-			keys.putString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
-			keys.putString(Tag.PatientID, VR.LO, mrn);
-			keys.putString(Tag.AccessionNumber, VR.SH, accNum);
-			keys.putNull(Tag.StudyInstanceUID, VR.UI);
-			keys.putNull(Tag.NumberOfStudyRelatedInstances, VR.IS);
+			keys.putString(Tag.QueryRetrieveLevel, VR.CS, "SERIES");
+			keys.putString(Tag.PatientID, VR.LO, job.getExam().getMrn());
+			keys.putString(Tag.StudyInstanceUID, VR.UI, studyUid);
+			keys.putNull(Tag.SeriesInstanceUID, VR.UI);
+			keys.putNull(Tag.NumberOfSeriesRelatedInstances, VR.IS);
 
+			Map<String, Integer> series = new LinkedHashMap<String, Integer>();
 
 			DimseRSP rsp = assoc.cfind(cuid, 0, keys, tsuid, Integer.MAX_VALUE);
 			while (rsp.next())
@@ -131,56 +251,742 @@ public class CFind
 				{
 					DicomObject dataset = rsp.getDataset();
 
-					String studyUid = dataset.getString(Tag.StudyInstanceUID);
-					int count = // Make sure we get a postive count
-							Math.max(0, dataset.getInt(Tag.NumberOfStudyRelatedInstances));
-
-					if (StringUtils.isNotBlank(studyUid))
+					String seriesUid = dataset.getString(Tag.SeriesInstanceUID);
+					if (StringUtils.isNotBlank(seriesUid))
 					{
-						CFindResponse response =
-								new CFindResponse(device, job, studyUid, count);
-						responses.add(response);
-
-						logger.info("Found study for " + job + " on " + device.getAeTitle() + ".  "
-								+ "Study UID is " + studyUid + ". Image count is " + count + ".");
-					}
-					else
-					{
-						logger.warn(device.getAeTitle() + " responded with blank study UID. "
-								+ "MRN is " + mrn + ", acc # is " + accNum);
+						series.put(seriesUid, 
+								Math.max(0, dataset.getInt(Tag.NumberOfSeriesRelatedInstances)));
 					}
 				}
 			}
 
-			return responses;
+			reusable = true;
+
+			checkStatus(rsp, device);
+
+			return series;
 		}
 		finally
 		{
-			assoc.release(true);
+			AssociationPool.giveBack(device, capabilities, assoc, reusable);
 		}
 	}
 
-	public static List<CFindResponse> findStudies(Job job)
+	/**
+	 * Find the instances that make up a series on a device. 
+	 *
+	 * @param device The device
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 * @param seriesUid The series instance UID
+	 * @return The SOP instance UIDs in the series.  May be empty.
+	 * @throws CFindIncompleteException If the final response wasn't success,
+	 * i.e. the list may be incomplete
+	 */
+	static List<String> findInstances(Device device, Job job, String studyUid,
+			String seriesUid) throws SQLException, ConfigurationException,
+			IOException, InterruptedException
+	{
+		Association assoc = borrow(device, "cfind-image-" + seriesUid);
+
+		boolean reusable = false;
+		try
+		{
+			TransferCapability tc = selectCapability(assoc, device);
+
+			String cuid = tc.getSopClass();
+			String tsuid = tc.getTransferSyntax()[0];
+
+			DicomObject keys = new BasicDicomObject();
+			keys.putString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+			keys.putString(Tag.PatientID, VR.LO, job.getExam().getMrn());
+			keys.putString(Tag.StudyInstanceUID, VR.UI, studyUid);
+			keys.putString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+			keys.putNull(Tag.SOPInstanceUID, VR.UI);
+
+			List<String> instances = new ArrayList<String>();
+
+			DimseRSP rsp = assoc.cfind(cuid, 0, keys, tsuid, Integer.MAX_VALUE);
+			while (rsp.next())
+			{
+				DicomObject cmd = rsp.getCommand();
+				if (CommandUtils.isPending(cmd))
+				{
+					String instanceUid = rsp.getDataset().getString(Tag.SOPInstanceUID);
+					if (StringUtils.isNotBlank(instanceUid))
+						instances.add(instanceUid);
+				}
+			}
+
+			reusable = true;
+
+			checkStatus(rsp, device);
+
+			return instances;
+		}
+		finally
+		{
+			AssociationPool.giveBack(device, capabilities, assoc, reusable);
+		}
+	}
+
+	private static void checkStatus(DimseRSP rsp, Device device)
+			throws CFindIncompleteException
+	{
+		int status = rsp.getCommand().getInt(Tag.Status);
+		if (status != CommandUtils.SUCCESS)
+		{
+			throw new CFindIncompleteException(
+					Collections.singletonList(device.getAeTitle()),
+					"returned status " + Integer.toHexString(status));
+		}
+	}
+
+	private static Association borrow(Device device, String name)
 			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		Association assoc;
+		try
+		{
+			assoc = AssociationPool.borrow(device, capabilities, name);
+		}
+		catch (IOException ex)
+		{
+			DeviceHealth.recordFailure(device);
+
+			throw ex;
+		}
+
+		return assoc;
+	}
+
+	private static Metrics.Histogram getLatency(Device device)
+	{
+		return Metrics.histogram("cfind_duration_ms", 
+				"Time taken by study level C-FIND requests", 
+				"device", device.getAeTitle());
+	}
+
+	private static TransferCapability selectCapability(Association assoc,
+			Device device) throws ConfigurationException
+	{
+		TransferCapability tc =
+				DcmUtil.selectCapabilityAsScu(assoc, capabilities);
+		if (tc == null)
+		{
+			throw new ConfigurationException("C-FIND not supported by "
+					+ device.getAeTitle());
+		}
+
+		return tc;
+	}
+
+	private static DicomObject createKeys(Job job)
+	{
+		Exam exam = job.getExam();
+
+		DicomObject keys = new BasicDicomObject();
+		keys.putString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
+		keys.putString(Tag.PatientID, VR.LO, exam.getMrn());
+		keys.putString(Tag.AccessionNumber, VR.SH, exam.getAccNum());
+		keys.putNull(Tag.StudyInstanceUID, VR.UI);
+		keys.putNull(Tag.NumberOfStudyRelatedInstances, VR.IS);
+
+		return keys;
+	}
+
+	private List<CFindResponse> collect(DimseRSP rsp)
+			throws IOException, InterruptedException
 	{
 		List<CFindResponse> responses = new ArrayList<CFindResponse>();
 
-		DeviceDao deviceDao = new DeviceDao();
+		Exam exam = job.getExam();
+		String mrn = exam.getMrn();
+		String accNum = exam.getAccNum();
+
+		while (rsp.next())
+		{
+			DicomObject cmd = rsp.getCommand();
+			if (CommandUtils.isPending(cmd))
+			{
+				DicomObject dataset = rsp.getDataset();
 
+				String studyUid = dataset.getString(Tag.StudyInstanceUID);
+				int count = // Make sure we get a postive count
+						Math.max(0, dataset.getInt(Tag.NumberOfStudyRelatedInstances));
+
+				if (StringUtils.isNotBlank(studyUid))
+				{
+					CFindResponse response =
+							new CFindResponse(device, job, studyUid, count);
+					responses.add(response);
+
+					logger.info("Found study for " + job + " on " + device.getAeTitle() + ".  "
+							+ "Study UID is " + studyUid + ". Image count is " + count + ".");
+				}
+				else
+				{
+					logger.warn(device.getAeTitle() + " responded with blank study UID. "
+							+ "MRN is " + mrn + ", acc # is " + accNum);
+				}
+			}
+		}
+
+		return responses;
+	}
+
+	/**
+	 * Find the studies for a job on all devices.  By default all devices are
+	 * queried in parallel.  If a device doesn't respond within the 
+	 * cfind-timeout-in-secs limit, its association is aborted and a 
+	 * CFindIncompleteException is thrown since the results are incomplete. 
+	 * Devices that are offline aren't queried.  If no studies were found on
+	 * the other devices, a CFindIncompleteException is thrown as well since
+	 * the images may be on an offline device.  If cfind-first-match is 
+	 * enabled, the search stops at the first device that returns studies 
+	 * with image counts. 
+	 *
+	 * @param job The job
+	 * @return A list of studies.  May be empty.
+	 * @throws SQLException If there was an error loading the configuration
+	 * @throws ConfigurationException If a device doesn't support C-FIND
+	 * @throws CFindIncompleteException If a device didn't respond in time or
+	 * no studies were found and a device is offline
+	 * @throws IOException If there was an error communicating with a device
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public static List<CFindResponse> findStudies(Job job)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		DeviceDao deviceDao = new DeviceDao();
 		Set<Device> devices = deviceDao.getDevices();
+
+		List<CFindResponse> responses = new ArrayList<CFindResponse>();
+
+		BatchFind batch = prefetched.remove(job.getJobId());
+		if (batch != null)
+		{
+			List<CFindResponse> found = batch.get(job);
+			if (found != null)
+			{
+				responses.addAll(found);
+
+				// Devices that can't pipeline requests weren't part of the
+				// batch, so they still need to be queried
+				devices = batch.getSkipped();
+			}
+		}
+
+		List<String> offline = new ArrayList<String>();
+		Set<Device> online = new HashSet<Device>();
+		for (Device device : devices)
+		{
+			if (DeviceHealth.isOnline(device))
+				online.add(device);
+			else
+				offline.add(device.getAeTitle());
+		}
+
+		if (!online.isEmpty())
+			findStudies(job, online, responses);
+
+		if (responses.isEmpty() && !offline.isEmpty())
+			throw new CFindIncompleteException(offline, "offline");
+
+		return responses;
+	}
+
+	private static void findStudies(Job job, Set<Device> devices,
+			List<CFindResponse> responses)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		boolean parallel = ConfigCache.getBoolean("parallel-cfind", true);
+		if (devices.size() < 2 || !parallel)
+		{
+			responses.addAll(findStudies(job, devices));
+
+			return;
+		}
+
+		long timeout = ConfigCache.getLong("cfind-timeout-in-secs", 30) * 1000L;
+		boolean firstMatch = ConfigCache.getBoolean("cfind-first-match", false);
+
+
+		CompletionService<List<CFindResponse>> service =
+				new ExecutorCompletionService<List<CFindResponse>>(executor);
+
+		Map<Future<List<CFindResponse>>, FindTask> futures =
+				new HashMap<Future<List<CFindResponse>>, FindTask>();
+		for (Device device : devices)
+		{
+			FindTask task = new FindTask(device, job);
+			futures.put(service.submit(task), task);
+		}
+
+
+		try
+		{
+			long end = System.currentTimeMillis() + timeout;
+			for (int i = 0; i < devices.size(); i++)
+			{
+				long remaining = end - System.currentTimeMillis();
+
+				Future<List<CFindResponse>> future =
+						service.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+				if (future == null)
+					break;
+
+				Device device = futures.remove(future).device;
+
+				List<CFindResponse> temp = getResult(future);
+				responses.addAll(temp);
+
+				if (firstMatch && isComplete(temp))
+				{
+					logger.info("Using studies from " + device.getAeTitle()
+							+ " for " + job + ". Skipping remaining devices.");
+
+					return;
+				}
+			}
+
+			if (!futures.isEmpty())
+			{
+				List<String> aeTitles = new ArrayList<String>();
+				for (FindTask task : futures.values())
+				{
+					aeTitles.add(task.device.getAeTitle());
+				}
+
+				throw CFindIncompleteException.timedOut(aeTitles, timeout);
+			}
+		}
+		finally
+		{
+			for (Map.Entry<Future<List<CFindResponse>>, FindTask> entry : futures.entrySet())
+			{
+				entry.getKey().cancel(true);
+				entry.getValue().abort();
+			}
+		}
+	}
+
+	/**
+	 * Start querying all devices for a batch of jobs in the background.  
+	 * Each device is sent all the queries over a single association.  The
+	 * results are picked up by {@link #findStudies(Job)}.  If the batch query 
+	 * fails, the jobs are queried individually instead.  If a device doesn't
+	 * respond in time, the jobs are requeued the same way as for an 
+	 * individual query.  Devices that only accept one outstanding operation
+	 * are left out of the batch since the requests would just be sent one 
+	 * after another.  Batching can be disabled by setting batch-cfind to 
+	 * false. 
+	 *
+	 * @param jobs The jobs that are about to be processed
+	 */
+	public static void prefetch(Collection<Job> jobs)
+	{
+		Iterator<BatchFind> it = prefetched.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().isExpired())
+				it.remove();
+		}
+
+		if (jobs.size() < 2)
+			return;
+
+		try
+		{
+			if (!ConfigCache.getBoolean("batch-cfind", true))
+				return;
+
+			// Only one outstanding operation is proposed, so no device 
+			// can accept a pipelined batch
+			if (ConfigCache.getInt("max-ops-invoked", 1) == 1)
+				return;
+
+			long timeout = ConfigCache.getLong("cfind-timeout-in-secs", 30) * 1000L;
+
+			BatchFind batch = new BatchFind(new ArrayList<Job>(jobs), timeout);
+			for (Job job : jobs)
+			{
+				prefetched.put(job.getJobId(), batch);
+			}
+
+			batchExecutor.execute(batch);
+		}
+		catch (SQLException ex)
+		{
+			logger.warn("Unable to start batch C-FIND.", ex);
+		}
+	}
+
+	private static List<CFindResponse> findStudies(Job job, Set<Device> devices)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		List<CFindResponse> responses = new ArrayList<CFindResponse>();
+
 		for (Device device : devices)
 		{
-                        String message = CEcho.CEcho(device.getHost(), device.getPort(), device.getAeTitle());
-                        
-                        if (message.startsWith("Successfully"))
-                        {
-                            CFind cfind = new CFind(device, job);
-                            List<CFindResponse> temp = cfind.doFind();
-                                
-                            responses.addAll(temp);
-                        }   
-                }                   
+			CFind cfind = new CFind(device, job);
+			List<CFindResponse> temp = cfind.doFind();
+
+			responses.addAll(temp);
+		}
+
 		return responses;
 	}
 
+	private static boolean isComplete(List<CFindResponse> responses)
+	{
+		if (responses.isEmpty())
+			return false;
+
+		for (CFindResponse response : responses)
+		{
+			if (response.getCount() <= 0)
+				return false;
+		}
+
+		return true;
+	}
+
+	private static List<CFindResponse> getResult(Future<List<CFindResponse>> future)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			else if (cause instanceof IOException) // Includes ConfigurationException
+				throw (IOException) cause;
+			else if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else
+				throw new IOException(cause);
+		}
+	}
+
+	private static class FindTask implements Callable<List<CFindResponse>>
+	{
+		private final Device device;
+
+		private final CFind cfind;
+
+		private FindTask(Device device, Job job)
+		{
+			this.device = device;
+			this.cfind = new CFind(device, job);
+		}
+
+		@Override
+		public List<CFindResponse> call() throws Exception
+		{
+			return cfind.doFind();
+		}
+
+		private void abort()
+		{
+			cfind.abort();
+		}
+
+	}
+
+	/**
+	 * Queries a device for several jobs over a single association.  All 
+	 * requests are sent before any of the responses are read, so they are
+	 * pipelined if the device accepted more than one outstanding operation
+	 * (see max-ops-invoked). 
+	 */
+	private static class BatchTask implements Callable<Map<Integer, List<CFindResponse>>>
+	{
+		private final Device device;
+
+		private final List<Job> jobs;
+
+		private volatile Association assoc;
+
+		private volatile boolean aborted;
+
+		private BatchTask(Device device, List<Job> jobs)
+		{
+			this.device = device;
+			this.jobs = jobs;
+		}
+
+		/**
+		 * Run the queries. 
+		 *
+		 * @return The studies found for each job or null if the device only 
+		 * accepts one outstanding operation
+		 */
+		@Override
+		public Map<Integer, List<CFindResponse>> call() throws Exception
+		{
+			Association assoc = borrow(device, "cfind-batch-" + device.getAeTitle());
+			this.assoc = assoc;
+
+			boolean reusable = false;
+			try
+			{
+				if (aborted)
+					throw new IOException("C-FIND of " + device.getAeTitle() + " aborted");
+
+				if (assoc.getMaxOpsInvoked() == 1)
+				{
+					logger.debug(device.getAeTitle() + " only accepts one outstanding "
+							+ "operation. Leaving it out of the batch C-FIND.");
+
+					reusable = true;
+
+					return null;
+				}
+
+				TransferCapability tc = selectCapability(assoc, device);
+
+				String cuid = tc.getSopClass();
+				String tsuid = tc.getTransferSyntax()[0];
+
+				// One event for the whole batch, so the job id is 0
+				JfrEvent event = JfrEvent.begin(JfrEvent.Type.CFIND);
+				Map<Integer, List<CFindResponse>> results =
+						new HashMap<Integer, List<CFindResponse>>();
+				try
+				{
+					long start = System.currentTimeMillis();
+					Map<Job, DimseRSP> rsps = new LinkedHashMap<Job, DimseRSP>();
+					for (Job job : jobs)
+					{
+						rsps.put(job, assoc.cfind(cuid, 0, createKeys(job), tsuid, Integer.MAX_VALUE));
+					}
+
+					for (Map.Entry<Job, DimseRSP> entry : rsps.entrySet())
+					{
+						Job job = entry.getKey();
+						CFind cfind = new CFind(device, job);
+
+						results.put(job.getJobId(), cfind.collect(entry.getValue()));
+
+						// Requests are pipelined, so each one has been 
+						// outstanding since the batch was sent
+						getLatency(device).updateSince(start);
+					}
+
+					event.setOutcome(JfrEvent.SUCCESS);
+				}
+				finally
+				{
+					// The count is the number of jobs that got a result
+					event.commit(0, device.getAeTitle(), 0, results.size());
+				}
+
+				DeviceHealth.recordSuccess(device);
+
+				logger.info("Queried " + device.getAeTitle() + " for "
+						+ jobs.size() + " jobs on one association.");
+
+				reusable = true;
+
+				return results;
+			}
+			finally
+			{
+				this.assoc = null;
+
+				AssociationPool.giveBack(device, capabilities, assoc, reusable);
+			}
+		}
+
+		private void abort()
+		{
+			aborted = true;
+
+			Association temp = assoc;
+			if (temp != null)
+				temp.abort();
+		}
+
+	}
+
+	private static class BatchFind implements Runnable
+	{
+		private final List<Job> jobs;
+
+		private final long timeout;
+
+		private final long created = System.currentTimeMillis();
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Map<Integer, List<CFindResponse>> results;
+
+		private final Set<Device> skipped = new HashSet<Device>();
+
+		private final List<String> timedOut = new ArrayList<String>();
+
+		private BatchFind(List<Job> jobs, long timeout)
+		{
+			this.jobs = jobs;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public void run()
+		{
+			Map<Future<Map<Integer, List<CFindResponse>>>, BatchTask> futures =
+					new HashMap<Future<Map<Integer, List<CFindResponse>>>, BatchTask>();
+			try
+			{
+				Map<Integer, List<CFindResponse>> temp =
+						new HashMap<Integer, List<CFindResponse>>();
+				for (Job job : jobs)
+				{
+					temp.put(job.getJobId(), new ArrayList<CFindResponse>());
+				}
+
+				DeviceDao deviceDao = new DeviceDao();
+				for (Device device : deviceDao.getDevices())
+				{
+					// Offline devices are sorted out by findStudies(Job)
+					if (DeviceHealth.isOnline(device))
+					{
+						BatchTask task = new BatchTask(device, jobs);
+						futures.put(executor.submit(task), task);
+					}
+					else
+					{
+						skipped.add(device);
+					}
+				}
+
+				long end = System.currentTimeMillis() + timeout;
+				for (Map.Entry<Future<Map<Integer, List<CFindResponse>>>, BatchTask> entry : futures.entrySet())
+				{
+					Device device = entry.getValue().device;
+
+					long remaining = end - System.currentTimeMillis();
+					try
+					{
+						Map<Integer, List<CFindResponse>> found = entry.getKey()
+								.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+						if (found == null)
+						{
+							skipped.add(device);
+
+							continue;
+						}
+
+						for (Map.Entry<Integer, List<CFindResponse>> e : found.entrySet())
+						{
+							temp.get(e.getKey()).addAll(e.getValue());
+						}
+					}
+					catch (TimeoutException ex)
+					{
+						logger.warn("Batch C-FIND of " + device.getAeTitle() 
+								+ " did not complete within " + (timeout / 1000) 
+								+ " secs. Jobs will be requeued.");
+
+						timedOut.add(device.getAeTitle());
+					}
+				}
+
+				results = temp;
+			}
+			catch (ExecutionException ex)
+			{
+				logger.warn("Batch C-FIND failed. Jobs will be queried individually.",
+						ex.getCause());
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (Exception ex)
+			{
+				logger.warn("Batch C-FIND failed. Jobs will be queried individually.", ex);
+			}
+			finally
+			{
+				for (Map.Entry<Future<Map<Integer, List<CFindResponse>>>, BatchTask> entry : futures.entrySet())
+				{
+					entry.getKey().cancel(true);
+					entry.getValue().abort();
+				}
+
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Get the results for a job.  Blocks until the batch completes. 
+		 *
+		 * @return The studies found for the job or null if the batch failed
+		 * or the results are stale. 
+		 * @throws CFindIncompleteException If a device didn't respond in time
+		 */
+		private List<CFindResponse> get(Job job) 
+				throws CFindIncompleteException, InterruptedException
+		{
+			done.await();
+
+			Map<Integer, List<CFindResponse>> temp = results;
+			if (temp == null || isExpired())
+				return null;
+
+			if (!timedOut.isEmpty())
+				throw CFindIncompleteException.timedOut(timedOut, timeout);
+
+			return temp.get(job.getJobId());
+		}
+
+		/**
+		 * Get the devices that were left out of the batch because they can't
+		 * pipeline requests or are offline.  Only valid once the batch has 
+		 * completed. 
+		 *
+		 * @return The devices.  May be empty. 
+		 */
+		private Set<Device> getSkipped()
+		{
+			return skipped;
+		}
+
+		private boolean isExpired()
+		{
+			return System.currentTimeMillis() - created > PREFETCH_EXPIRATION;
+		}
+
+	}
+
+	private static class FindThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final String prefix;
+
+		private FindThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+	}
+
 }
@@ -0,0 +1,85 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Thrown when one or more devices couldn't be queried, i.e. they didn't 
+ * respond to a C-FIND within the cfind-timeout-in-secs limit or they're 
+ * offline.  The images may be on those devices, so the job should be tried
+ * again later rather than failed for lack of images.  Also thrown when a
+ * series or image level C-FIND ends with a status other than success, 
+ * since the list of series or instances may be incomplete. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class CFindIncompleteException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> aeTitles;
+
+	/**
+	 * Create a new exception. 
+	 *
+	 * @param aeTitles The AE titles of the devices that couldn't be queried
+	 * @param reason Why they couldn't be queried, e.g. "are offline"
+	 */
+	public CFindIncompleteException(List<String> aeTitles, String reason)
+	{
+		super("C-FIND incomplete: " + StringUtils.join(aeTitles, ", ") 
+				+ " " + reason);
+
+		this.aeTitles = aeTitles;
+	}
+
+	/**
+	 * Create an exception for devices that didn't respond in time. 
+	 *
+	 * @param aeTitles The AE titles of the devices that didn't respond
+	 * @param timeout The timeout (in milliseconds)
+	 * @return The exception
+	 */
+	static CFindIncompleteException timedOut(List<String> aeTitles, long timeout)
+	{
+		return new CFindIncompleteException(aeTitles, 
+				"did not respond within " + (timeout / 1000) + " secs");
+	}
+
+	/**
+	 * Get the AE titles of the devices that couldn't be queried.
+	 *
+	 * @return the value of aeTitles
+	 */
+	public List<String> getAeTitles()
+	{
+		return aeTitles;
+	}
+
+}
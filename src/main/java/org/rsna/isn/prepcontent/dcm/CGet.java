@@ -0,0 +1,374 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.net.Association;
+import org.dcm4che2.net.CommandUtils;
+import org.dcm4che2.net.ConfigurationException;
+import org.dcm4che2.net.DicomServiceException;
+import org.dcm4che2.net.DimseRSPHandler;
+import org.dcm4che2.net.PDVInputStream;
+import org.dcm4che2.net.Status;
+import org.dcm4che2.net.TransferCapability;
+import org.dcm4che2.net.service.CStoreSCP;
+import org.dcm4che2.net.service.DicomService;
+import org.rsna.isn.domain.Device;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.JobTimeline;
+import org.rsna.isn.prepcontent.util.Metrics;
+import org.rsna.isn.util.Environment;
+import org.rsna.isn.util.FileUtil;
+
+/**
+ * DICOM C-GET utility class.  Unlike C-MOVE, the device sends the objects 
+ * back over the same association, so there's no need for the device to 
+ * connect to our SCP or for the objects to be matched to a job.  Objects are
+ * written straight into the study directory of the job. 
+ * <p>
+ * C-GET is used for the devices listed (by AE title) in the comma separated
+ * cget-devices setting. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class CGet
+{
+	private static final Logger logger = Logger.getLogger(CGet.class);
+
+	private static TransferCapability getCapabilities[] =
+			new TransferCapability[2];
+
+	private final Device device;
+
+	private final Job job;
+
+	private final String studyUid;
+
+	private final File studyDir;
+
+	static
+	{
+		String txs[] =
+		{
+			UID.ImplicitVRLittleEndian,
+			UID.ExplicitVRLittleEndian
+		};
+
+
+		TransferCapability patientRoot =
+				new TransferCapability(UID.PatientRootQueryRetrieveInformationModelGET,
+				txs, TransferCapability.SCU);
+		getCapabilities[0] = patientRoot;
+
+
+		TransferCapability studyRoot =
+				new TransferCapability(UID.StudyRootQueryRetrieveInformationModelGET,
+				txs, TransferCapability.SCU);
+		getCapabilities[1] = studyRoot;
+	}
+
+	private CGet(Device device, Job job, String studyUid, File studyDir)
+	{
+		this.device = device;
+		this.job = job;
+		this.studyUid = studyUid;
+		this.studyDir = studyDir;
+	}
+
+	private CMoveResponse doGet() throws SQLException, ConfigurationException,
+			IOException, InterruptedException
+	{
+		Exam exam = job.getExam();
+		String mrn = exam.getMrn();
+		String accNum = exam.getAccNum();
+
+
+		// Offer the storage SOP classes from scp.properties in the SCP role
+		// so the device can send the objects back on this association
+		Map<String, String[]> pcs = Scp.loadPresentationContexts();
+
+		List<TransferCapability> capabilities = new ArrayList<TransferCapability>();
+		for (TransferCapability tc : getCapabilities)
+		{
+			capabilities.add(tc);
+		}
+
+		for (Map.Entry<String, String[]> entry : pcs.entrySet())
+		{
+			capabilities.add(new TransferCapability(entry.getKey(),
+					entry.getValue(), TransferCapability.SCP));
+		}
+
+		String sopClassUids[] = pcs.keySet().toArray(new String[0]);
+		StoreHandler storeHandler = new StoreHandler(sopClassUids, Scp.getInstanceStore());
+
+
+		String name = "cget-" + mrn + "-" + accNum + "-" + studyUid;
+		Association assoc = DcmUtil.connect(device,
+				capabilities.toArray(new TransferCapability[0]), name, storeHandler);
+		try
+		{
+			TransferCapability tc =
+					DcmUtil.selectCapabilityAsScu(assoc, getCapabilities);
+			if (tc == null)
+			{
+				throw new ConfigurationException("C-GET not supported by "
+						+ device.getAeTitle());
+			}
+
+			String cuid = tc.getSopClass();
+			String tsuid = tc.getTransferSyntax()[0];
+
+			DicomObject keys = new BasicDicomObject();
+			keys.putString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
+			keys.putString(Tag.PatientID, VR.LO, mrn);
+			keys.putString(Tag.StudyInstanceUID, VR.UI, studyUid);
+
+			CGetHandler handler = new CGetHandler();
+
+			updateProgress("");
+
+			logger.info("Started C-GET of study " + studyUid
+					+ " from " + device.getAeTitle() + " for " + job);
+
+			JfrEvent event = JfrEvent.begin(JfrEvent.Type.CGET);
+			long start = System.currentTimeMillis();
+			try
+			{
+				assoc.cget(cuid, 0, keys, tsuid, handler);
+				assoc.waitForDimseRSP();
+
+				if (handler.response != null)
+					event.setOutcome(JfrEvent.status(handler.response.getStatus()));
+			}
+			finally
+			{
+				event.commit(job.getJobId(), device.getAeTitle(), 
+						storeHandler.bytes.get(), storeHandler.received.get());
+			}
+
+			Metrics.histogram("cget_duration_ms", "Time taken by C-GET requests", 
+					"device", device.getAeTitle()).updateSince(start);
+
+			logger.info("Completed C-GET of study " + studyUid
+					+ " from " + device.getAeTitle() + " for " + job);
+
+
+			return handler.response;
+		}
+		finally
+		{
+			assoc.release(true);
+		}
+	}
+
+	private void updateProgress(String msg)
+	{
+		JobProgress.update(job, "Retrieving study "
+				+ studyUid + " from " + device.getAeTitle() + ".  " + msg);
+	}
+
+	private class CGetHandler extends DimseRSPHandler
+	{
+		private CMoveResponse response;
+
+		@Override
+		public void onDimseRSP(Association as, DicomObject cmd, DicomObject data)
+		{
+			int status = cmd.getInt(Tag.Status);
+			String error = cmd.getString(Tag.ErrorComment, "");
+
+			response = new CMoveResponse(device, status, error);
+
+			if (CommandUtils.isPending(cmd))
+			{
+				int completed = cmd.getInt(Tag.NumberOfCompletedSuboperations);
+				int remaining = cmd.getInt(Tag.NumberOfRemainingSuboperations);
+				int warning = cmd.getInt(Tag.NumberOfWarningSuboperations);
+				int done = completed + warning;
+
+
+				int total = done + remaining;
+				if (total > 0)
+				{
+					String comments = "Received " + done + " of " + total + " objects.";
+					updateProgress(comments);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Handles the C-STORE sub-operations of a C-GET.  All objects belong to
+	 * the job the C-GET was issued for.
+	 */
+	private class StoreHandler extends DicomService implements CStoreSCP
+	{
+		private final InstanceStore store;
+
+		private final File tmpDir;
+
+		private final AtomicInteger received = new AtomicInteger();
+
+		private final AtomicLong bytes = new AtomicLong();
+
+		private StoreHandler(String[] sopClasses, InstanceStore store)
+		{
+			super(sopClasses);
+
+			this.store = store;
+
+			this.tmpDir = Environment.getTmpDir();
+		}
+
+		@Override
+		public void cstore(Association as, int pcid, DicomObject cmd,
+				PDVInputStream dataStream, String tsuid) throws DicomServiceException, IOException
+		{
+			String cuid = cmd.getString(Tag.AffectedSOPClassUID);
+			String iuid = cmd.getString(Tag.AffectedSOPInstanceUID);
+
+			SpooledInstance spooled = null;
+			try
+			{
+				spooled = SpooledInstance.spool(dataStream, cuid, iuid, tsuid, tmpDir);
+
+				String instanceUid = spooled.getHeader().getString(Tag.SOPInstanceUID);
+				if (StringUtils.isBlank(instanceUid))
+				{
+					logger.warn("SOP instance UID is empty");
+
+					throw new DicomServiceException(cmd,
+							Status.ProcessingFailure, "SOP instance UID is empty");
+				}
+
+				studyDir.mkdirs();
+
+				File stored = store.put(instanceUid, spooled);
+				File dcmFile = FileUtil.newFile(studyDir, instanceUid + ".dcm");
+				store.link(stored, dcmFile);
+
+				long length = stored.length();
+				received.incrementAndGet();
+				bytes.addAndGet(length);
+
+				Metrics.counter("cget_instances_total", "Objects received by C-GET",
+						"device", device.getAeTitle()).inc();
+				Metrics.counter("cget_bytes_total", "Bytes received by C-GET",
+						"device", device.getAeTitle()).add(length);
+
+				StudyArrivals.arrived(studyDir, dcmFile.getName());
+				JobTimeline.received(job, spooled.getHeader().getString(Tag.Modality),
+						length);
+
+				logger.debug("Saved file " + dcmFile + " for " + job);
+
+
+				as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
+			}
+			catch (IOException ex) // Includes DicomServiceException
+			{
+				throw ex;
+			}
+			catch (Throwable ex)
+			{
+				logger.warn("Unable to store object due to uncaught exception.", ex);
+
+				throw new DicomServiceException(cmd, Status.ProcessingFailure, ex.getMessage());
+			}
+			finally
+			{
+				if (spooled != null)
+					spooled.delete();
+			}
+		}
+
+	}
+
+	/**
+	 * Check if C-GET should be used to retrieve studies from a device.
+	 *
+	 * @param device The device
+	 * @return True if the device is listed in cget-devices
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	public static boolean isEnabled(Device device) throws SQLException
+	{
+		String devices = ConfigCache.getString("cget-devices");
+		if (StringUtils.isBlank(devices))
+			return false;
+
+		for (String ae : StringUtils.split(devices, ','))
+		{
+			if (ae.trim().equals(device.getAeTitle()))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Retrieve a study from a device using C-GET.  When this method returns, 
+	 * all the objects sent by the device have been saved to the study 
+	 * directory. 
+	 *
+	 * @param device The device to retrieve the study from
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 * @param studyDir The directory to save the objects to
+	 * @return The final C-GET response
+	 * @throws SQLException If there was an error loading the configuration
+	 * @throws ConfigurationException If the device doesn't support C-GET
+	 * @throws IOException If there was an error communicating with the device
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public static CMoveResponse retrieveStudy(Device device, Job job,
+			String studyUid, File studyDir) throws SQLException, 
+			ConfigurationException, IOException, InterruptedException
+	{
+		CGet cget = new CGet(device, job, studyUid, studyDir);
+
+		return cget.doGet();
+	}
+
+}
@@ -23,8 +23,25 @@
  */
 package org.rsna.isn.prepcontent.dcm;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
@@ -35,19 +52,20 @@ import org.dcm4che2.net.Association;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.ConfigurationException;
 import org.dcm4che2.net.DimseRSPHandler;
+import org.dcm4che2.net.Status;
 import org.dcm4che2.net.TransferCapability;
-import org.rsna.isn.dao.ConfigurationDao;
-import org.rsna.isn.dao.JobDao;
 import org.rsna.isn.domain.Device;
 import org.rsna.isn.domain.Exam;
 import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.Metrics;
 
 /**
  * DICOM C-MOVE utility class.
  *
  * @author Wyatt Tellis
  * @since 3.1.0
- * @version 3.1.0
+ * @version 5.0.0
  */
 public class CMove
 {
@@ -64,7 +82,20 @@ public class CMove
 
 	private final int count;
 
-	private final JobDao dao = new JobDao();
+	private final String seriesUid;
+
+	private final SeriesProgress progress;
+
+	private final String[] instanceUids;
+
+	private static final ExecutorService executor =
+			Executors.newCachedThreadPool(new MoveThreadFactory());
+
+	/**
+	 * Limits the number of concurrent series-level C-MOVEs per device
+	 */
+	private static final ConcurrentMap<String, Semaphore> seriesPermits =
+			new ConcurrentHashMap<String, Semaphore>();
 
 	static
 	{
@@ -88,11 +119,20 @@ public class CMove
 	}
 
 	private CMove(Device device, Job job, String studyUid, int count)
+	{
+		this(device, job, studyUid, count, null, null, null);
+	}
+
+	private CMove(Device device, Job job, String studyUid, int count,
+			String seriesUid, String[] instanceUids, SeriesProgress progress)
 	{
 		this.device = device;
 		this.job = job;
 		this.studyUid = studyUid;
 		this.count = count;
+		this.seriesUid = seriesUid;
+		this.instanceUids = instanceUids;
+		this.progress = progress;
 	}
 
 	private CMoveResponse doMove() throws SQLException, ConfigurationException,
@@ -102,8 +142,16 @@ public class CMove
 		String mrn = exam.getMrn();
 		String accNum = exam.getAccNum();
 
-		String name = "cmove-" + mrn + "-" + accNum + "-" + studyUid;
-		Association assoc = DcmUtil.connect(device, capabilities, name);
+		String scpAeTitle = ConfigCache.getString("scp-ae-title");
+
+		// Some PACS don't handle more than one C-MOVE per association 
+		// so reuse has to be enabled explicitly
+		boolean reuse = ConfigCache.getBoolean("reuse-move-associations", false);
+
+		String name = "cmove-" + mrn + "-" + accNum + "-"
+				+ ((seriesUid != null) ? seriesUid : studyUid);
+		Association assoc = AssociationPool.borrow(device, capabilities, name);
+		boolean reusable = false;
 		try
 		{
 			TransferCapability tc =
@@ -118,40 +166,72 @@ public class CMove
 			String tsuid = tc.getTransferSyntax()[0];
 
 			DicomObject keys = new BasicDicomObject();
-			keys.putString(Tag.QueryRetrieveLevel, VR.CS, "STUDY");
+			String level = (instanceUids != null) ? "IMAGE"
+					: (seriesUid != null) ? "SERIES" : "STUDY";
+
+			keys.putString(Tag.QueryRetrieveLevel, VR.CS, level);
 			keys.putString(Tag.PatientID, VR.LO, mrn);
 			keys.putString(Tag.StudyInstanceUID, VR.UI, studyUid);
-
-			ConfigurationDao confDao = new ConfigurationDao();
-			String scpAeTitle = confDao.getConfiguration("scp-ae-title");
+			if (seriesUid != null)
+				keys.putString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+			if (instanceUids != null)
+				keys.putStrings(Tag.SOPInstanceUID, VR.UI, instanceUids);
 
 			CMoveHandler handler = new CMoveHandler();
 
-			updateStatus("");
+			String what = (instanceUids != null)
+					? instanceUids.length + " objects of series " + seriesUid + " of study " + studyUid
+					: (seriesUid != null)
+					? "series " + seriesUid + " of study " + studyUid
+					: "study " + studyUid;
+
+			if (progress == null)
+				updateProgress("");
 			
-			logger.info("Started C-MOVE of study " + studyUid 
+			logger.info("Started C-MOVE of " + what 
 					+ " from " + device.getAeTitle() + " for " + job);
 
-			assoc.cmove(cuid, 0, keys, tsuid, scpAeTitle, handler);
-			assoc.waitForDimseRSP();
+			JfrEvent event = JfrEvent.begin(JfrEvent.Type.CMOVE);
+			long start = System.currentTimeMillis();
+			try
+			{
+				assoc.cmove(cuid, 0, keys, tsuid, scpAeTitle, handler);
+				assoc.waitForDimseRSP();
+
+				if (handler.response != null)
+					event.setOutcome(JfrEvent.status(handler.response.getStatus()));
+			}
+			finally
+			{
+				event.commit(job.getJobId(), device.getAeTitle(), 0,
+						(instanceUids != null) ? instanceUids.length : count);
+			}
+
+			Metrics.histogram("cmove_duration_ms", "Time taken by C-MOVE requests", 
+					"device", device.getAeTitle()).updateSince(start);
 
 			
 			
-			logger.info("Completed C-MOVE of study " + studyUid 
+			logger.info("Completed C-MOVE of " + what 
 					+ " from " + device.getAeTitle() + " for " + job);
 
 
+			reusable = reuse;
+
 			return handler.response;
 		}
 		finally
 		{
-			assoc.release(true);
+			AssociationPool.giveBack(device, capabilities, assoc, reusable);
 		}
 	}
 
-	private void updateStatus(String msg) throws SQLException
+	private void updateProgress(String msg)
 	{
-		dao.updateComments(job, Job.RSNA_STARTED_DICOM_C_MOVE, "Retrieving study "
+		String what = (instanceUids != null)
+				? "missing objects of study " : "study ";
+
+		JobProgress.update(job, "Retrieving " + what
 				+ studyUid + " from " + device.getAeTitle() + ".  " + msg);
 	}
 
@@ -162,47 +242,387 @@ public class CMove
 		@Override
 		public void onDimseRSP(Association as, DicomObject cmd, DicomObject data)
 		{
-			int status = cmd.getInt(Tag.Status);
-			String error = cmd.getString(Tag.ErrorComment, "");
-
-			response = new CMoveResponse(device, status, error);
-
-			if (CommandUtils.isPending(cmd))
+			JfrEvent event = JfrEvent.begin(JfrEvent.Type.CMOVE_RESPONSE);
+			try
 			{
-				int completed = cmd.getInt(Tag.NumberOfCompletedSuboperations);
-				int remaining = cmd.getInt(Tag.NumberOfRemainingSuboperations);
-				int warning = cmd.getInt(Tag.NumberOfWarningSuboperations);
-				int done = completed + warning;
+				int status = cmd.getInt(Tag.Status);
+				String error = cmd.getString(Tag.ErrorComment, "");
 
+				response = new CMoveResponse(device, status, error);
 
-				int total = done + remaining;
-				if (total > 0)
+				if (CommandUtils.isPending(cmd))
 				{
-					try
+					int completed = cmd.getInt(Tag.NumberOfCompletedSuboperations);
+					int remaining = cmd.getInt(Tag.NumberOfRemainingSuboperations);
+					int warning = cmd.getInt(Tag.NumberOfWarningSuboperations);
+					int done = completed + warning;
+
+
+					int total = done + remaining;
+					if (progress != null)
 					{
-						String comments = "Received " + done + " of " + total + " objects.";
-						updateStatus(comments);
+						progress.update(seriesUid, done, total);
 					}
-					catch (Exception ex)
+					else if (total > 0)
 					{
-						logger.error("Unable to update comments "
-								+ "for " + job, ex);
-
-						as.abort();
+						String comments = "Received " + done + " of " + total + " objects.";
+						updateProgress(comments);
 					}
 				}
+
+				// Pending responses are recorded as FF00
+				event.setOutcome(JfrEvent.status(status));
+			}
+			finally
+			{
+				event.commit(job.getJobId(), device.getAeTitle(), 0,
+						cmd.getInt(Tag.NumberOfCompletedSuboperations));
 			}
 		}
 
 	}
 
+	/**
+	 * Retrieve a study from a device.  If series-level-move is enabled and the
+	 * study has at least series-move-threshold images, the study is retrieved
+	 * one series at a time with up to max-series-moves-per-device concurrent
+	 * C-MOVEs per device.  Series that fail are retried up to 
+	 * series-move-retries times.  Otherwise a single study-level C-MOVE is 
+	 * used. 
+	 *
+	 * @param device The device to retrieve the study from
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 * @param count The number of images in the study.  Zero if unknown. 
+	 * @return The final C-MOVE response
+	 * @throws SQLException If there was an error loading the configuration
+	 * @throws ConfigurationException If the device doesn't support C-MOVE
+	 * @throws IOException If there was an error communicating with the device
+	 * @throws InterruptedException If the thread was interrupted
+	 */
 	public static CMoveResponse retrieveStudy(Device device, Job job,
 			String studyUid, int count) throws SQLException, ConfigurationException,
 			IOException, InterruptedException
 	{
+		if (ConfigCache.getBoolean("series-level-move", false))
+		{
+			int threshold = ConfigCache.getInt("series-move-threshold", 500);
+			if (count >= threshold)
+			{
+				try
+				{
+					Map<String, Integer> series = CFind.findSeries(device, job, studyUid);
+					if (series.size() > 1)
+						return retrieveSeries(device, job, studyUid, series);
+				}
+				catch (CFindIncompleteException ex)
+				{
+					logger.warn(ex.getMessage() + ". Retrieving the entire study "
+							+ studyUid + " for " + job);
+				}
+			}
+		}
+
 		CMove cmove = new CMove(device, job, studyUid, count);
 
 		return cmove.doMove();
 	}
 
+	/**
+	 * Retrieve only the instances of a study that aren't already in the study
+	 * directory.  The instances on the device are listed with IMAGE-level 
+	 * C-FINDs and compared with the <code>&lt;SOP instance UID&gt;.dcm</code>
+	 * files in the directory.  The missing instances are then retrieved with
+	 * IMAGE-level C-MOVEs of up to image-move-batch-size instances each.  
+	 * Falls back to {@link #retrieveStudy} if resume-retrievals is false or 
+	 * the device doesn't return the complete instance list. 
+	 *
+	 * @param device The device to retrieve the study from
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 * @param count The number of images in the study.  Zero if unknown. 
+	 * @param studyDir The directory that holds the partially retrieved study
+	 * @return The final C-MOVE response
+	 * @throws SQLException If there was an error loading the configuration
+	 * @throws ConfigurationException If the device doesn't support C-MOVE
+	 * @throws IOException If there was an error communicating with the device
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public static CMoveResponse retrieveMissing(Device device, Job job,
+			String studyUid, int count, File studyDir) throws SQLException,
+			ConfigurationException, IOException, InterruptedException
+	{
+		if (!ConfigCache.getBoolean("resume-retrievals", true))
+			return retrieveStudy(device, job, studyUid, count);
+
+		int batchSize = Math.max(1, ConfigCache.getInt("image-move-batch-size", 100));
+
+
+		Set<String> present = new HashSet<String>();
+		String names[] = studyDir.list();
+		if (names != null)
+		{
+			for (String name : names)
+			{
+				if (name.endsWith(".dcm"))
+					present.add(name.substring(0, name.length() - 4));
+			}
+		}
+
+
+		Map<String, List<String>> missing = new LinkedHashMap<String, List<String>>();
+		int expected = 0;
+		int total = 0;
+		try
+		{
+			for (String seriesUid : CFind.findSeries(device, job, studyUid).keySet())
+			{
+				List<String> instances = CFind.findInstances(device, job, studyUid, seriesUid);
+				expected += instances.size();
+
+				instances.removeAll(present);
+				if (!instances.isEmpty())
+				{
+					missing.put(seriesUid, instances);
+
+					total += instances.size();
+				}
+			}
+		}
+		catch (CFindIncompleteException ex)
+		{
+			logger.warn(ex.getMessage() + ". Retrieving the entire study "
+					+ studyUid + " for " + job);
+
+			return retrieveStudy(device, job, studyUid, count);
+		}
+
+		if (expected == 0)
+		{
+			logger.warn(device.getAeTitle() + " did not return the instances in study "
+					+ studyUid + ". Retrieving the entire study for " + job);
+
+			return retrieveStudy(device, job, studyUid, count);
+		}
+
+		logger.info("Retrieving " + total + " of " + expected + " objects of study "
+				+ studyUid + " from " + device.getAeTitle() + " for " + job 
+				+ ". The remaining objects were already received.");
+
+
+		for (Map.Entry<String, List<String>> entry : missing.entrySet())
+		{
+			String seriesUid = entry.getKey();
+			List<String> instances = entry.getValue();
+
+			for (int i = 0; i < instances.size(); i += batchSize)
+			{
+				List<String> batch = instances.subList(i, Math.min(i + batchSize, instances.size()));
+				String uids[] = batch.toArray(new String[batch.size()]);
+
+				CMove cmove = new CMove(device, job, studyUid, uids.length,
+						seriesUid, uids, null);
+
+				CMoveResponse rsp = cmove.doMove();
+				if (rsp == null || rsp.getStatus() != CommandUtils.SUCCESS)
+					return rsp;
+			}
+		}
+
+		return new CMoveResponse(device, CommandUtils.SUCCESS, "");
+	}
+
+	private static CMoveResponse retrieveSeries(Device device, Job job,
+			String studyUid, Map<String, Integer> series)
+			throws SQLException, InterruptedException
+	{
+		int retries = ConfigCache.getInt("series-move-retries", 1);
+
+		Semaphore permits = seriesPermits.get(device.getAeTitle());
+		if (permits == null)
+		{
+			int max = ConfigCache.getInt("max-series-moves-per-device", 4);
+			seriesPermits.putIfAbsent(device.getAeTitle(), new Semaphore(Math.max(1, max), true));
+
+			permits = seriesPermits.get(device.getAeTitle());
+		}
+
+		logger.info("Retrieving study " + studyUid + " from " + device.getAeTitle()
+				+ " as " + series.size() + " series for " + job);
+
+		SeriesProgress progress = new SeriesProgress(device, job, studyUid, series);
+
+		List<String> pending = new ArrayList<String>(series.keySet());
+		CMoveResponse failure = null;
+		for (int attempt = 0; attempt <= retries && !pending.isEmpty(); attempt++)
+		{
+			if (attempt > 0)
+			{
+				logger.warn("Retrying C-MOVE of " + pending.size() + " series of study "
+						+ studyUid + " from " + device.getAeTitle() + " for " + job);
+			}
+
+			Map<String, Future<CMoveResponse>> futures =
+					new LinkedHashMap<String, Future<CMoveResponse>>();
+			try
+			{
+				for (String seriesUid : pending)
+				{
+					CMove cmove = new CMove(device, job, studyUid,
+							series.get(seriesUid), seriesUid, null, progress);
+
+					futures.put(seriesUid, executor.submit(new SeriesMove(cmove, permits)));
+				}
+
+				List<String> failed = new ArrayList<String>();
+				for (Map.Entry<String, Future<CMoveResponse>> entry : futures.entrySet())
+				{
+					String seriesUid = entry.getKey();
+					try
+					{
+						CMoveResponse rsp = entry.getValue().get();
+						if (rsp == null || rsp.getStatus() != CommandUtils.SUCCESS)
+						{
+							failed.add(seriesUid);
+
+							if (rsp != null)
+								failure = rsp;
+						}
+					}
+					catch (ExecutionException ex)
+					{
+						logger.warn("C-MOVE of series " + seriesUid + " of study " 
+								+ studyUid + " from " + device.getAeTitle() 
+								+ " for " + job + " failed.", ex.getCause());
+
+						failed.add(seriesUid);
+					}
+				}
+
+				pending = failed;
+			}
+			finally
+			{
+				for (Future<CMoveResponse> future : futures.values())
+				{
+					future.cancel(true);
+				}
+			}
+		}
+
+		if (pending.isEmpty())
+			return new CMoveResponse(device, CommandUtils.SUCCESS, "");
+
+
+		String comments = pending.size() + " of " + series.size() + " series failed.";
+		if (failure != null)
+		{
+			return new CMoveResponse(device, failure.getStatus(),
+					comments + " " + failure.getComments());
+		}
+		else
+		{
+			return new CMoveResponse(device, Status.ProcessingFailure, comments);
+		}
+	}
+
+	/**
+	 * Tracks the progress of the series in a study and reports the totals. 
+	 */
+	private static class SeriesProgress
+	{
+		private final Device device;
+
+		private final Job job;
+
+		private final String studyUid;
+
+		private final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+
+		private SeriesProgress(Device device, Job job, String studyUid,
+				Map<String, Integer> series)
+		{
+			this.device = device;
+			this.job = job;
+			this.studyUid = studyUid;
+
+			for (Map.Entry<String, Integer> entry : series.entrySet())
+			{
+				counts.put(entry.getKey(), new int[]
+						{
+							0, entry.getValue()
+						});
+			}
+		}
+
+		private synchronized void update(String seriesUid, int done, int total)
+		{
+			int[] count = counts.get(seriesUid);
+			count[0] = done;
+			if (total > 0)
+				count[1] = total;
+
+			int studyDone = 0;
+			int studyTotal = 0;
+			int seriesDone = 0;
+			for (int[] c : counts.values())
+			{
+				studyDone += c[0];
+				studyTotal += c[1];
+
+				if (c[1] > 0 && c[0] >= c[1])
+					seriesDone++;
+			}
+
+			JobProgress.update(job, "Retrieving study " + studyUid + " from " 
+					+ device.getAeTitle() + ".  Received " + studyDone + " of " 
+					+ studyTotal + " objects.  Completed " + seriesDone + " of " 
+					+ counts.size() + " series.");
+		}
+
+	}
+
+	private static class SeriesMove implements Callable<CMoveResponse>
+	{
+		private final CMove cmove;
+
+		private final Semaphore permits;
+
+		private SeriesMove(CMove cmove, Semaphore permits)
+		{
+			this.cmove = cmove;
+			this.permits = permits;
+		}
+
+		@Override
+		public CMoveResponse call() throws Exception
+		{
+			permits.acquire();
+			try
+			{
+				return cmove.doMove();
+			}
+			finally
+			{
+				permits.release();
+			}
+		}
+
+	}
+
+	private static class MoveThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "cmove-" + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+	}
+
 }
@@ -37,29 +37,43 @@
  *			  temp file first and then only the header is read back into memory.
  *			  This change is required because calling PDVInputStream.readDataset
  *            loads the entire object into memory. 
+ *
+ *
+ * 5.0.0:
+ *		10/17/2026: agent
+ *			- The header is now parsed while the object is being spooled to
+ *			  the temp file and the temp file is renamed into place instead
+ *			  of being copied.  Objects are now written to disk once instead
+ *			  of three times. 
+ *			- Objects are now added to an InstanceStore and hard linked into
+ *			  the job directories, so an object that belongs to several jobs
+ *			  is only written once. 
+ *			- Saved objects are reported to StudyArrivals so workers don't
+ *			  have to poll the study directory
+ *			- Jobs are looked up in the process wide JobIndex instead of a 
+ *			  per association cache.  The database is only queried on a miss. 
+ *			- Added an optional asynchronous ingest mode in which objects are
+ *			  acknowledged once spooled and routed by a pool of writer threads
+ *			- Objects handed to the ingest executor are kept in a journal 
+ *			  directory until they've been placed and are replayed at startup
+ *			- Received objects and bytes are counted per calling AE
+ *			- Saved objects are recorded in the JobTimeline
+ *			- Spooling, routing and placing objects emit JFR events, which
+ *			  are recorded with an outcome even if the step fails
  */
 package org.rsna.isn.prepcontent.dcm;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.Executor;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
-import org.dcm4che2.io.DicomInputStream;
-import org.dcm4che2.io.DicomOutputStream;
-import org.dcm4che2.io.StopTagInputHandler;
 import org.dcm4che2.net.Association;
-import org.dcm4che2.net.AssociationAcceptEvent;
-import org.dcm4che2.net.AssociationCloseEvent;
-import org.dcm4che2.net.AssociationListener;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DicomServiceException;
 import org.dcm4che2.net.PDVInputStream;
@@ -68,6 +82,8 @@ import org.dcm4che2.net.service.CStoreSCP;
 import org.dcm4che2.net.service.DicomService;
 import org.rsna.isn.dao.JobDao;
 import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.util.JobTimeline;
+import org.rsna.isn.prepcontent.util.Metrics;
 import org.rsna.isn.util.Environment;
 import org.rsna.isn.util.FileUtil;
 
@@ -75,68 +91,295 @@ import org.rsna.isn.util.FileUtil;
  * Handler for C-STORE requests
  *
  * @author Wyatt Tellis
- * @version 3.2.0
+ * @version 5.0.0
  * @since 2.1.0
  */
-public class CStoreHandler extends DicomService implements CStoreSCP, AssociationListener
+public class CStoreHandler extends DicomService implements CStoreSCP
 {
 	private static final Logger logger = Logger.getLogger(CStoreHandler.class);
 
-	private static final ThreadLocal<Map<String, List<Job>>> jobsMap
-			= new ThreadLocal<Map<String, List<Job>>>();
-
 	public final File dcmDir;
 
 	public final File tmpDir;
 
-	public CStoreHandler(String[] sopClasses)
+	private final InstanceStore store;
+
+	private final Executor ingest;
+
+	private final boolean syncBeforeAck;
+
+	private final File journalDir;
+
+	/**
+	 * Create a new handler. 
+	 *
+	 * @param sopClasses The supported SOP classes
+	 * @param store The store received objects are saved to
+	 * @param ingest If not null, objects are acknowledged as soon as their
+	 * jobs are known and they're spooled to the journal directory, and they
+	 * are placed in the job directories by this executor.  Otherwise objects 
+	 * are placed before they're acknowledged. 
+	 * @param syncBeforeAck If true, spooled objects are forced to disk before
+	 * they're handed off to the ingest executor
+	 */
+	CStoreHandler(String[] sopClasses, InstanceStore store, Executor ingest,
+			boolean syncBeforeAck)
+	{
+		this(sopClasses, store, ingest, syncBeforeAck, 
+				Environment.getDcmDir(), Environment.getTmpDir());
+	}
+
+	CStoreHandler(String[] sopClasses, InstanceStore store, Executor ingest,
+			boolean syncBeforeAck, File dcmDir, File tmpDir)
 	{
 		super(sopClasses);
 
-		this.dcmDir = Environment.getDcmDir();
+		this.dcmDir = dcmDir;
+
+		this.tmpDir = tmpDir;
+
+		this.store = store;
 
-		this.tmpDir = Environment.getTmpDir();
+		this.ingest = ingest;
+
+		this.syncBeforeAck = syncBeforeAck;
+
+		this.journalDir = new File(tmpDir, "ingest-journal");
 	}
 
-	@Override
-	public void associationAccepted(AssociationAcceptEvent event)
+	/**
+	 * Find the jobs an object belongs to.  Failed jobs for the exam are 
+	 * flagged as in progress and are retried when the association closes. 
+	 *
+	 * @param as The association the object was received on or null if the
+	 * object is being replayed from the journal
+	 * @param header The header of the object
+	 * @return The jobs.  May be empty. 
+	 */
+	private List<Job> resolve(Association as, DicomObject header)
+			throws SQLException
 	{
-		jobsMap.set(new HashMap<String, List<Job>>());
+		JfrEvent event = JfrEvent.begin(JfrEvent.Type.ROUTE);
+
+		String mrn = header.getString(Tag.PatientID);
+		String accNum = header.getString(Tag.AccessionNumber);
+		String studyUid = header.getString(Tag.StudyInstanceUID);
+
+		String callingAe = (as != null) ? as.getCallingAET() : null;
+
+		List<Job> jobs = null;
+		try
+		{
+			jobs = JobIndex.get(mrn, accNum, studyUid);
+			if (jobs == null)
+			{
+				JobDao dao = new JobDao();
+				jobs = dao.findJobs(mrn, accNum,
+						Job.RSNA_STARTED_DICOM_C_MOVE, Job.RSNA_FAILED_TO_PREPARE_CONTENT,
+						Job.RSNA_UNABLE_TO_FIND_IMAGES, Job.RSNA_DICOM_C_MOVE_FAILED);
+
+				for (Job job : jobs)
+				{
+					int status = job.getStatus();
+					if (status < 0)
+					{
+						dao.updateStatus(job, Job.RSNA_STARTED_DICOM_C_MOVE,
+								"Receiving images for study " + studyUid);
+
+						if (as != null)
+							ScpAssociationListener.addJobToRetry(as, job);
+
+						logger.warn("Flagging " + job + " as in progress.");
+					}
+				}
+
+				if (!jobs.isEmpty())
+					JobIndex.addExam(mrn, accNum, studyUid, jobs);
+			}
+
+			// A stray object is recorded with a count of 0
+			event.setOutcome(JfrEvent.SUCCESS);
+
+			return jobs;
+		}
+		finally
+		{
+			boolean found = (jobs != null && !jobs.isEmpty());
+			event.commit(found ? jobs.get(0).getJobId() : 0, callingAe, 0,
+					found ? jobs.size() : 0);
+		}
+	}
+
+	/**
+	 * Add a spooled object to the study directories of its jobs. 
+	 */
+	private void place(String callingAe, List<Job> jobs, SpooledInstance spooled)
+			throws IOException
+	{
+		JfrEvent event = JfrEvent.begin(JfrEvent.Type.PLACE);
+
+		DicomObject header = spooled.getHeader();
+
+		String mrn = header.getString(Tag.PatientID);
+		String accNum = header.getString(Tag.AccessionNumber);
+		String studyUid = header.getString(Tag.StudyInstanceUID);
+		String instanceUid = header.getString(Tag.SOPInstanceUID);
+		String modality = header.getString(Tag.Modality);
+
+		long length = 0;
+		int placed = 0;
+		try
+		{
+			File stored = store.put(instanceUid, spooled);
+			length = stored.length();
+			for (Job job : jobs)
+			{
+				int jobId = job.getJobId();
+
+				File jobDir = FileUtil.newFile(dcmDir, jobId);
+				File patDir = FileUtil.newFile(jobDir, mrn);
+				File examDir = FileUtil.newFile(patDir, accNum);
+				File studyDir = FileUtil.newFile(examDir, studyUid);
+
+				studyDir.mkdirs();
+
+				File dcmFile = FileUtil.newFile(studyDir, instanceUid + ".dcm");
+				store.link(stored, dcmFile);
+				placed++;
+
+				StudyArrivals.arrived(studyDir, dcmFile.getName());
+				JobTimeline.received(job, modality, length);
+
+				logger.debug("Saved file " + dcmFile + " for " + job);
+			}
+
+			event.setOutcome(JfrEvent.SUCCESS);
+		}
+		finally
+		{
+			// The count is the number of job directories the object was 
+			// placed in before any failure
+			event.commit(jobs.get(0).getJobId(), callingAe, length, placed);
+		}
+	}
+
+	/**
+	 * Place the objects that were left in the journal directory, i.e. 
+	 * objects that were acknowledged but not placed before the process 
+	 * stopped.  Should be called before the SCP starts listening. 
+	 */
+	void replay()
+	{
+		File files[] = journalDir.listFiles();
+		if (files == null || files.length == 0)
+			return;
+
+		logger.info("Replaying " + files.length + " object(s) from " + journalDir);
+
+		for (File file : files)
+		{
+			SpooledInstance spooled = null;
+			try
+			{
+				spooled = SpooledInstance.load(file);
+
+				List<Job> jobs = resolve(null, spooled.getHeader());
+				if (jobs.isEmpty())
+				{
+					logger.warn("No pending jobs associated with journaled object "
+							+ file + ". Discarding object.");
+				}
+				else
+				{
+					place(null, jobs, spooled);
+				}
+			}
+			catch (Exception ex)
+			{
+				logger.warn("Unable to replay journaled object " + file, ex);
+			}
+			finally
+			{
+				if (spooled != null)
+					spooled.delete();
+				else
+					file.delete();
+			}
+		}
 	}
 
 	@Override
 	public void cstore(Association as, int pcid, DicomObject cmd,
 			PDVInputStream dataStream, String tsuid) throws DicomServiceException, IOException
+	{
+		try
+		{
+			store(as, cmd, dataStream, tsuid);
+
+			as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
+		}
+		catch (IOException ex) // Includes DicomServiceException
+		{
+			throw ex;
+		}
+		catch (Throwable ex)
+		{
+			logger.warn("Unable to store object due to uncaught exception.", ex);
+
+			throw new DicomServiceException(cmd, Status.ProcessingFailure, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Spool an object and either route it to its jobs or hand it off to the
+	 * ingest executor.  Doesn't send a response, so the ingest path can also
+	 * be driven without an association (e.g. by the benchmarks). 
+	 *
+	 * @param as The association the object was received on.  Only used if 
+	 * a failed job has to be flagged for retry. 
+	 * @param cmd The C-STORE request
+	 * @param in The stream containing the dataset
+	 * @param tsuid The transfer syntax UID of the dataset
+	 * @throws IOException If the object couldn't be saved.  A 
+	 * DicomServiceException is thrown if the object is invalid. 
+	 * @throws SQLException If there was an error looking up the jobs
+	 */
+	void store(Association as, DicomObject cmd, InputStream in, String tsuid)
+			throws IOException, SQLException
 	{
 		String cuid = cmd.getString(Tag.AffectedSOPClassUID);
 		String iuid = cmd.getString(Tag.AffectedSOPInstanceUID);
 
-		File tmpFile = File.createTempFile(iuid + "-", ".dcm", tmpDir);
+		SpooledInstance spooled = null;
 		try
 		{
 			// Write object to disk because calling dataStream.readDataset()
 			// will load the entire object into memory resulting in potential
-			// out of memory errors
-
-
-			DicomOutputStream dos = new DicomOutputStream(
-					new BufferedOutputStream(
-							new FileOutputStream(tmpFile)));
-
-			BasicDicomObject fmi = new BasicDicomObject();
-			fmi.initFileMetaInformation(cuid, iuid, tsuid);
-			dos.writeFileMetaInformation(fmi);
-
-			dataStream.copyTo(dos);
-			dos.close();
+			// out of memory errors.  Only the header is kept in memory and 
+			// it's parsed as the object is written.
+			String callingAe = (as != null) ? as.getCallingAET() : "unknown";
+			long length = 0;
+
+			// The jobs aren't known yet, so the job id is 0
+			JfrEvent event = JfrEvent.begin(JfrEvent.Type.SPOOL);
+			try
+			{
+				spooled = SpooledInstance.spool(in, cuid, iuid, tsuid, tmpDir);
+				length = spooled.getFile().length();
 
+				event.setOutcome(JfrEvent.SUCCESS);
+			}
+			finally
+			{
+				event.commit(0, callingAe, length, (spooled != null) ? 1 : 0);
+			}
 
-			// Read in just the header
-			DicomInputStream din = new DicomInputStream(tmpFile);
-			din.setHandler(new StopTagInputHandler(Tag.PixelData));
+			Metrics.counter("scp_instances_total", "Objects received by the SCP",
+					"calling_ae", callingAe).inc();
+			Metrics.counter("scp_bytes_total", "Bytes received by the SCP",
+					"calling_ae", callingAe).add(length);
 
-			DicomObject header = din.readDicomObject();
-			din.close();
+			DicomObject header = spooled.getHeader();
 
 			String mrn = header.getString(Tag.PatientID);
 			if (StringUtils.isBlank(mrn))
@@ -184,83 +427,83 @@ public class CStoreHandler extends DicomService implements CStoreSCP, Associatio
 						Status.ProcessingFailure, "Series instance UID is empty");
 			}
 
-			String key = mrn + "/" + accNum;
-			Map<String, List<Job>> map = jobsMap.get();
-			List<Job> jobs = map.get(key);
-			if (jobs == null)
+			// Resolve the jobs before the object is acknowledged, so strays 
+			// are rejected and failed jobs are flagged for retry before the
+			// association can close
+			List<Job> jobs = resolve(as, header);
+			if (jobs.isEmpty())
 			{
-				JobDao dao = new JobDao();
-				jobs = dao.findJobs(mrn, accNum,
-						Job.RSNA_STARTED_DICOM_C_MOVE, Job.RSNA_FAILED_TO_PREPARE_CONTENT,
-						Job.RSNA_UNABLE_TO_FIND_IMAGES, Job.RSNA_DICOM_C_MOVE_FAILED);
+				logger.warn("No pending jobs associated with: " + mrn + "/" + accNum);
 
-				if (jobs.isEmpty())
-				{
-					logger.warn("No pending jobs associated with: " + mrn + "/" + accNum);
-
-					throw new DicomServiceException(cmd, Status.ProcessingFailure,
-							"No pending jobs associated with this study.");
-				}
+				throw new DicomServiceException(cmd, Status.ProcessingFailure,
+						"No pending jobs associated with this study.");
+			}
 
-				for (Job job : jobs)
-				{
-					int status = job.getStatus();
-					if (status < 0)
-					{
-						dao.updateStatus(job, Job.RSNA_STARTED_DICOM_C_MOVE,
-								"Receiving images for study " + studyUid);
+			if (ingest != null)
+			{
+				// Move the object to the journal, hand it off to the writer 
+				// threads and acknowledge it right away.  If the process 
+				// stops before the object is placed, it's replayed from the
+				// journal at startup.  If the writers fall behind, the 
+				// executor runs the task on this thread, which slows down 
+				// the sender. 
+				journalDir.mkdirs();
+				spooled.journal(journalDir);
 
-						ScpAssociationListener.addJobToRetry(as, job);
+				if (syncBeforeAck)
+					spooled.sync();
 
-						logger.warn("Flagging " + job + " as in progress.");
-					}
-				}
+				ingest.execute(new IngestTask(callingAe, jobs, spooled));
 
-				map.put(key, jobs);
+				spooled = null; // Now owned by the task
 			}
-
-
-			for (Job job : jobs)
+			else
 			{
-				int jobId = job.getJobId();
-
-				File jobDir = FileUtil.newFile(dcmDir, jobId);
-				File patDir = FileUtil.newFile(jobDir, mrn);
-				File examDir = FileUtil.newFile(patDir, accNum);
-				File studyDir = FileUtil.newFile(examDir, studyUid);
-
-				studyDir.mkdirs();
+				place(callingAe, jobs, spooled);
+			}
+		}
+		finally
+		{
+			if (spooled != null)
+				spooled.delete();
+		}
+	}
 
-				File dcmFile = FileUtil.newFile(studyDir, instanceUid + ".dcm");
-				FileUtils.copyFile(tmpFile, dcmFile);
+	private class IngestTask implements Runnable
+	{
+		private final String callingAe;
 
-				logger.info("Saved file " + dcmFile + " for " + job);
-			}
+		private final List<Job> jobs;
 
+		private final SpooledInstance spooled;
 
-			as.writeDimseRSP(pcid, CommandUtils.mkRSP(cmd, CommandUtils.SUCCESS));
-		}
-		catch (IOException ex) // Includes DicomServiceException
+		private IngestTask(String callingAe, List<Job> jobs, SpooledInstance spooled)
 		{
-			throw ex;
+			this.callingAe = callingAe;
+			this.jobs = jobs;
+			this.spooled = spooled;
 		}
-		catch (Throwable ex)
-		{
-			logger.warn("Unable to store object due to uncaught exception.", ex);
 
-			throw new DicomServiceException(cmd, Status.ProcessingFailure, ex.getMessage());
-		}
-		finally
+		@Override
+		public void run()
 		{
-			tmpFile.delete();
+			try
+			{
+				place(callingAe, jobs, spooled);
+			}
+			catch (Throwable ex)
+			{
+				// The object has already been acknowledged so all we can do
+				// is log the error
+				logger.warn("Unable to store object " + spooled.getFile() 
+						+ " received from " + callingAe + ".", ex);
+			}
+			finally
+			{
+				spooled.delete();
+			}
 		}
 
 	}
 
-	@Override
-	public void associationClosed(AssociationCloseEvent event)
-	{
-		jobsMap.remove();
-	}
-
 }
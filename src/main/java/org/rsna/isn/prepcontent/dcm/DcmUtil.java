@@ -31,21 +31,23 @@ import org.dcm4che2.net.Association;
 import org.dcm4che2.net.ConfigurationException;
 import org.dcm4che2.net.NetworkApplicationEntity;
 import org.dcm4che2.net.NetworkConnection;
-import org.dcm4che2.net.NewThreadExecutor;
 import org.dcm4che2.net.TransferCapability;
+import org.dcm4che2.net.service.DicomService;
 import org.dcm4che2.tool.dcmecho.DcmEcho;
-import org.rsna.isn.dao.ConfigurationDao;
 import org.rsna.isn.domain.Device;
+import org.rsna.isn.prepcontent.util.ConfigCache;
 
 /**
  * A collection of DICOM utility functions. Mostly used by the worker thread.
  *
  * @author Wyatt Tellis
- * @version 2.1.0
+ * @version 5.0.0
  *
  */
 public class DcmUtil
 {
+	private static DicomExecutor scuExecutor;
+
 	private DcmUtil()
 	{
 	}
@@ -53,6 +55,24 @@ public class DcmUtil
 	public static Association connect(Device device,
 			TransferCapability[] capabilities, String threadName)
 			throws SQLException, ConfigurationException, IOException, InterruptedException
+	{
+		return connect(device, capabilities, threadName, null);
+	}
+
+	/**
+	 * Open an association to a device. 
+	 *
+	 * @param device The device
+	 * @param capabilities The transfer capabilities to negotiate
+	 * @param threadName The name of the thread servicing the association
+	 * @param service A service that handles requests sent by the device on 
+	 * this association (e.g. C-STOREs during a C-GET).  May be null. 
+	 * @return The association
+	 */
+	public static Association connect(Device device,
+			TransferCapability[] capabilities, String threadName, 
+			DicomService service)
+			throws SQLException, ConfigurationException, IOException, InterruptedException
 	{
 		NetworkConnection remoteConn = new NetworkConnection();
 		remoteConn.setHostname(device.getHost());
@@ -66,8 +86,7 @@ public class DcmUtil
 
 		NetworkConnection localConn = new NetworkConnection();
 
-		ConfigurationDao confDao = new ConfigurationDao();
-		String scuAeTitle = confDao.getConfiguration("scu-ae-title");
+		String scuAeTitle = ConfigCache.getString("scu-ae-title");
 
 		NetworkApplicationEntity localAe = new NetworkApplicationEntity();
 		localAe.setAETitle(scuAeTitle);
@@ -76,6 +95,14 @@ public class DcmUtil
 		localAe.setRetrieveRspTimeout((int) DateUtils.MILLIS_PER_DAY);
 		localAe.setTransferCapability(capabilities);
 
+		// Values other than 1 propose an asynchronous operations window, 
+		// which lets several requests be outstanding on one association
+		int maxOps = ConfigCache.getInt("max-ops-invoked", 1);
+		localAe.setMaxOpsInvoked(maxOps);
+
+		if (service != null)
+			localAe.register(service);
+
 
 
 		org.dcm4che2.net.Device dcmDevice = new org.dcm4che2.net.Device();
@@ -83,9 +110,35 @@ public class DcmUtil
 		dcmDevice.setNetworkConnection(localConn);
 
 
-		Executor executor = new NewThreadExecutor(threadName);
+		Executor executor = getScuExecutor().named(threadName);
+
+		JfrEvent event = JfrEvent.begin(JfrEvent.Type.CONNECT);
+		try
+		{
+			Association assoc = localAe.connect(remoteAe, executor);
+			event.setOutcome(JfrEvent.SUCCESS);
+
+			return assoc;
+		}
+		finally
+		{
+			event.commit(0, device.getAeTitle(), 0, 0);
+		}
+	}
+
+	/**
+	 * Get the pool used to service outbound associations.  The pool is 
+	 * created on first use from the scu-* settings (see DicomExecutor). 
+	 *
+	 * @return The pool
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	public static synchronized DicomExecutor getScuExecutor() throws SQLException
+	{
+		if (scuExecutor == null)
+			scuExecutor = DicomExecutor.create("scu", 256, true);
 
-		return localAe.connect(remoteAe, executor);
+		return scuExecutor;
 	}
 
 	public static TransferCapability selectCapabilityAsScu(Association assoc, 
@@ -105,8 +158,7 @@ public class DcmUtil
         
         public static String CEcho(String host,int port,String aet) throws SQLException 
         {
-                    ConfigurationDao config = new ConfigurationDao();
-                    String device = config.getConfiguration("scu-ae-title");
+                    String device = ConfigCache.getString("scu-ae-title");
                     
                     DcmEcho dcmecho = new DcmEcho(device);
                     dcmecho.setRemoteHost(host);
@@ -0,0 +1,280 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+import org.rsna.isn.dao.DeviceDao;
+import org.rsna.isn.domain.Device;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+
+/**
+ * Keeps track of which devices are reachable.  Each device is C-ECHOed in the
+ * background at a fixed interval and the result is cached, so workers don't 
+ * need to C-ECHO every device for every job. 
+ * <p>
+ * Failures reported by workers (e.g. a C-FIND that failed) count towards a 
+ * circuit breaker. Once a device has failed too many times in a row it's 
+ * treated as offline until the next successful C-ECHO. 
+ * <p>
+ * If the background checks haven't been started, devices are C-ECHOed on 
+ * demand as before. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class DeviceHealth
+{
+	private static final Logger logger = Logger.getLogger(DeviceHealth.class);
+
+	private static final Map<String, State> states = new ConcurrentHashMap<String, State>();
+
+	private static Timer timer;
+
+	private static int threshold;
+
+	private DeviceHealth()
+	{
+	}
+
+	/**
+	 * Check if a device is reachable. 
+	 *
+	 * @param device The device
+	 * @return True if the last C-ECHO succeeded and the circuit breaker for 
+	 * the device hasn't tripped. 
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	public static boolean isOnline(Device device) throws SQLException
+	{
+		if (timer == null)
+		{
+			String message = CEcho.CEcho(device.getHost(), device.getPort(), device.getAeTitle());
+
+			return message.startsWith("Successfully");
+		}
+
+		State state = states.get(getKey(device));
+		if (state == null) // Device was added after the last check
+			state = probe(device, getScuAeTitle());
+
+		return state.isOnline();
+	}
+
+	/**
+	 * Check if any device is reachable. 
+	 *
+	 * @return True if at least one device is online
+	 * @throws SQLException If there was an error loading the device list
+	 */
+	public static boolean isAnyOnline() throws SQLException
+	{
+		if (timer == null)
+			return !CEcho.isDevicesOffline();
+
+		DeviceDao dao = new DeviceDao();
+		for (Device device : dao.getDevices())
+		{
+			if (isOnline(device))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the round trip time of the last successful C-ECHO of a device. 
+	 *
+	 * @param device The device
+	 * @return The round trip time in milliseconds or -1 if it's not known
+	 */
+	public static long getLatency(Device device)
+	{
+		State state = states.get(getKey(device));
+
+		return (state != null) ? state.latency : -1;
+	}
+
+	/**
+	 * Report a failed operation on a device. 
+	 *
+	 * @param device The device
+	 */
+	public static void recordFailure(Device device)
+	{
+		State state = states.get(getKey(device));
+		if (state != null)
+			state.fail(device, false);
+	}
+
+	/**
+	 * Report a successful operation on a device. 
+	 *
+	 * @param device The device
+	 */
+	public static void recordSuccess(Device device)
+	{
+		State state = states.get(getKey(device));
+		if (state != null)
+			state.succeed(device, state.latency);
+	}
+
+	/**
+	 * Start checking devices in the background.  The first check is done
+	 * before this method returns.
+	 *
+	 * @param interval The time between checks (in milliseconds)
+	 * @param failureThreshold The number of consecutive failures before a 
+	 * device is treated as offline
+	 */
+	public static synchronized void start(long interval, int failureThreshold)
+	{
+		if (timer != null)
+			return;
+
+		threshold = Math.max(1, failureThreshold);
+
+		ProbeTask task = new ProbeTask();
+		task.run();
+
+		timer = new Timer("device-health", true);
+		timer.schedule(task, interval, interval);
+	}
+
+	private static State probe(Device device, String scuAeTitle)
+	{
+		String key = getKey(device);
+
+		State state = states.get(key);
+		if (state == null)
+		{
+			state = new State();
+
+			states.put(key, state);
+		}
+
+		long start = System.currentTimeMillis();
+		String message = CEcho.CEcho(scuAeTitle, device.getHost(),
+				device.getPort(), device.getAeTitle());
+		long latency = System.currentTimeMillis() - start;
+
+		if (message.startsWith("Successfully"))
+		{
+			state.succeed(device, latency);
+		}
+		else
+		{
+			logger.debug("C-ECHO of " + device.getAeTitle() + " failed: " + message);
+
+			state.fail(device, true);
+		}
+
+		return state;
+	}
+
+	private static String getScuAeTitle() throws SQLException
+	{
+		return ConfigCache.getString("scu-ae-title");
+	}
+
+	private static String getKey(Device device)
+	{
+		return device.getAeTitle() + "@" + device.getHost() + ":" + device.getPort();
+	}
+
+	private static class ProbeTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				String scuAeTitle = getScuAeTitle();
+
+				DeviceDao dao = new DeviceDao();
+				Set<Device> devices = dao.getDevices();
+				for (Device device : devices)
+				{
+					probe(device, scuAeTitle);
+				}
+			}
+			catch (Exception ex)
+			{
+				logger.warn("Unable to check devices", ex);
+			}
+		}
+
+	}
+
+	private static class State
+	{
+		private volatile boolean reachable;
+
+		private volatile boolean tripped;
+
+		private volatile long latency = -1;
+
+		private int failures;
+
+		private boolean isOnline()
+		{
+			return reachable && !tripped;
+		}
+
+		private synchronized void succeed(Device device, long latency)
+		{
+			if (tripped || !reachable)
+				logger.info(device.getAeTitle() + " is online");
+
+			this.reachable = true;
+			this.tripped = false;
+			this.latency = latency;
+			this.failures = 0;
+		}
+
+		private synchronized void fail(Device device, boolean unreachable)
+		{
+			if (unreachable)
+				reachable = false;
+
+			failures++;
+
+			if (!tripped && failures >= threshold)
+			{
+				logger.warn(device.getAeTitle() + " has failed " + failures 
+						+ " time(s) in a row. Treating device as offline.");
+
+				tripped = true;
+			}
+		}
+
+	}
+
+}
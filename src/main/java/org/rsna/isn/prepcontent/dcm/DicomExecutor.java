@@ -0,0 +1,396 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.dcm4che2.net.Association;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.Metrics;
+
+/**
+ * Bounded thread pool used to service DICOM associations.  Each association
+ * occupies a thread for as long as it's open, so the pool size is the max
+ * number of concurrent associations.  Once the pool and its queue are full,
+ * new associations are aborted instead of starting more threads. 
+ * <p>
+ * The pool is configured with the following settings, where &lt;name&gt; is 
+ * the name of the pool (e.g. scp or scu): 
+ * <ul>
+ * <li>&lt;name&gt;-max-threads: The max number of threads (default 200)</li>
+ * <li>&lt;name&gt;-queue-size: The number of associations that can wait for 
+ * a thread (default 0)</li>
+ * <li>dicom-virtual-threads: If true and the JVM supports it, the pool uses 
+ * virtual threads</li>
+ * </ul>
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class DicomExecutor implements Executor
+{
+	private static final Logger logger = Logger.getLogger(DicomExecutor.class);
+
+	private static final Map<String, DicomExecutor> executors =
+			new ConcurrentHashMap<String, DicomExecutor>();
+
+	private final String name;
+
+	private final ThreadPoolExecutor pool;
+
+	private final Metrics.Counter rejected;
+
+	private final boolean virtual;
+
+	private DicomExecutor(String name, int maxThreads, int queueSize, 
+			boolean useVirtualThreads, boolean daemon)
+	{
+		this.name = name;
+		this.rejected = Metrics.counter("dicom_rejected_total",
+				"Tasks rejected because the pool was full", "executor", name);
+
+		ThreadFactory factory = useVirtualThreads ? createVirtualThreadFactory(name) : null;
+		this.virtual = (factory != null);
+		if (factory == null)
+			factory = new DicomThreadFactory(name, daemon);
+
+		BlockingQueue<Runnable> queue = (queueSize > 0)
+				? new ArrayBlockingQueue<Runnable>(queueSize)
+				: new SynchronousQueue<Runnable>();
+
+		pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+				queue, factory, new AbortPolicy());
+	}
+
+	/**
+	 * Create a pool using the settings for the given name.  The pool is
+	 * registered so its metrics can be read with {@link #getExecutors()}.
+	 *
+	 * @param name The name of the pool
+	 * @param defaultMaxThreads The max number of threads if not configured
+	 * @return The pool
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	public static DicomExecutor create(String name, int defaultMaxThreads) throws SQLException
+	{
+		return create(name, defaultMaxThreads, false);
+	}
+
+	/**
+	 * Create a pool using the settings for the given name.  The pool is
+	 * registered so its metrics can be read with {@link #getExecutors()}.
+	 *
+	 * @param name The name of the pool
+	 * @param defaultMaxThreads The max number of threads if not configured
+	 * @param daemon If true, the pool uses daemon threads (virtual threads 
+	 * are always daemon threads)
+	 * @return The pool
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	public static DicomExecutor create(String name, int defaultMaxThreads,
+			boolean daemon) throws SQLException
+	{
+		int maxThreads = ConfigCache.getInt(name + "-max-threads", defaultMaxThreads);
+		int queueSize = ConfigCache.getInt(name + "-queue-size", 0);
+		boolean useVirtualThreads = ConfigCache.getBoolean("dicom-virtual-threads", false);
+
+		DicomExecutor executor = new DicomExecutor(name, Math.max(1, maxThreads), 
+				queueSize, useVirtualThreads, daemon);
+		executors.put(name, executor);
+		executor.registerMetrics();
+
+		logger.info("Setting max " + name + " threads to " + maxThreads 
+				+ (executor.virtual ? " (virtual)" : "") + ".");
+
+		return executor;
+	}
+
+	/**
+	 * Get all the pools that have been created.
+	 *
+	 * @return The pools
+	 */
+	public static Collection<DicomExecutor> getExecutors()
+	{
+		return Collections.unmodifiableCollection(executors.values());
+	}
+
+	@Override
+	public void execute(Runnable command)
+	{
+		pool.execute(command);
+	}
+
+	/**
+	 * Get an executor that runs tasks on this pool and renames the pool 
+	 * thread while the task runs, so log messages can be traced back to the
+	 * task. 
+	 *
+	 * @param threadName The name to use while the task runs
+	 * @return The executor
+	 */
+	public Executor named(final String threadName)
+	{
+		return new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				pool.execute(new NamedTask(threadName, command));
+			}
+
+		};
+	}
+
+	/**
+	 * Get the value of name
+	 *
+	 * @return the value of name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the number of threads that are servicing associations.
+	 *
+	 * @return The number of threads
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * Get the max number of threads.
+	 *
+	 * @return The max number of threads
+	 */
+	public int getMaxThreads()
+	{
+		return pool.getMaximumPoolSize();
+	}
+
+	/**
+	 * Get the number of associations waiting for a thread.
+	 *
+	 * @return The queue depth
+	 */
+	public int getQueueSize()
+	{
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Get the number of tasks that were rejected because the pool was full. 
+	 * Rejected associations are aborted. 
+	 *
+	 * @return The number of rejected tasks
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.getCount();
+	}
+
+	/**
+	 * Get the value of virtual
+	 *
+	 * @return True if the pool uses virtual threads
+	 */
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	private void registerMetrics()
+	{
+		Metrics.register(new Metrics.Gauge("dicom_threads_active", 
+				"Threads servicing associations", "executor", name)
+		{
+			@Override
+			public long getValue()
+			{
+				return getActiveCount();
+			}
+
+		});
+		Metrics.register(new Metrics.Gauge("dicom_threads_max", 
+				"Max number of threads", "executor", name)
+		{
+			@Override
+			public long getValue()
+			{
+				return getMaxThreads();
+			}
+
+		});
+		Metrics.register(new Metrics.Gauge("dicom_queue_size", 
+				"Associations waiting for a thread", "executor", name)
+		{
+			@Override
+			public long getValue()
+			{
+				return getQueueSize();
+			}
+
+		});
+	}
+
+	/**
+	 * Virtual threads are only available on Java 21 or later, so they're 
+	 * created through reflection. 
+	 *
+	 * @return A virtual thread factory or null if not supported
+	 */
+	private static ThreadFactory createVirtualThreadFactory(String name)
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+			builder = nameMethod.invoke(builder, name + "-", 1L);
+
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (Exception ex)
+		{
+			logger.warn("Virtual threads are not supported by this JVM. Using "
+					+ "platform threads for the " + name + " pool.");
+
+			return null;
+		}
+	}
+
+	private static class NamedTask implements Runnable
+	{
+		private final String name;
+
+		private final Runnable task;
+
+		private NamedTask(String name, Runnable task)
+		{
+			this.name = name;
+			this.task = task;
+		}
+
+		@Override
+		public void run()
+		{
+			Thread thread = Thread.currentThread();
+			String oldName = thread.getName();
+
+			thread.setName(name);
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				thread.setName(oldName);
+			}
+		}
+
+	}
+
+	/**
+	 * Aborts associations that can't be serviced.  The peer gets an A-ABORT
+	 * instead of waiting on a connection that is never read.  Other tasks 
+	 * are rejected with a RejectedExecutionException so the caller knows 
+	 * the task didn't run. 
+	 */
+	private class AbortPolicy implements RejectedExecutionHandler
+	{
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+		{
+			rejected.inc();
+			long count = rejected.getCount();
+
+			Runnable task = (r instanceof NamedTask) ? ((NamedTask) r).task : r;
+			if (task instanceof Association)
+			{
+				Association assoc = (Association) task;
+
+				logger.warn("All " + executor.getMaximumPoolSize() + " " + name 
+						+ " threads are busy. Aborting association " + assoc
+						+ ". " + count + " association(s) rejected so far.");
+
+				assoc.abort();
+			}
+			else
+			{
+				throw new RejectedExecutionException("All " 
+						+ executor.getMaximumPoolSize() + " " + name 
+						+ " threads are busy. " + count + " task(s) rejected so far.");
+			}
+		}
+
+	}
+
+	private static class DicomThreadFactory implements ThreadFactory
+	{
+		private final String name;
+
+		private final boolean daemon;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private DicomThreadFactory(String name, boolean daemon)
+		{
+			this.name = name;
+			this.daemon = daemon;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(daemon);
+
+			return thread;
+		}
+
+	}
+
+}
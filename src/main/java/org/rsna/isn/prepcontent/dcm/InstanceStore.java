@@ -0,0 +1,178 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.log4j.Logger;
+import org.rsna.isn.util.FileUtil;
+
+/**
+ * Content addressed store for received objects.  Each object is stored once,
+ * keyed by its SOP instance UID, and the copies in the job directories are 
+ * hard links to the stored object.  If a hard link can't be created (e.g. the
+ * job directory is on a different file system) the object is copied instead.
+ * <p>
+ * Entries are purged once they're older than the retention period.  Purging
+ * an entry doesn't affect the job directories since they hold their own 
+ * links to the data. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class InstanceStore
+{
+	private static final Logger logger = Logger.getLogger(InstanceStore.class);
+
+	private final File storeDir;
+
+	private final boolean hardLinks;
+
+	private final long retention;
+
+	private final Timer timer = new Timer("instance-store-purge", true);
+
+	/**
+	 * Create a new instance store.
+	 *
+	 * @param storeDir The directory objects are stored in
+	 * @param hardLinks If false, job directories get a copy of the object 
+	 * instead of a hard link
+	 * @param retentionInHours How long objects are kept in the store
+	 */
+	InstanceStore(File storeDir, boolean hardLinks, int retentionInHours)
+	{
+		this.storeDir = storeDir;
+		this.hardLinks = hardLinks;
+		this.retention = retentionInHours * DateUtils.MILLIS_PER_HOUR;
+
+		storeDir.mkdirs();
+
+		timer.schedule(new PurgeTask(), DateUtils.MILLIS_PER_HOUR,
+				DateUtils.MILLIS_PER_HOUR);
+	}
+
+	/**
+	 * Add a spooled object to the store.  If the store already contains an 
+	 * object with the same instance UID it will be replaced. 
+	 *
+	 * @param iuid The SOP instance UID of the object
+	 * @param spooled The spooled object
+	 * @return The stored file
+	 * @throws IOException If there was an error adding the object
+	 */
+	File put(String iuid, SpooledInstance spooled) throws IOException
+	{
+		File bucket = FileUtil.newFile(storeDir, Integer.toHexString(iuid.hashCode() & 0xff));
+		bucket.mkdirs();
+
+		File stored = FileUtil.newFile(bucket, iuid + ".dcm");
+		spooled.moveTo(stored);
+
+		return stored;
+	}
+
+	/**
+	 * Place a stored object in a job directory. 
+	 *
+	 * @param stored The stored file (as returned by put)
+	 * @param dest The file in the job directory
+	 * @throws IOException If there was an error creating the link or copy
+	 */
+	void link(File stored, File dest) throws IOException
+	{
+		Files.deleteIfExists(dest.toPath());
+
+		if (hardLinks)
+		{
+			try
+			{
+				Files.createLink(dest.toPath(), stored.toPath());
+
+				return;
+			}
+			catch (IOException ex)
+			{
+				logger.debug("Unable to link " + dest + " to " + stored
+						+ ". Copying file instead.", ex);
+			}
+			catch (UnsupportedOperationException ex)
+			{
+				logger.debug("Hard links not supported for " + dest
+						+ ". Copying file instead.", ex);
+			}
+		}
+
+		SpooledInstance.copy(stored, dest);
+	}
+
+	/**
+	 * Delete the objects that are older than the retention period. 
+	 *
+	 * @return The number of objects deleted
+	 */
+	int purge()
+	{
+		long cutoff = System.currentTimeMillis() - retention;
+		int count = 0;
+
+		File buckets[] = storeDir.listFiles();
+		if (buckets == null)
+			return 0;
+
+		for (File bucket : buckets)
+		{
+			File files[] = bucket.listFiles();
+			if (files == null)
+				continue;
+
+			for (File file : files)
+			{
+				if (file.lastModified() < cutoff && file.delete())
+					count++;
+			}
+		}
+
+		return count;
+	}
+
+	private class PurgeTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			int count = purge();
+
+			if (count > 0)
+				logger.info("Purged " + count + " object(s) from " + storeDir);
+		}
+
+	}
+
+}
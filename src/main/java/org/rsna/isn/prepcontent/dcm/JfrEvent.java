@@ -0,0 +1,335 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Java Flight Recorder events for the retrieval and ingest hot paths.  Each 
+ * event has a duration, a job id, an AE title, a byte count, an object 
+ * count and an outcome.  Fields that don't apply to an event are left as 0 
+ * or null. 
+ * <p>
+ * Events are committed in a finally block, so operations that fail or time
+ * out are recorded too.  The outcome is {@link #ERROR} unless the caller 
+ * sets it before the event is committed, e.g.: 
+ * <pre>
+ * JfrEvent event = JfrEvent.begin(JfrEvent.Type.CFIND);
+ * try
+ * {
+ *     ...
+ *     event.setOutcome(JfrEvent.SUCCESS);
+ * }
+ * finally
+ * {
+ *     event.commit(jobId, aeTitle, 0, count);
+ * }
+ * </pre>
+ * <p>
+ * The application is built for Java 7, which has no JFR API, so the event 
+ * types are created at runtime through jdk.jfr.EventFactory (Java 11 or 
+ * later).  On older JVMs, or when no recording has the events enabled, 
+ * {@link #begin(Type)} returns a shared no-op event, so the only cost is 
+ * one enabled check.  The events are in the "RSNA ISN / Prepare Content" 
+ * category, e.g.: 
+ * <pre>
+ * java -XX:StartFlightRecording=disk=true,maxage=1d,settings=profile ...
+ * </pre>
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JfrEvent
+{
+	private static final Logger logger = Logger.getLogger(JfrEvent.class);
+
+	/**
+	 * The operation completed
+	 */
+	public static final String SUCCESS = "success";
+
+	/**
+	 * The operation completed but didn't get everything it expected (e.g.
+	 * not all objects arrived before the timeout)
+	 */
+	public static final String INCOMPLETE = "incomplete";
+
+	/**
+	 * The operation threw an exception.  This is the default outcome. 
+	 */
+	public static final String ERROR = "error";
+
+	private static final JfrEvent DISABLED = new JfrEvent(null, null);
+
+	private static final String CATEGORY[] =
+	{
+		"RSNA ISN", "Prepare Content"
+	};
+
+	/**
+	 * Event types
+	 */
+	public enum Type
+	{
+		/**
+		 * An object is written to a temp file.  The jobs aren't known until
+		 * the header has been parsed and the object routed, so the job id 
+		 * is always 0.  Use the ROUTE event that follows on the same thread
+		 * to find the job. 
+		 */
+		SPOOL("Spool", "Spool Object"),
+		/**
+		 * The header of an object is parsed while it's spooled.  As with 
+		 * SPOOL, the job id is always 0. 
+		 */
+		PARSE_HEADER("ParseHeader", "Parse Object Header"),
+		ROUTE("Route", "Route Object"),
+		PLACE("Place", "Place Object"),
+		CFIND("CFind", "C-FIND"),
+		CMOVE("CMove", "C-MOVE"),
+		CMOVE_RESPONSE("CMoveResponse", "C-MOVE Response"),
+		CGET("CGet", "C-GET"),
+		CONNECT("Connect", "Open Association"),
+		WAIT_FOR_IMAGES("WaitForImages", "Wait For Images");
+
+		private final String name;
+
+		private final String label;
+
+		private EventFactory factory;
+
+		private Type(String name, String label)
+		{
+			this.name = name;
+			this.label = label;
+		}
+
+	}
+
+	private final EventFactory factory;
+
+	private final Object event;
+
+	private String outcome = ERROR;
+
+	static
+	{
+		try
+		{
+			for (Type type : Type.values())
+			{
+				type.factory = new EventFactory(type);
+			}
+
+			logger.info("JFR events are available.");
+		}
+		catch (Throwable ex)
+		{
+			for (Type type : Type.values())
+			{
+				type.factory = null;
+			}
+
+			logger.debug("JFR events are not supported by this JVM.", ex);
+		}
+	}
+
+	private JfrEvent(EventFactory factory, Object event)
+	{
+		this.factory = factory;
+		this.event = event;
+	}
+
+	/**
+	 * Start timing an event. 
+	 *
+	 * @param type The event type
+	 * @return The event.  Must be committed for it to be recorded. 
+	 */
+	public static JfrEvent begin(Type type)
+	{
+		EventFactory factory = type.factory;
+		if (factory == null || !factory.isEnabled())
+			return DISABLED;
+
+		try
+		{
+			Object event = factory.newEvent.invoke();
+			factory.begin.invoke(event);
+
+			return new JfrEvent(factory, event);
+		}
+		catch (Throwable ex)
+		{
+			return DISABLED;
+		}
+	}
+
+	/**
+	 * Set the outcome recorded when the event is committed. 
+	 *
+	 * @param outcome The outcome, e.g. {@link #SUCCESS} or the value 
+	 * returned by {@link #status(int)}
+	 */
+	public void setOutcome(String outcome)
+	{
+		// The disabled event is shared
+		if (event != null)
+			this.outcome = outcome;
+	}
+
+	/**
+	 * Get the outcome for a DICOM status.
+	 *
+	 * @param status The status from a DIMSE response
+	 * @return {@link #SUCCESS} if the status is 0, the status in hex 
+	 * otherwise (e.g. "A702")
+	 */
+	public static String status(int status)
+	{
+		return (status == 0) ? SUCCESS : String.format("%04X", status);
+	}
+
+	/**
+	 * Stop timing the event and record it.  Should be called from a finally
+	 * block. 
+	 *
+	 * @param jobId The job id or 0 if not known
+	 * @param aeTitle The AE title of the device or calling AE.  May be null.
+	 * @param bytes The number of bytes processed
+	 * @param count The number of objects processed
+	 */
+	public void commit(int jobId, String aeTitle, long bytes, int count)
+	{
+		if (event == null)
+			return;
+
+		try
+		{
+			factory.end.invoke(event);
+			if ((Boolean) factory.shouldCommit.invoke(event))
+			{
+				factory.set.invoke(event, 0, (Object) jobId);
+				factory.set.invoke(event, 1, (Object) aeTitle);
+				factory.set.invoke(event, 2, (Object) bytes);
+				factory.set.invoke(event, 3, (Object) count);
+				factory.set.invoke(event, 4, (Object) outcome);
+
+				factory.commit.invoke(event);
+			}
+		}
+		catch (Throwable ex)
+		{
+			logger.debug("Unable to commit JFR event", ex);
+		}
+	}
+
+	/**
+	 * Creates the events of one type through jdk.jfr.EventFactory.  A probe 
+	 * event is kept to check if the type is enabled before creating events.
+	 */
+	private static class EventFactory
+	{
+		private final MethodHandle newEvent;
+
+		private final MethodHandle begin;
+
+		private final MethodHandle end;
+
+		private final MethodHandle shouldCommit;
+
+		private final MethodHandle isEnabled;
+
+		private final MethodHandle set;
+
+		private final MethodHandle commit;
+
+		private final Object probe;
+
+		private EventFactory(Type type) throws Throwable
+		{
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			List<Object> annotations = Arrays.asList(
+					annotation.newInstance(Class.forName("jdk.jfr.Name"),
+					"org.rsna.isn.prepcontent." + type.name),
+					annotation.newInstance(Class.forName("jdk.jfr.Label"), type.label),
+					annotation.newInstance(Class.forName("jdk.jfr.Category"), CATEGORY));
+
+			Constructor<?> value = valueClass.getConstructor(Class.class, String.class);
+			List<Object> fields = new ArrayList<Object>();
+			fields.add(value.newInstance(int.class, "jobId"));
+			fields.add(value.newInstance(String.class, "aeTitle"));
+			fields.add(value.newInstance(long.class, "bytes"));
+			fields.add(value.newInstance(int.class, "count"));
+			fields.add(value.newInstance(String.class, "outcome"));
+
+			Object factory = factoryClass.getMethod("create", List.class, List.class)
+					.invoke(null, annotations, fields);
+
+
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodType voidType = MethodType.methodType(void.class);
+			MethodType booleanType = MethodType.methodType(boolean.class);
+
+			newEvent = lookup.findVirtual(factoryClass, "newEvent",
+					MethodType.methodType(eventClass)).bindTo(factory);
+			begin = lookup.findVirtual(eventClass, "begin", voidType);
+			end = lookup.findVirtual(eventClass, "end", voidType);
+			commit = lookup.findVirtual(eventClass, "commit", voidType);
+			shouldCommit = lookup.findVirtual(eventClass, "shouldCommit", booleanType);
+			isEnabled = lookup.findVirtual(eventClass, "isEnabled", booleanType);
+			set = lookup.findVirtual(eventClass, "set",
+					MethodType.methodType(void.class, int.class, Object.class));
+
+			probe = newEvent.invoke();
+		}
+
+		private boolean isEnabled()
+		{
+			try
+			{
+				return (Boolean) isEnabled.invoke(probe);
+			}
+			catch (Throwable ex)
+			{
+				return false;
+			}
+		}
+
+	}
+
+}
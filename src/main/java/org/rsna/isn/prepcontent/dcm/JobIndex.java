@@ -0,0 +1,234 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Process wide index of the jobs that are currently retrieving images.  Jobs
+ * are indexed by MRN/accession number and by study instance UID so the SCP 
+ * can route received objects without querying the database. 
+ * <p>
+ * Objects are also routed to failed jobs for the same exam, which aren't 
+ * indexed when another job is dispatched.  So an exam is only served from
+ * the index once the SCP has loaded all of its jobs from the database (see
+ * {@link #addExam}).  Removing one of its jobs sends the next lookup back to
+ * the database. 
+ * <p>
+ * Lookups don't lock.  Updates are serialized and replace the indexed lists 
+ * rather than modifying them.  A job is added when it's dispatched and 
+ * removed as soon as its status changes. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JobIndex
+{
+	private static final Map<String, List<Job>> byExam =
+			new ConcurrentHashMap<String, List<Job>>();
+
+	private static final Map<String, List<Job>> byStudy =
+			new ConcurrentHashMap<String, List<Job>>();
+
+	/**
+	 * Exams whose jobs have all been loaded from the database
+	 */
+	private static final Set<String> complete =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * The keys each job is indexed under.  Guarded by the class lock. 
+	 */
+	private static final Map<Integer, Keys> keys = new HashMap<Integer, Keys>();
+
+	private JobIndex()
+	{
+	}
+
+	/**
+	 * Index a job by its MRN and accession number. 
+	 *
+	 * @param job The job
+	 */
+	public static synchronized void add(Job job)
+	{
+		Exam exam = job.getExam();
+		if (exam == null)
+			return;
+
+		String key = getKey(exam.getMrn(), exam.getAccNum());
+
+		getKeys(job).exam = key;
+		byExam.put(key, with(byExam.get(key), job));
+	}
+
+	/**
+	 * Index all of the jobs for an exam that can receive objects, as loaded 
+	 * from the database.  Later lookups for the exam are served from the 
+	 * index until one of the jobs is removed. 
+	 *
+	 * @param mrn The MRN of the exam
+	 * @param accNum The accession number of the exam
+	 * @param studyUid The study instance UID of the received object
+	 * @param jobs The jobs
+	 */
+	public static synchronized void addExam(String mrn, String accNum,
+			String studyUid, List<Job> jobs)
+	{
+		for (Job job : jobs)
+		{
+			add(job);
+			addStudy(job, studyUid);
+		}
+
+		complete.add(getKey(mrn, accNum));
+	}
+
+	/**
+	 * Index a job by a study instance UID.
+	 *
+	 * @param job The job
+	 * @param studyUid The study instance UID
+	 */
+	public static synchronized void addStudy(Job job, String studyUid)
+	{
+		getKeys(job).studies.add(studyUid);
+		byStudy.put(studyUid, with(byStudy.get(studyUid), job));
+	}
+
+	/**
+	 * Remove a job from the index.  Should be called whenever the status of
+	 * the job changes. 
+	 *
+	 * @param job The job
+	 */
+	public static synchronized void remove(Job job)
+	{
+		Keys k = keys.remove(job.getJobId());
+		if (k == null)
+			return;
+
+		if (k.exam != null)
+		{
+			complete.remove(k.exam);
+
+			update(byExam, k.exam, without(byExam.get(k.exam), job));
+		}
+
+		for (String studyUid : k.studies)
+		{
+			update(byStudy, studyUid, without(byStudy.get(studyUid), job));
+		}
+	}
+
+	/**
+	 * Find the jobs an object belongs to. 
+	 *
+	 * @param mrn The patient id of the object
+	 * @param accNum The accession number of the object
+	 * @param studyUid The study instance UID of the object
+	 * @return The jobs or null if the jobs need to be loaded from the 
+	 * database
+	 */
+	static List<Job> get(String mrn, String accNum, String studyUid)
+	{
+		String key = getKey(mrn, accNum);
+
+		List<Job> jobs = byExam.get(key);
+		if (jobs != null)
+			return complete.contains(key) ? jobs : null;
+
+		return byStudy.get(studyUid);
+	}
+
+	private static Keys getKeys(Job job)
+	{
+		Keys k = keys.get(job.getJobId());
+		if (k == null)
+		{
+			k = new Keys();
+
+			keys.put(job.getJobId(), k);
+		}
+
+		return k;
+	}
+
+	private static String getKey(String mrn, String accNum)
+	{
+		return mrn + "/" + accNum;
+	}
+
+	private static void update(Map<String, List<Job>> index, String key, List<Job> jobs)
+	{
+		if (jobs.isEmpty())
+			index.remove(key);
+		else
+			index.put(key, Collections.unmodifiableList(jobs));
+	}
+
+	private static List<Job> with(List<Job> jobs, Job job)
+	{
+		List<Job> temp = without(jobs, job);
+		temp.add(job);
+
+		return Collections.unmodifiableList(temp);
+	}
+
+	private static List<Job> without(List<Job> jobs, Job job)
+	{
+		int jobId = job.getJobId();
+
+		List<Job> temp = new ArrayList<Job>();
+		if (jobs != null)
+		{
+			for (Job j : jobs)
+			{
+				if (j.getJobId() != jobId)
+					temp.add(j);
+			}
+		}
+
+		return temp;
+	}
+
+	private static class Keys
+	{
+		private String exam;
+
+		private final Set<String> studies = new HashSet<String>();
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.log4j.Logger;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.util.MonitorDao;
+import org.rsna.isn.prepcontent.util.MonitorDao.StatusUpdate;
+
+/**
+ * Coalesces progress comments for jobs that are being retrieved.  Progress 
+ * updates are kept in memory and only the latest comment for each job is 
+ * written to the database, once per flush interval.  The comments are 
+ * written in a single batch. 
+ * <p>
+ * A comment is only written while the job is still being retrieved, so a 
+ * late update (e.g. from a C-MOVE series thread) can't overwrite a job that
+ * has finished.  The pending comment for a job should still be cleared 
+ * (see {@link #clear(Job)}) before the job's status is changed so it isn't
+ * written after the job has been retried. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JobProgress
+{
+	private static final Logger logger = Logger.getLogger(JobProgress.class);
+
+	private static final Object lock = new Object();
+
+	private static final Map<Integer, Update> pending = new LinkedHashMap<Integer, Update>();
+
+	private static Timer timer;
+
+	private JobProgress()
+	{
+	}
+
+	/**
+	 * Set the progress comment for a job. 
+	 *
+	 * @param job The job
+	 * @param comments The comment
+	 */
+	public static void update(Job job, String comments)
+	{
+		synchronized (pending)
+		{
+			pending.put(job.getJobId(), new Update(job, comments));
+		}
+	}
+
+	/**
+	 * Discard the pending comment for a job.  If a flush is in progress, 
+	 * this will block until the flush has completed. 
+	 *
+	 * @param job The job
+	 */
+	public static void clear(Job job)
+	{
+		synchronized (lock)
+		{
+			synchronized (pending)
+			{
+				pending.remove(job.getJobId());
+			}
+		}
+	}
+
+	/**
+	 * Start flushing progress comments to the database. 
+	 *
+	 * @param interval The flush interval (in milliseconds)
+	 */
+	public static synchronized void start(long interval)
+	{
+		if (timer != null)
+			return;
+
+		timer = new Timer("job-progress", true);
+		timer.schedule(new FlushTask(), interval, interval);
+	}
+
+	private static class FlushTask extends TimerTask
+	{
+		private final MonitorDao dao = new MonitorDao(false);
+
+		@Override
+		public void run()
+		{
+			synchronized (lock)
+			{
+				List<Update> updates;
+				synchronized (pending)
+				{
+					updates = new ArrayList<Update>(pending.values());
+					pending.clear();
+				}
+
+				List<StatusUpdate> batch = new ArrayList<StatusUpdate>();
+				for (Update update : updates)
+				{
+					batch.add(new StatusUpdate(update.job, 
+							Job.RSNA_STARTED_DICOM_C_MOVE, update.comments));
+				}
+
+				try
+				{
+					dao.updateComments(batch);
+				}
+				catch (Exception ex)
+				{
+					logger.warn("Unable to update comments for " + updates.size() 
+							+ " job(s)", ex);
+				}
+			}
+		}
+
+	}
+
+	private static class Update
+	{
+		private final Job job;
+
+		private final String comments;
+
+		private Update(Job job, String comments)
+		{
+			this.job = job;
+			this.comments = comments;
+		}
+
+	}
+
+}
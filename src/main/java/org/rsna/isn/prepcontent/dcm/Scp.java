@@ -28,6 +28,24 @@
  * 3.1.0:
  *		05/20/2013: Wyatt Tellis
  *			- Switched to using ScpAssociationListener to track retried jobs
+ *
+ *
+ * 5.0.0:
+ *		10/17/2026: agent
+ *			- Received objects are now stored in an InstanceStore 
+ *			- Moved loading of scp.properties and creation of the instance
+ *			  store to static methods so they can be shared with CGet
+ *			- CStoreHandler no longer needs to listen for association events
+ *			- Added scp-async-ingest and related settings
+ *			- Added stop, which drains the ingest executor, and objects left
+ *			  in the ingest journal are replayed on start
+ *			- Associations are now serviced by a bounded DicomExecutor instead
+ *			  of a NewThreadExecutor
+ *			- PDU lengths and timeouts are read through ConfigCache and 
+ *			  changes are applied without a restart
+ *			- PDU length and idle timeout changes are applied by swapping in 
+ *			  a rebuilt application entity
+ *			- The depth of the ingest queue is exposed as a metric
  */
 package org.rsna.isn.prepcontent.dcm;
 
@@ -37,12 +55,20 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
@@ -51,11 +77,12 @@ import org.dcm4che2.data.UIDDictionary;
 import org.dcm4che2.net.Device;
 import org.dcm4che2.net.NetworkApplicationEntity;
 import org.dcm4che2.net.NetworkConnection;
-import org.dcm4che2.net.NewThreadExecutor;
 import org.dcm4che2.net.TransferCapability;
 import org.dcm4che2.net.service.VerificationService;
 import org.dcm4che2.util.UIDUtils;
 import org.rsna.isn.dao.ConfigurationDao;
+import org.rsna.isn.prepcontent.util.ConfigCache;
+import org.rsna.isn.prepcontent.util.Metrics;
 import org.rsna.isn.util.Environment;
 
 /**
@@ -63,7 +90,7 @@ import org.rsna.isn.util.Environment;
  * configuration from the database and starting the TCP/IP listener. 
  *
  * @author Wyatt Tellis
- * @version 3.2.0
+ * @version 5.0.0
  * @since 2.1.0
  */
 public class Scp
@@ -84,16 +111,37 @@ public class Scp
 
 	private final Device device;
 
+	private final DicomExecutor executor;
+
+	private final NetworkConnection nc;
+
+	private final TransferCapability[] capabilities;
+
+	private final ScpAssociationListener listener = new ScpAssociationListener();
+
+	private final CStoreHandler cstore;
+
+	private final ThreadPoolExecutor ingest;
+
+	private static InstanceStore store;
+
+	// Guarded by device
+	private int maxSendPduLength;
+
+	private int maxReceivePduLength;
+
+	private int idleTimeout;
+
 	public Scp() throws Exception
 	{
 		ConfigurationDao dao = new ConfigurationDao();
 
 
 		port = NumberUtils.toInt(dao.getConfiguration("scp-port"), 4104);
-		int releaseTimeout = NumberUtils.toInt(dao.getConfiguration("scp-release-timeout"), 5000);
-		int requestTimeout = NumberUtils.toInt(dao.getConfiguration("scp-request-timeout"), 5000);
+		int releaseTimeout = ConfigCache.getInt("scp-release-timeout", 5000);
+		int requestTimeout = ConfigCache.getInt("scp-request-timeout", 5000);
 
-		NetworkConnection nc = new NetworkConnection();
+		nc = new NetworkConnection();
 		nc.setPort(port);
 		nc.setReleaseTimeout(releaseTimeout);
 		nc.setRequestTimeout(requestTimeout);
@@ -105,19 +153,11 @@ public class Scp
 
 
 		this.aeTitle = StringUtils.defaultIfEmpty(dao.getConfiguration("scp-ae-title"), "RSNA-ISN");
-		int maxSendPduLength = NumberUtils.toInt(dao.getConfiguration("scp-max-send-pdu-length"), 16364);
-		int maxReceivePduLength = NumberUtils.toInt(dao.getConfiguration("scp-max-receive-pdu-length"), 16364);
-                int idleTimeout = NumberUtils.toInt(dao.getConfiguration("scp-idle-timeout"), 60000);
+		maxSendPduLength = ConfigCache.getInt("scp-max-send-pdu-length", 16364);
+		maxReceivePduLength = ConfigCache.getInt("scp-max-receive-pdu-length", 16364);
+                idleTimeout = ConfigCache.getInt("scp-idle-timeout", 60000);
                 
 
-		NetworkApplicationEntity ae = new NetworkApplicationEntity();
-		ae.setAETitle(aeTitle);
-		ae.setMaxPDULengthSend(maxSendPduLength);
-		ae.setMaxPDULengthReceive(maxReceivePduLength);
-		ae.setAssociationAcceptor(true);
-                ae.setIdleTimeout(idleTimeout);
-
-
 		List<TransferCapability> capabilities = new ArrayList<TransferCapability>();
 
 
@@ -125,8 +165,6 @@ public class Scp
 		//
 		// Enable C-ECHO support
 		//
-		ae.register(new VerificationService());
-
 		TransferCapability verification = new TransferCapability(UID.VerificationSOPClass,
 				CECHO_TS, TransferCapability.SCP);
 		capabilities.add(verification);
@@ -138,6 +176,142 @@ public class Scp
 		// Enable C-STORE support
 		//
 
+		Map<String, String[]> pcs = loadPresentationContexts();
+		String sopClassUids[] = pcs.keySet().toArray(new String[0]);
+
+		ThreadPoolExecutor ingest = null;
+		boolean syncBeforeAck = false;
+		if (Boolean.parseBoolean(dao.getConfiguration("scp-async-ingest")))
+		{
+			int threads = NumberUtils.toInt(dao.getConfiguration("scp-ingest-threads"), 4);
+			int queueSize = NumberUtils.toInt(dao.getConfiguration("scp-ingest-queue-size"), 100);
+			syncBeforeAck = Boolean.parseBoolean(dao.getConfiguration("scp-ingest-sync-before-ack"));
+
+			// When the queue is full the receiving thread routes the object
+			// itself, which throttles the sender
+			ingest = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new IngestThreadFactory(),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+
+			final BlockingQueue<Runnable> queue = ingest.getQueue();
+			Metrics.register(new Metrics.Gauge("scp_ingest_queue_size",
+					"Objects waiting for a writer thread")
+			{
+				@Override
+				public long getValue()
+				{
+					return queue.size();
+				}
+
+			});
+
+			logger.info("Enabling asynchronous ingest with " + threads 
+					+ " writer thread(s) and a queue of " + queueSize + " object(s).");
+		}
+
+		this.ingest = ingest;
+
+		cstore = new CStoreHandler(sopClassUids, getInstanceStore(),
+				ingest, syncBeforeAck);
+
+
+		for (String sopClassUid : sopClassUids)
+		{
+			String txUids[] = pcs.get(sopClassUid);
+
+			TransferCapability capability = new TransferCapability(sopClassUid,
+					txUids, TransferCapability.SCP);
+			capabilities.add(capability);
+
+			logger.info("Enabling C-STORE support for: "
+					+ dict.nameOf(sopClassUid) + " (" + sopClassUid + ")");
+		}
+
+		this.capabilities = capabilities.toArray(new TransferCapability[0]);
+
+
+
+
+		device = new Device();
+		device.setNetworkConnection(nc);
+		device.setNetworkApplicationEntity(createAe());
+
+		executor = DicomExecutor.create("scp", 200);
+
+		ConfigCache.addListener(new ConfigListener());
+	}
+
+	public void start() throws IOException
+	{
+		// Place any objects that were acknowledged but not placed before 
+		// the last shutdown
+		cstore.replay();
+
+		this.device.startListening(executor.named("Edge SCP"));
+
+		logger.info("Started listening on port "
+				+ port + " with AE title " + aeTitle);
+	}
+
+	/**
+	 * Stop listening and wait for the ingest executor (if any) to place the
+	 * objects it has queued.  Objects that aren't placed in time stay in the
+	 * journal and are placed on the next start. 
+	 *
+	 * @param timeout The max amount of time to wait (in milliseconds)
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public void stop(long timeout) throws InterruptedException
+	{
+		this.device.stopListening();
+
+		logger.info("Stopped listening on port " + port);
+
+		if (ingest != null)
+		{
+			ingest.shutdown();
+
+			if (!ingest.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+			{
+				logger.warn(ingest.getQueue().size() + " object(s) were not placed "
+						+ "before shutdown. They will be replayed on the next start.");
+			}
+		}
+	}
+
+	/**
+	 * Create the application entity from the current settings.  Once the 
+	 * device has been created, this must be called while holding its lock. 
+	 *
+	 * @return The application entity
+	 */
+	private NetworkApplicationEntity createAe()
+	{
+		NetworkApplicationEntity ae = new NetworkApplicationEntity();
+		ae.setAETitle(aeTitle);
+		ae.setMaxPDULengthSend(maxSendPduLength);
+		ae.setMaxPDULengthReceive(maxReceivePduLength);
+		ae.setAssociationAcceptor(true);
+		ae.setIdleTimeout(idleTimeout);
+
+		ae.register(new VerificationService());
+		ae.register(cstore);
+		ae.addAssociationListener(listener);
+		ae.setTransferCapability(capabilities);
+
+		return ae;
+	}
+
+	/**
+	 * Load the storage presentation contexts from the scp.properties file
+	 * in the configuration directory.  If the file doesn't exist, it's 
+	 * created from the default copy. 
+	 *
+	 * @return A map of SOP class UIDs to their transfer syntax UIDs
+	 * @throws IOException If there was an error reading the file
+	 */
+	static synchronized Map<String, String[]> loadPresentationContexts() throws IOException
+	{
 		Properties props = new Properties();
 		File confDir = Environment.getConfDir();
 		File propFile = new File(confDir, "scp.properties");
@@ -198,48 +372,85 @@ public class Scp
 			pcs.put(sopClass, txUids);
 		}
 
+		return pcs;
+	}
 
-
-
-		String sopClassUids[] = pcs.keySet().toArray(new String[0]);
-
-
-		CStoreHandler cstore = new CStoreHandler(sopClassUids);
-		ae.register(cstore);
-		ae.addAssociationListener(cstore);
-		
-		
-		ae.addAssociationListener(new ScpAssociationListener());
-
-
-		for (String sopClassUid : sopClassUids)
+	/**
+	 * Get the store received objects are saved to.  The store is created
+	 * on first use. 
+	 *
+	 * @return The instance store
+	 * @throws SQLException If there was an error loading the configuration
+	 */
+	static synchronized InstanceStore getInstanceStore() throws SQLException
+	{
+		if (store == null)
 		{
-			String txUids[] = pcs.get(sopClassUid);
+			ConfigurationDao dao = new ConfigurationDao();
 
-			TransferCapability capability = new TransferCapability(sopClassUid,
-					txUids, TransferCapability.SCP);
-			capabilities.add(capability);
+			boolean hardLinks = BooleanUtils.toBoolean(
+					StringUtils.defaultIfEmpty(dao.getConfiguration("instance-store-hard-links"), "true"));
+			int retention = NumberUtils.toInt(dao.getConfiguration("instance-store-retention-in-hours"), 24);
+			File storeDir = new File(Environment.getTmpDir(), "instances");
 
-			logger.info("Enabling C-STORE support for: "
-					+ dict.nameOf(sopClassUid) + " (" + sopClassUid + ")");
+			store = new InstanceStore(storeDir, hardLinks, retention);
 		}
 
-		ae.setTransferCapability(capabilities.toArray(new TransferCapability[0]));
-
+		return store;
+	}
 
+	/**
+	 * Applies changes to the PDU lengths and timeouts.  The PDU lengths and 
+	 * idle timeout are applied by building a new application entity and 
+	 * swapping it into the device, while the release and request timeouts 
+	 * are set on the shared network connection.  dcm4che2 doesn't take the 
+	 * device lock when it accepts an association, so the lock only keeps 
+	 * changes from interleaving with each other.  An association that is 
+	 * being negotiated while a change is applied may see the old or the new
+	 * values.  Only associations opened after the change are sure to use 
+	 * the new values. 
+	 */
+	private class ConfigListener implements ConfigCache.Listener
+	{
+		@Override
+		public void configurationChanged(String key, String oldValue, String newValue)
+		{
+			synchronized (device)
+			{
+				if ("scp-max-send-pdu-length".equals(key))
+					maxSendPduLength = NumberUtils.toInt(newValue, 16364);
+				else if ("scp-max-receive-pdu-length".equals(key))
+					maxReceivePduLength = NumberUtils.toInt(newValue, 16364);
+				else if ("scp-idle-timeout".equals(key))
+					idleTimeout = NumberUtils.toInt(newValue, 60000);
+				else if ("scp-release-timeout".equals(key))
+					nc.setReleaseTimeout(NumberUtils.toInt(newValue, 5000));
+				else if ("scp-request-timeout".equals(key))
+					nc.setRequestTimeout(NumberUtils.toInt(newValue, 5000));
+				else
+					return;
+
+				device.setNetworkApplicationEntity(createAe());
+			}
 
+			logger.info("Applied new value of " + key + " to the SCP.");
+		}
 
-		device = new Device();
-		device.setNetworkConnection(nc);
-		device.setNetworkApplicationEntity(ae);
 	}
 
-	public void start() throws IOException
+	private static class IngestThreadFactory implements ThreadFactory
 	{
-		this.device.startListening(new NewThreadExecutor("Edge SCP"));
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "scp-ingest-" + count.incrementAndGet());
+			thread.setDaemon(true);
+
+			return thread;
+		}
 
-		logger.info("Started listening on port "
-				+ port + " with AE title " + aeTitle);
 	}
 
 }
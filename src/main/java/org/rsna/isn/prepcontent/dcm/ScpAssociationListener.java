@@ -42,7 +42,7 @@ import org.rsna.isn.domain.Job;
  *
  * @author Wyatt Tellis
  * @since 3.1.0
- * @version 3.1.0
+ * @version 5.0.0
  */
 public class ScpAssociationListener implements AssociationListener
 {
@@ -77,6 +77,9 @@ public class ScpAssociationListener implements AssociationListener
 				int status = retry.getStatus();
 				if (status == Job.RSNA_STARTED_DICOM_C_MOVE)
 				{
+					JobProgress.clear(job);
+					JobIndex.remove(job);
+
 					dao.updateStatus(job,
 							Job.RSNA_WAITING_FOR_PREPARE_CONTENT, "Retried by SCP");
 
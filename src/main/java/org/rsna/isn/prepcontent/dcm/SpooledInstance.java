@@ -0,0 +1,322 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.TransferSyntax;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.rsna.isn.prepcontent.util.Metrics;
+
+/**
+ * A DICOM object that has been spooled to a temp file.  The header (i.e.
+ * everything up to the pixel data) is parsed from the network stream while
+ * the object is being written, so the object only has to be written to disk
+ * once.
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+class SpooledInstance
+{
+	private static final AtomicInteger pending = new AtomicInteger();
+
+	private File file;
+
+	private final DicomObject header;
+
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	static
+	{
+		Metrics.register(new Metrics.Gauge("spool_depth", 
+				"Objects in the temp directory waiting to be routed")
+		{
+			@Override
+			public long getValue()
+			{
+				return pending.get();
+			}
+
+		});
+	}
+
+	private SpooledInstance(File file, DicomObject header)
+	{
+		this.file = file;
+		this.header = header;
+	}
+
+	/**
+	 * Get the value of file
+	 *
+	 * @return the value of file
+	 */
+	File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Get the value of header
+	 *
+	 * @return the value of header
+	 */
+	DicomObject getHeader()
+	{
+		return header;
+	}
+
+	/**
+	 * Move the spooled object to its final location.  An atomic rename is 
+	 * attempted first. If that fails (e.g. the destination is on a different 
+	 * file system) the object is copied and the temp file is deleted.
+	 *
+	 * @param dest The destination file
+	 * @throws IOException If there was an error moving the file
+	 */
+	void moveTo(File dest) throws IOException
+	{
+		try
+		{
+			Files.move(file.toPath(), dest.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException ex) // Includes AtomicMoveNotSupportedException
+		{
+			Files.deleteIfExists(dest.toPath());
+
+			copy(file, dest);
+
+			file.delete();
+		}
+	}
+
+	/**
+	 * Move the temp file into a journal directory.  The directory must be
+	 * on the same file system as the temp file. 
+	 *
+	 * @param dir The journal directory
+	 * @throws IOException If there was an error moving the file
+	 */
+	void journal(File dir) throws IOException
+	{
+		File dest = new File(dir, file.getName());
+		Files.move(file.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		file = dest;
+	}
+
+	/**
+	 * Force the temp file to disk so the object survives a crash. 
+	 *
+	 * @throws IOException If there was an error syncing the file
+	 */
+	void sync() throws IOException
+	{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try
+		{
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Delete the temp file (if it still exists).
+	 */
+	void delete()
+	{
+		if (released.compareAndSet(false, true))
+			pending.decrementAndGet();
+
+		if (file.exists())
+			file.delete();
+	}
+
+	/**
+	 * Spool a DICOM object to a temp file.
+	 *
+	 * @param in The stream containing the dataset
+	 * @param cuid The SOP class UID of the object
+	 * @param iuid The SOP instance UID of the object
+	 * @param tsuid The transfer syntax UID of the dataset
+	 * @param tmpDir The directory to create the temp file in
+	 * @return The spooled object
+	 * @throws IOException If there was an error writing the temp file
+	 */
+	static SpooledInstance spool(InputStream in, String cuid, String iuid,
+			String tsuid, File tmpDir) throws IOException
+	{
+		File tmpFile = File.createTempFile(iuid + "-", ".dcm", tmpDir);
+		try
+		{
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+			try
+			{
+				DicomOutputStream dos = new DicomOutputStream(out);
+
+				BasicDicomObject fmi = new BasicDicomObject();
+				fmi.initFileMetaInformation(cuid, iuid, tsuid);
+				dos.writeFileMetaInformation(fmi);
+				dos.flush();
+
+
+				// Everything read by the parser is also written to the
+				// temp file, so whatever the parser buffers ahead is not lost
+				InputStream tee = new TeeInputStream(in, out);
+
+				DicomInputStream din = 
+						new DicomInputStream(tee, TransferSyntax.valueOf(tsuid));
+				din.setHandler(new StopTagInputHandler(Tag.PixelData));
+
+				// The jobs aren't known yet, so the job id is 0
+				JfrEvent event = JfrEvent.begin(JfrEvent.Type.PARSE_HEADER);
+				DicomObject header;
+				try
+				{
+					header = din.readDicomObject();
+
+					event.setOutcome(JfrEvent.SUCCESS);
+				}
+				finally
+				{
+					event.commit(0, null, 0, 1);
+				}
+
+
+				// Write out the rest of the object (i.e. the pixel data)
+				IOUtils.copy(in, out);
+
+				pending.incrementAndGet();
+
+				return new SpooledInstance(tmpFile, header);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			tmpFile.delete();
+
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			tmpFile.delete();
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Load an object that was spooled earlier (e.g. one left in the journal
+	 * directory).  Only the header is read. 
+	 *
+	 * @param file The spooled file
+	 * @return The spooled object
+	 * @throws IOException If there was an error reading the file
+	 */
+	static SpooledInstance load(File file) throws IOException
+	{
+		DicomInputStream din = new DicomInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			din.setHandler(new StopTagInputHandler(Tag.PixelData));
+			DicomObject header = din.readDicomObject();
+
+			pending.incrementAndGet();
+
+			return new SpooledInstance(file, header);
+		}
+		finally
+		{
+			din.close();
+		}
+	}
+
+	/**
+	 * Copy a file using FileChannel.transferTo, which allows the OS to 
+	 * copy the data without passing it through the JVM heap.
+	 *
+	 * @param src The source file
+	 * @param dest The destination file
+	 * @throws IOException If there was an error copying the file
+	 */
+	static void copy(File src, File dest) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(src);
+		try
+		{
+			FileOutputStream fos = new FileOutputStream(dest);
+			try
+			{
+				FileChannel in = fis.getChannel();
+				FileChannel out = fos.getChannel();
+
+				long size = in.size();
+				long pos = 0;
+				while (pos < size)
+				{
+					pos += in.transferTo(pos, size - pos, out);
+				}
+			}
+			finally
+			{
+				fos.close();
+			}
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+}
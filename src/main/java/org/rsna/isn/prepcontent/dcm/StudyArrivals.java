@@ -0,0 +1,253 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Tracks the objects that arrive in a study directory while a worker is 
+ * waiting for them.  The C-STORE handler reports each object it saves, so 
+ * workers can wait for objects without repeatedly listing the directory.
+ * <p>
+ * Optionally, study directories can also be watched with a WatchService to
+ * pick up objects that are saved by something other than the C-STORE handler.
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class StudyArrivals
+{
+	private static final Logger logger = Logger.getLogger(StudyArrivals.class);
+
+	private static final Map<File, StudyArrivals> studies =
+			new ConcurrentHashMap<File, StudyArrivals>();
+
+	private static WatchService watcher;
+
+	private final File dir;
+
+	private final Set<String> names = new HashSet<String>();
+
+	private WatchKey key;
+
+	private StudyArrivals(File dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the number of objects in the study directory.
+	 *
+	 * @return The number of objects
+	 */
+	public synchronized int getCount()
+	{
+		return names.size();
+	}
+
+	/**
+	 * Wait for the number of objects in the study directory to change.
+	 *
+	 * @param count The last count seen by the caller
+	 * @param timeout The max amount of time to wait (in milliseconds)
+	 * @return The current number of objects
+	 * @throws InterruptedException If the thread was interrupted
+	 */
+	public synchronized int awaitChange(int count, long timeout)
+			throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+
+		long remaining = timeout;
+		while (names.size() == count && remaining > 0)
+		{
+			wait(remaining);
+
+			remaining = end - System.currentTimeMillis();
+		}
+
+		return names.size();
+	}
+
+	private synchronized void add(String name)
+	{
+		if (names.add(name))
+			notifyAll();
+	}
+
+	/**
+	 * Add the objects that are already in the study directory. 
+	 */
+	private void scan()
+	{
+		String list[] = dir.list();
+		if (list != null)
+		{
+			for (String name : list)
+			{
+				if (new File(dir, name).isFile())
+					add(name);
+			}
+		}
+	}
+
+	/**
+	 * Start tracking a study directory.  This should be called before the
+	 * retrieval is started, so no objects are missed. 
+	 *
+	 * @param dir The study directory
+	 * @return The tracker for the directory
+	 */
+	public static StudyArrivals register(File dir)
+	{
+		// Publish the tracker before listing the directory, so an object
+		// saved while the directory is being listed is still reported
+		StudyArrivals study = new StudyArrivals(dir);
+		studies.put(dir, study);
+
+		if (watcher != null)
+		{
+			try
+			{
+				dir.mkdirs();
+
+				study.key = dir.toPath().register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE);
+			}
+			catch (IOException ex)
+			{
+				logger.warn("Unable to watch " + dir, ex);
+			}
+		}
+
+		study.scan();
+
+		return study;
+	}
+
+	/**
+	 * Stop tracking a study directory.
+	 *
+	 * @param dir The study directory
+	 */
+	public static void unregister(File dir)
+	{
+		StudyArrivals study = studies.remove(dir);
+		if (study != null && study.key != null)
+			study.key.cancel();
+	}
+
+	/**
+	 * Report that an object was saved to a study directory.  Does nothing
+	 * if the directory isn't being tracked. 
+	 *
+	 * @param dir The study directory
+	 * @param name The name of the file
+	 */
+	static void arrived(File dir, String name)
+	{
+		StudyArrivals study = studies.get(dir);
+		if (study != null)
+			study.add(name);
+	}
+
+	/**
+	 * Start watching tracked study directories with a WatchService.
+	 *
+	 * @throws IOException If the watch service couldn't be created
+	 */
+	public static synchronized void startWatching() throws IOException
+	{
+		if (watcher != null)
+			return;
+
+		watcher = FileSystems.getDefault().newWatchService();
+
+		Thread thread = new Thread(new WatchTask(watcher), "study-watcher");
+		thread.setDaemon(true);
+		thread.start();
+
+		logger.info("Started watching study directories");
+	}
+
+	private static class WatchTask implements Runnable
+	{
+		private final WatchService watcher;
+
+		private WatchTask(WatchService watcher)
+		{
+			this.watcher = watcher;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					WatchKey key = watcher.take();
+
+					File dir = ((Path) key.watchable()).toFile();
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						// Events were lost, so list the directory again
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						{
+							StudyArrivals study = studies.get(dir);
+							if (study != null)
+								study.scan();
+
+							continue;
+						}
+
+						Path name = (Path) event.context();
+						arrived(dir, name.toString());
+					}
+
+					key.reset();
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				logger.warn("Study watcher interrupted", ex);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,47 @@
+--
+-- Triggers used by the prepare content application to pick up job, exam and
+-- configuration changes without polling.  To use them, run this script against the RSNA
+-- database and set job-events-enabled to true in the configurations table.
+-- The channel is passed to the triggers as an argument and must match the 
+-- job-events-channel configuration value (prep_content by default):
+--
+--     psql -v channel=prep_content -f job-events.sql rsnadb
+--
+-- Notifications sent in the same transaction are delivered once, so a
+-- statement that updates many jobs only wakes the monitor once.  The 
+-- monitor marks its own status changes with the prep_content.monitor setting
+-- since it doesn't need to hear about them.  The status of an exam comes
+-- from its reports, so exam changes are picked up from the reports table.
+-- Requires PostgreSQL 9.6 or later.
+--
+
+CREATE OR REPLACE FUNCTION notify_prep_content() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('prep_content.monitor', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+
+	PERFORM pg_notify(TG_ARGV[0], TG_TABLE_NAME);
+
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+
+DROP TRIGGER IF EXISTS prep_content_job_insert ON jobs;
+CREATE TRIGGER prep_content_job_insert AFTER INSERT ON jobs
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_prep_content(:'channel');
+
+DROP TRIGGER IF EXISTS prep_content_job_update ON jobs;
+CREATE TRIGGER prep_content_job_update AFTER UPDATE ON jobs
+	FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status)
+	EXECUTE PROCEDURE notify_prep_content(:'channel');
+
+DROP TRIGGER IF EXISTS prep_content_config_update ON configurations;
+CREATE TRIGGER prep_content_config_update AFTER INSERT OR UPDATE OR DELETE ON configurations
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_prep_content(:'channel');
+
+DROP TRIGGER IF EXISTS prep_content_exam_update ON exams;
+DROP TRIGGER IF EXISTS prep_content_report_update ON reports;
+CREATE TRIGGER prep_content_report_update AFTER INSERT OR UPDATE ON reports
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_prep_content(:'channel');
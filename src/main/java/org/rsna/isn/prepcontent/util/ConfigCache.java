@@ -0,0 +1,254 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.log4j.Logger;
+import org.rsna.isn.dao.ConfigurationDao;
+
+/**
+ * Cache of configuration values.  Values are loaded from the database the
+ * first time they're requested and are reloaded once they're older than the 
+ * cache TTL, or right away when {@link #refresh()} is called (e.g. when the
+ * configurations table changes).  Listeners are notified when a reloaded 
+ * value differs from the cached one. 
+ * <p>
+ * Until {@link #start(long)} is called, every lookup goes to the database. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class ConfigCache
+{
+	private static final Logger logger = Logger.getLogger(ConfigCache.class);
+
+	private static final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private static volatile long ttl = 0;
+
+	private static Timer timer;
+
+	// Replaced by the unit tests
+	static ConfigurationDao dao = new ConfigurationDao();
+
+	private ConfigCache()
+	{
+	}
+
+	/**
+	 * Notified when a configuration value changes.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called after a value has changed.
+		 *
+		 * @param key The configuration key
+		 * @param oldValue The previous value.  May be null.
+		 * @param newValue The new value.  May be null. 
+		 */
+		void configurationChanged(String key, String oldValue, String newValue);
+
+	}
+
+	/**
+	 * Get a configuration value. 
+	 *
+	 * @param key The configuration key
+	 * @return The value or null if not set
+	 * @throws SQLException If there was an error loading the value
+	 */
+	public static String getString(String key) throws SQLException
+	{
+		if (ttl <= 0)
+			return dao.getConfiguration(key);
+
+		Entry entry = cache.get(key);
+		if (entry == null || entry.isExpired())
+			entry = load(key);
+
+		return entry.value;
+	}
+
+	public static String getString(String key, String defaultValue) throws SQLException
+	{
+		return StringUtils.defaultIfEmpty(getString(key), defaultValue);
+	}
+
+	public static int getInt(String key, int defaultValue) throws SQLException
+	{
+		return NumberUtils.toInt(getString(key), defaultValue);
+	}
+
+	public static long getLong(String key, long defaultValue) throws SQLException
+	{
+		return NumberUtils.toLong(getString(key), defaultValue);
+	}
+
+	/**
+	 * Get a boolean configuration value.  Only "true" and "false" (in any 
+	 * case) are recognized, anything else returns the default. 
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) throws SQLException
+	{
+		String value = StringUtils.trimToEmpty(getString(key));
+		if ("true".equalsIgnoreCase(value))
+			return true;
+		else if ("false".equalsIgnoreCase(value))
+			return false;
+		else
+			return defaultValue;
+	}
+
+	public static void addListener(Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Enable caching and start the task that reloads cached values. 
+	 *
+	 * @param timeToLive How long values are cached (in milliseconds)
+	 */
+	public static synchronized void start(long timeToLive)
+	{
+		if (timer != null || timeToLive <= 0)
+			return;
+
+		ttl = timeToLive;
+
+		timer = new Timer("config-cache", true);
+		timer.schedule(new RefreshTask(), timeToLive, timeToLive);
+	}
+
+	/**
+	 * Stop the reload task and disable caching. 
+	 */
+	public static synchronized void stop()
+	{
+		if (timer != null)
+		{
+			timer.cancel();
+			timer = null;
+		}
+
+		ttl = 0;
+		cache.clear();
+	}
+
+	/**
+	 * Reload all cached values in the background.  Used when the database 
+	 * signals that the configuration has changed. 
+	 */
+	public static synchronized void refresh()
+	{
+		if (timer != null)
+			timer.schedule(new RefreshTask(), 0);
+	}
+
+	private static Entry load(String key) throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		Entry entry = new Entry(dao.getConfiguration(key));
+		Metrics.db("getConfiguration").updateSince(start);
+
+		Entry old = cache.put(key, entry);
+		if (old != null && !ObjectUtils.equals(old.value, entry.value))
+		{
+			logger.info("Configuration value " + key + " changed from \"" 
+					+ old.value + "\" to \"" + entry.value + "\".");
+
+			for (Listener listener : listeners)
+			{
+				try
+				{
+					listener.configurationChanged(key, old.value, entry.value);
+				}
+				catch (RuntimeException ex)
+				{
+					logger.warn("Uncaught exception in configuration listener.", ex);
+				}
+			}
+		}
+
+		return entry;
+	}
+
+	private static class Entry
+	{
+		private final String value;
+
+		private final long loaded = System.currentTimeMillis();
+
+		private Entry(String value)
+		{
+			this.value = value;
+		}
+
+		private boolean isExpired()
+		{
+			return System.currentTimeMillis() - loaded >= ttl;
+		}
+
+	}
+
+	private static class RefreshTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			for (String key : new ArrayList<String>(cache.keySet()))
+			{
+				try
+				{
+					load(key);
+				}
+				catch (SQLException ex)
+				{
+					logger.warn("Unable to reload configuration value " + key, ex);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,295 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.util.Environment;
+
+/**
+ * Records when each job passes through the phases of a retrieval.  The 
+ * timestamps are kept in memory while the job is being processed and are 
+ * appended as one line to a CSV file when the worker changes the job's 
+ * status.  A job that is retried gets one line per attempt.  Use 
+ * JobTimelineReport to summarize the file. 
+ * <p>
+ * The file is set by job-timeline-file (job-timeline.csv in the logs 
+ * directory of the RSNA root by default, next to the application logs).  Recording can be turned off by 
+ * setting job-timeline-enabled to false. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JobTimeline
+{
+	private static final Logger logger = Logger.getLogger(JobTimeline.class);
+
+	/**
+	 * Columns of the CSV file.  Times are in milliseconds since the epoch
+	 * and are empty if the job didn't reach that phase. 
+	 */
+	public static final String HEADER = "job_id,status,devices,modalities,"
+			+ "expected,instances,bytes,finalized,queued,started,find,"
+			+ "move_start,first_instance,last_instance,handoff";
+
+	/**
+	 * Phases of a retrieval
+	 */
+	public enum Phase
+	{
+		/**
+		 * The exam reached its current status (e.g. the report was finalized)
+		 */
+		FINALIZED,
+		/**
+		 * The monitor handed the job to the worker pool
+		 */
+		QUEUED,
+		/**
+		 * A worker started processing the job
+		 */
+		STARTED,
+		/**
+		 * The C-FINDs completed
+		 */
+		FIND,
+		/**
+		 * The first retrieval was requested
+		 */
+		MOVE_START,
+		FIRST_INSTANCE,
+		LAST_INSTANCE,
+		/**
+		 * The job's status was updated by the worker
+		 */
+		HANDOFF
+	}
+
+	private static final Map<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+
+	private JobTimeline()
+	{
+	}
+
+	/**
+	 * Start recording a job.  Any earlier timeline for the job is discarded. 
+	 *
+	 * @param job The job
+	 */
+	public static void queued(Job job)
+	{
+		Entry entry = new Entry();
+
+		Exam exam = job.getExam();
+		Date finalized = (exam != null) ? exam.getStatusTimestamp() : null;
+		if (finalized != null)
+			entry.times[Phase.FINALIZED.ordinal()] = finalized.getTime();
+
+		entry.times[Phase.QUEUED.ordinal()] = System.currentTimeMillis();
+
+		entries.put(job.getJobId(), entry);
+	}
+
+	/**
+	 * Record that a job reached a phase.  Only the first time is kept. 
+	 *
+	 * @param job The job
+	 * @param phase The phase
+	 */
+	public static void mark(Job job, Phase phase)
+	{
+		Entry entry = entries.get(job.getJobId());
+		if (entry != null)
+			entry.mark(phase, System.currentTimeMillis());
+	}
+
+	/**
+	 * Record a study that is being retrieved for a job.
+	 *
+	 * @param job The job
+	 * @param aeTitle The device the study is retrieved from
+	 * @param expected The number of objects the device reported
+	 */
+	public static void addStudy(Job job, String aeTitle, int expected)
+	{
+		Entry entry = entries.get(job.getJobId());
+		if (entry != null)
+		{
+			synchronized (entry)
+			{
+				entry.devices.add(clean(aeTitle));
+				entry.expected += expected;
+			}
+		}
+	}
+
+	/**
+	 * Record an object that was saved for a job.
+	 *
+	 * @param job The job
+	 * @param modality The modality of the object
+	 * @param bytes The size of the object
+	 */
+	public static void received(Job job, String modality, long bytes)
+	{
+		Entry entry = entries.get(job.getJobId());
+		if (entry == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		synchronized (entry)
+		{
+			entry.mark(Phase.FIRST_INSTANCE, now);
+			entry.times[Phase.LAST_INSTANCE.ordinal()] = now;
+
+			entry.instances++;
+			entry.bytes += bytes;
+
+			if (StringUtils.isNotBlank(modality))
+				entry.modalities.add(clean(modality));
+		}
+	}
+
+	/**
+	 * Record the status a worker left a job in and write the job's timeline
+	 * to the file. 
+	 *
+	 * @param job The job
+	 * @param status The new status
+	 */
+	public static void finish(Job job, int status)
+	{
+		Entry entry = entries.remove(job.getJobId());
+		if (entry == null)
+			return;
+
+		entry.mark(Phase.HANDOFF, System.currentTimeMillis());
+
+		StringBuilder sb = new StringBuilder();
+		synchronized (entry)
+		{
+			sb.append(job.getJobId()).append(',');
+			sb.append(status).append(',');
+			sb.append(StringUtils.join(entry.devices, '|')).append(',');
+			sb.append(StringUtils.join(entry.modalities, '|')).append(',');
+			sb.append(entry.expected).append(',');
+			sb.append(entry.instances).append(',');
+			sb.append(entry.bytes);
+
+			for (long time : entry.times)
+			{
+				sb.append(',');
+				if (time > 0)
+					sb.append(time);
+			}
+		}
+
+		try
+		{
+			if (!ConfigCache.getBoolean("job-timeline-enabled", true))
+				return;
+
+			String path = ConfigCache.getString("job-timeline-file");
+			File file = StringUtils.isNotBlank(path) ? new File(path)
+					: new File(getLogDir(), "job-timeline.csv");
+
+			append(file, sb.toString());
+		}
+		catch (Exception ex)
+		{
+			logger.warn("Unable to record timeline of " + job, ex);
+		}
+	}
+
+	/**
+	 * The configuration directory is meant for files an administrator edits
+	 * (and is often backed up or under version control), so the timeline 
+	 * goes in the logs directory alongside it. 
+	 */
+	private static File getLogDir()
+	{
+		File logDir = new File(Environment.getConfDir().getParentFile(), "logs");
+		logDir.mkdirs();
+
+		return logDir;
+	}
+
+	private static synchronized void append(File file, String line) throws IOException
+	{
+		boolean header = !file.exists() || file.length() == 0;
+
+		Writer out = new FileWriter(file, true);
+		try
+		{
+			if (header)
+				out.write(HEADER + "\n");
+
+			out.write(line + "\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static String clean(String value)
+	{
+		return StringUtils.replaceChars(value.trim(), ",|\r\n", "    ");
+	}
+
+	private static class Entry
+	{
+		private final long times[] = new long[Phase.values().length];
+
+		private final Set<String> devices = new TreeSet<String>();
+
+		private final Set<String> modalities = new TreeSet<String>();
+
+		private int expected;
+
+		private int instances;
+
+		private long bytes;
+
+		private synchronized void mark(Phase phase, long time)
+		{
+			if (times[phase.ordinal()] == 0)
+				times[phase.ordinal()] = time;
+		}
+
+	}
+
+}
@@ -0,0 +1,338 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Summarizes job timeline files written by JobTimeline.  For each device, 
+ * modality and hour of day (based on when the exam was finalized, or 
+ * queued if that's unknown) the report shows how many jobs were ready or 
+ * failed, percentiles of the time it took jobs to become ready and the 
+ * median time spent in each phase.  All times are in seconds. 
+ * <p>
+ * Each job is counted once, by its outcome: the last line for the job that 
+ * left it ready or failed.  Lines for attempts that were requeued are 
+ * skipped, so a job that needed several attempts isn't counted several 
+ * times.  Time to ready is measured from the start of the job to the 
+ * hand off of its final attempt, so it includes the time spent retrying. 
+ * <p>
+ * Usage: JobTimelineReport &lt;timeline file&gt; [&lt;timeline file&gt; ...]
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JobTimelineReport
+{
+	private static final double PERCENTILES[] =
+	{
+		50, 90, 99
+	};
+
+	/**
+	 * Reported phases.  Each one runs from the previous column to the 
+	 * named column. 
+	 */
+	private static final String PHASES[][] =
+	{
+		{ "pending", "finalized", "queued" },
+		{ "queue", "queued", "started" },
+		{ "find", "started", "find" },
+		{ "move-wait", "find", "move_start" },
+		{ "first", "move_start", "first_instance" },
+		{ "transfer", "first_instance", "last_instance" },
+		{ "handoff", "last_instance", "handoff" }
+	};
+
+	private final Map<String, Map<String, Group>> groupings = 
+			new TreeMap<String, Map<String, Group>>();
+
+	private final Map<String, Row> outcomes = new LinkedHashMap<String, Row>();
+
+	private JobTimelineReport()
+	{
+		groupings.put("1 all", new TreeMap<String, Group>());
+		groupings.put("2 device", new TreeMap<String, Group>());
+		groupings.put("3 modality", new TreeMap<String, Group>());
+		groupings.put("4 hour", new TreeMap<String, Group>());
+	}
+
+	private void load(String path) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try
+		{
+			Map<String, Integer> columns = new HashMap<String, Integer>();
+
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String values[] = StringUtils.splitPreserveAllTokens(line, ',');
+				if (line.startsWith("job_id"))
+				{
+					// The header may be repeated if files were concatenated
+					columns.clear();
+					for (int i = 0; i < values.length; i++)
+					{
+						columns.put(values[i], i);
+					}
+
+					continue;
+				}
+
+				if (columns.isEmpty() || values.length < columns.size())
+					continue;
+
+				// Requeued attempts aren't outcomes
+				Row row = new Row(columns, values);
+				if (row.getStatus() == Job.RSNA_WAITING_FOR_PREPARE_CONTENT)
+					continue;
+
+				// Lines are appended as attempts finish, so a later line for
+				// the same job replaces the earlier one
+				outcomes.remove(row.get("job_id"));
+				outcomes.put(row.get("job_id"), row);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void summarize()
+	{
+		for (Row row : outcomes.values())
+		{
+			add(row);
+		}
+	}
+
+	private void add(Row row)
+	{
+		long start = (row.getTime("finalized") > 0)
+				? row.getTime("finalized") : row.getTime("queued");
+
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(start);
+		String hour = String.format("%02d:00", cal.get(Calendar.HOUR_OF_DAY));
+
+		getGroup("1 all", "all").add(row, start);
+		getGroup("2 device", StringUtils.defaultIfEmpty(row.get("devices"), "-")).add(row, start);
+		getGroup("3 modality", StringUtils.defaultIfEmpty(row.get("modalities"), "-")).add(row, start);
+		getGroup("4 hour", hour).add(row, start);
+	}
+
+	private Group getGroup(String grouping, String name)
+	{
+		Map<String, Group> groups = groupings.get(grouping);
+
+		Group group = groups.get(name);
+		if (group == null)
+		{
+			group = new Group();
+			groups.put(name, group);
+		}
+
+		return group;
+	}
+
+	private void print(PrintStream out)
+	{
+		for (Map.Entry<String, Map<String, Group>> grouping : groupings.entrySet())
+		{
+			String title = grouping.getKey().substring(2);
+
+			out.println();
+			out.print(String.format("%-20s%7s%7s%7s", title, "jobs", "ready", "failed"));
+			for (double p : PERCENTILES)
+			{
+				out.print(String.format("%9s", "p" + (int) p));
+			}
+			out.print("  |");
+			for (String phase[] : PHASES)
+			{
+				out.print(String.format("%10s", phase[0]));
+			}
+			out.println(String.format("%10s", "MB"));
+
+			for (Map.Entry<String, Group> entry : grouping.getValue().entrySet())
+			{
+				Group group = entry.getValue();
+
+				out.print(String.format("%-20s%7d%7d%7d",
+						StringUtils.abbreviate(entry.getKey(), 19),
+						group.jobs, group.ready.size(), group.failed));
+
+				for (double p : PERCENTILES)
+				{
+					out.print(String.format("%9s", format(group.ready, p)));
+				}
+				out.print("  |");
+				for (String phase[] : PHASES)
+				{
+					out.print(String.format("%10s", 
+							format(group.phases.get(phase[0]), 50)));
+				}
+				out.println(String.format("%10s", format(group.megabytes, 50)));
+			}
+		}
+	}
+
+	/**
+	 * Format a percentile of a list of millisecond values as seconds. 
+	 */
+	private static String format(List<Long> values, double p)
+	{
+		if (values.isEmpty())
+			return "-";
+
+		long sorted[] = new long[values.size()];
+		for (int i = 0; i < sorted.length; i++)
+		{
+			sorted[i] = values.get(i);
+		}
+		Arrays.sort(sorted);
+
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		long value = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+
+		return String.format("%.1f", value / 1000.0);
+	}
+
+	private static class Row
+	{
+		private final Map<String, Integer> columns;
+
+		private final String values[];
+
+		private Row(Map<String, Integer> columns, String values[])
+		{
+			this.columns = columns;
+			this.values = values;
+		}
+
+		private String get(String column)
+		{
+			Integer i = columns.get(column);
+
+			return (i != null) ? values[i] : null;
+		}
+
+		private long getTime(String column)
+		{
+			return NumberUtils.toLong(get(column), 0);
+		}
+
+		private int getStatus()
+		{
+			return NumberUtils.toInt(get("status"));
+		}
+
+	}
+
+	private static class Group
+	{
+		private int jobs;
+
+		private int failed;
+
+		private final List<Long> ready = new ArrayList<Long>();
+
+		private final List<Long> megabytes = new ArrayList<Long>();
+
+		private final Map<String, List<Long>> phases = new HashMap<String, List<Long>>();
+
+		private Group()
+		{
+			for (String phase[] : PHASES)
+			{
+				phases.put(phase[0], new ArrayList<Long>());
+			}
+		}
+
+		private void add(Row row, long start)
+		{
+			jobs++;
+
+			if (row.getStatus() != Job.RSNA_WAITING_FOR_TRANSFER_CONTENT)
+			{
+				failed++;
+
+				return;
+			}
+
+			long handoff = row.getTime("handoff");
+			if (start > 0 && handoff > 0)
+				ready.add(handoff - start);
+
+			// Megabytes are scaled so format() shows them as-is
+			megabytes.add(NumberUtils.toLong(row.get("bytes")) / 1000);
+
+			for (String phase[] : PHASES)
+			{
+				long from = row.getTime(phase[1]);
+				long to = row.getTime(phase[2]);
+				if (from > 0 && to >= from)
+					phases.get(phase[0]).add(to - from);
+			}
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.err.println("Usage: JobTimelineReport <timeline file> [<timeline file> ...]");
+
+			System.exit(1);
+		}
+
+		JobTimelineReport report = new JobTimelineReport();
+		for (String path : args)
+		{
+			report.load(path);
+		}
+
+		report.summarize();
+		report.print(System.out);
+	}
+
+}
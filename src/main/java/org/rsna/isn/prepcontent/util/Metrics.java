@@ -0,0 +1,706 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of application metrics.  Every metric is registered as an MBean 
+ * under the org.rsna.isn.prepcontent domain and can also be served in the 
+ * Prometheus text format (see {@link #startHttp(String, int)}). 
+ * <p>
+ * Metrics are identified by a name and optional label name/value pairs 
+ * (e.g. "device", "PACS1").  The factory methods return the existing metric
+ * if one is already registered, so callers don't need to keep references. 
+ * Durations are in milliseconds.
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class Metrics
+{
+	private static final Logger logger = Logger.getLogger(Metrics.class);
+
+	public static final String DOMAIN = "org.rsna.isn.prepcontent";
+
+	private static final String PREFIX = "prepcontent_";
+
+	private static final Map<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	private static HttpServer server;
+
+	private Metrics()
+	{
+	}
+
+	/**
+	 * Get a counter.
+	 *
+	 * @param name The name of the counter
+	 * @param help A description of the counter
+	 * @param labels Label name/value pairs
+	 * @return The counter
+	 */
+	public static Counter counter(String name, String help, String... labels)
+	{
+		Metric metric = metrics.get(key(name, labels));
+		if (metric == null)
+			metric = add(new Counter(name, help, labels));
+
+		return (Counter) metric;
+	}
+
+	/**
+	 * Get a histogram.
+	 *
+	 * @param name The name of the histogram
+	 * @param help A description of the histogram
+	 * @param labels Label name/value pairs
+	 * @return The histogram
+	 */
+	public static Histogram histogram(String name, String help, String... labels)
+	{
+		Metric metric = metrics.get(key(name, labels));
+		if (metric == null)
+			metric = add(new Histogram(name, help, labels));
+
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Get a gauge whose value is set by the caller.
+	 *
+	 * @param name The name of the gauge
+	 * @param help A description of the gauge
+	 * @param labels Label name/value pairs
+	 * @return The gauge
+	 */
+	public static Gauge gauge(String name, String help, String... labels)
+	{
+		Metric metric = metrics.get(key(name, labels));
+		if (metric == null)
+			metric = add(new Gauge(name, help, labels));
+
+		return (Gauge) metric;
+	}
+
+	/**
+	 * Register a gauge that computes its own value.  A gauge that's already
+	 * registered under the same name and labels is replaced. 
+	 *
+	 * @param gauge The gauge
+	 */
+	public static void register(Gauge gauge)
+	{
+		Metric old = metrics.remove(gauge.key);
+		if (old != null)
+			unregister(old);
+
+		add(gauge);
+	}
+
+	/**
+	 * Get the histogram used for database call latency.
+	 *
+	 * @param call The name of the DAO method
+	 * @return The histogram
+	 */
+	public static Histogram db(String call)
+	{
+		return histogram("db_call_duration_ms", 
+				"Duration of database calls", "call", call);
+	}
+
+	/**
+	 * Serve the metrics in the Prometheus text format at /metrics on the 
+	 * given address and port.  The endpoint isn't authenticated, so it 
+	 * should only be bound to a non-loopback address if the port is 
+	 * firewalled. 
+	 *
+	 * @param host The address to bind to (e.g. localhost or 0.0.0.0)
+	 * @param port The port.  Values less than 1 disable the endpoint. 
+	 * @throws IOException If the port couldn't be opened
+	 */
+	public static synchronized void startHttp(String host, int port) throws IOException
+	{
+		if (server != null || port < 1)
+			return;
+
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", new PrometheusHandler());
+		server.setExecutor(Executors.newSingleThreadExecutor(new MetricsThreadFactory()));
+		server.start();
+
+		logger.info("Serving metrics on http://" + host + ":" + port + "/metrics");
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format.
+	 *
+	 * @param sb Where to write the metrics
+	 */
+	static void writePrometheus(StringBuilder sb)
+	{
+		List<Metric> sorted = new ArrayList<Metric>(metrics.values());
+		Collections.sort(sorted, new Comparator<Metric>()
+		{
+			@Override
+			public int compare(Metric o1, Metric o2)
+			{
+				return o1.key.compareTo(o2.key);
+			}
+
+		});
+
+		String last = null;
+		for (Metric metric : sorted)
+		{
+			String name = PREFIX + metric.name;
+			if (!name.equals(last))
+			{
+				sb.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+				sb.append("# TYPE ").append(name).append(' ').append(metric.getType()).append('\n');
+
+				last = name;
+			}
+
+			metric.write(name, sb);
+		}
+	}
+
+	private static String key(String name, String labels[])
+	{
+		StringBuilder sb = new StringBuilder(name);
+		for (String label : labels)
+		{
+			sb.append('|').append(label);
+		}
+
+		return sb.toString();
+	}
+
+	private static synchronized Metric add(Metric metric)
+	{
+		Metric existing = metrics.get(metric.key);
+		if (existing != null)
+			return existing;
+
+		metrics.put(metric.key, metric);
+
+		try
+		{
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			mbs.registerMBean(metric.createMBean(), metric.getObjectName());
+		}
+		catch (JMException ex)
+		{
+			logger.warn("Unable to register MBean for metric " + metric.key, ex);
+		}
+
+		return metric;
+	}
+
+	private static void unregister(Metric metric)
+	{
+		try
+		{
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			mbs.unregisterMBean(metric.getObjectName());
+		}
+		catch (JMException ex)
+		{
+			logger.debug("Unable to unregister MBean for metric " + metric.key, ex);
+		}
+	}
+
+	/**
+	 * Base class of all metrics
+	 */
+	static abstract class Metric
+	{
+		final String name;
+
+		final String help;
+
+		final String labels[];
+
+		final String key;
+
+		Metric(String name, String help, String labels[])
+		{
+			if (labels.length % 2 != 0)
+				throw new IllegalArgumentException("Labels must be name/value pairs");
+
+			this.name = name;
+			this.help = help;
+			this.labels = labels.clone();
+			this.key = key(name, labels);
+		}
+
+		ObjectName getObjectName() throws JMException
+		{
+			StringBuilder sb = new StringBuilder(DOMAIN);
+			sb.append(":type=Metrics,name=").append(name);
+			for (int i = 0; i < labels.length; i += 2)
+			{
+				sb.append(',').append(labels[i]).append('=')
+						.append(ObjectName.quote(String.valueOf(labels[i + 1])));
+			}
+
+			return new ObjectName(sb.toString());
+		}
+
+		/**
+		 * Format the labels, plus an optional extra label.
+		 */
+		String formatLabels(String extraName, String extraValue)
+		{
+			if (labels.length == 0 && extraName == null)
+				return "";
+
+			StringBuilder sb = new StringBuilder("{");
+			for (int i = 0; i < labels.length; i += 2)
+			{
+				if (i > 0)
+					sb.append(',');
+
+				sb.append(labels[i]).append("=\"")
+						.append(escape(labels[i + 1])).append('"');
+			}
+
+			if (extraName != null)
+			{
+				if (labels.length > 0)
+					sb.append(',');
+
+				sb.append(extraName).append("=\"").append(extraValue).append('"');
+			}
+
+			return sb.append('}').toString();
+		}
+
+		abstract String getType();
+
+		abstract void write(String name, StringBuilder sb);
+
+		abstract StandardMBean createMBean() throws JMException;
+
+		private static String escape(String value)
+		{
+			return String.valueOf(value).replace("\\", "\\\\")
+					.replace("\"", "\\\"").replace("\n", "\\n");
+		}
+
+	}
+
+	public interface CounterMBean
+	{
+		long getCount();
+
+		double getOneMinuteRate();
+
+	}
+
+	/**
+	 * A count that only goes up, e.g. the number of objects received.  The 
+	 * MBean also shows the per second rate, averaged (exponentially 
+	 * weighted) over the last minute. 
+	 */
+	public static class Counter extends Metric implements CounterMBean
+	{
+		private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+
+		private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong uncounted = new AtomicLong();
+
+		private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+
+		private volatile double rate = -1;
+
+		private Counter(String name, String help, String labels[])
+		{
+			super(name, help, labels);
+		}
+
+		public void inc()
+		{
+			add(1);
+		}
+
+		public void add(long n)
+		{
+			tick();
+
+			count.addAndGet(n);
+			uncounted.addAndGet(n);
+		}
+
+		@Override
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		@Override
+		public double getOneMinuteRate()
+		{
+			tick();
+
+			return Math.max(0, rate);
+		}
+
+		private void tick()
+		{
+			long old = lastTick.get();
+			long now = System.nanoTime();
+			long age = now - old;
+			if (age < TICK || !lastTick.compareAndSet(old, now - age % TICK))
+				return;
+
+			for (long i = age / TICK; i > 0; i--)
+			{
+				double instant = uncounted.getAndSet(0) / 5.0;
+
+				rate = (rate < 0) ? instant : rate + ALPHA * (instant - rate);
+			}
+		}
+
+		@Override
+		String getType()
+		{
+			return "counter";
+		}
+
+		@Override
+		void write(String name, StringBuilder sb)
+		{
+			sb.append(name).append(formatLabels(null, null))
+					.append(' ').append(count.get()).append('\n');
+		}
+
+		@Override
+		StandardMBean createMBean() throws JMException
+		{
+			return new StandardMBean(this, CounterMBean.class);
+		}
+
+	}
+
+	public interface HistogramMBean
+	{
+		long getCount();
+
+		double getMean();
+
+		long getMax();
+
+		double get50thPercentile();
+
+		double get95thPercentile();
+
+		double get99thPercentile();
+
+	}
+
+	/**
+	 * Distribution of durations (in milliseconds).  Values are counted in 
+	 * fixed buckets, so percentiles are estimates. 
+	 */
+	public static class Histogram extends Metric implements HistogramMBean
+	{
+		private static final long BUCKETS[] =
+		{
+			1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 
+			30000, 60000, 300000, 600000
+		};
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong sum = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		private Histogram(String name, String help, String labels[])
+		{
+			super(name, help, labels);
+		}
+
+		/**
+		 * Record a value.
+		 *
+		 * @param value The value
+		 */
+		public void update(long value)
+		{
+			int i = 0;
+			while (i < BUCKETS.length && value > BUCKETS[i])
+			{
+				i++;
+			}
+
+			counts.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(value);
+
+			long current;
+			while (value > (current = max.get()))
+			{
+				if (max.compareAndSet(current, value))
+					break;
+			}
+		}
+
+		/**
+		 * Record the time elapsed since the given start time.
+		 *
+		 * @param start The start time in milliseconds (as returned by
+		 * System.currentTimeMillis)
+		 */
+		public void updateSince(long start)
+		{
+			update(System.currentTimeMillis() - start);
+		}
+
+		@Override
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		@Override
+		public double getMean()
+		{
+			long n = count.get();
+
+			return (n > 0) ? (double) sum.get() / n : 0;
+		}
+
+		@Override
+		public long getMax()
+		{
+			return max.get();
+		}
+
+		@Override
+		public double get50thPercentile()
+		{
+			return getPercentile(0.50);
+		}
+
+		@Override
+		public double get95thPercentile()
+		{
+			return getPercentile(0.95);
+		}
+
+		@Override
+		public double get99thPercentile()
+		{
+			return getPercentile(0.99);
+		}
+
+		/**
+		 * Estimate a percentile by interpolating within the bucket that 
+		 * contains it. 
+		 */
+		private double getPercentile(double p)
+		{
+			long n = count.get();
+			if (n == 0)
+				return 0;
+
+			double rank = p * n;
+			long seen = 0;
+			for (int i = 0; i < counts.length(); i++)
+			{
+				long c = counts.get(i);
+				if (seen + c >= rank && c > 0)
+				{
+					long lower = (i == 0) ? 0 : BUCKETS[i - 1];
+					long upper = (i < BUCKETS.length) ? BUCKETS[i] : max.get();
+
+					return lower + (upper - lower) * ((rank - seen) / c);
+				}
+
+				seen += c;
+			}
+
+			return max.get();
+		}
+
+		@Override
+		String getType()
+		{
+			return "histogram";
+		}
+
+		@Override
+		void write(String name, StringBuilder sb)
+		{
+			long cumulative = 0;
+			for (int i = 0; i < counts.length(); i++)
+			{
+				cumulative += counts.get(i);
+
+				String le = (i < BUCKETS.length) ? Long.toString(BUCKETS[i]) : "+Inf";
+				sb.append(name).append("_bucket").append(formatLabels("le", le))
+						.append(' ').append(cumulative).append('\n');
+			}
+
+			String labels = formatLabels(null, null);
+			sb.append(name).append("_sum").append(labels)
+					.append(' ').append(sum.get()).append('\n');
+			sb.append(name).append("_count").append(labels)
+					.append(' ').append(cumulative).append('\n');
+		}
+
+		@Override
+		StandardMBean createMBean() throws JMException
+		{
+			return new StandardMBean(this, HistogramMBean.class);
+		}
+
+	}
+
+	public interface GaugeMBean
+	{
+		long getValue();
+
+	}
+
+	/**
+	 * A value that can go up and down, e.g. a queue size.  The value is
+	 * either set by the caller or computed by a subclass. 
+	 */
+	public static class Gauge extends Metric implements GaugeMBean
+	{
+		private final AtomicLong value = new AtomicLong();
+
+		public Gauge(String name, String help, String... labels)
+		{
+			super(name, help, labels);
+		}
+
+		public void set(long value)
+		{
+			this.value.set(value);
+		}
+
+		@Override
+		public long getValue()
+		{
+			return value.get();
+		}
+
+		@Override
+		String getType()
+		{
+			return "gauge";
+		}
+
+		@Override
+		void write(String name, StringBuilder sb)
+		{
+			sb.append(name).append(formatLabels(null, null))
+					.append(' ').append(getValue()).append('\n');
+		}
+
+		@Override
+		StandardMBean createMBean() throws JMException
+		{
+			return new StandardMBean(this, GaugeMBean.class);
+		}
+
+	}
+
+	private static class PrometheusHandler implements HttpHandler
+	{
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try
+			{
+				StringBuilder sb = new StringBuilder();
+				writePrometheus(sb);
+
+				byte body[] = sb.toString().getBytes("UTF-8");
+
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+			finally
+			{
+				exchange.close();
+			}
+		}
+
+	}
+
+	private static class MetricsThreadFactory implements ThreadFactory
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "metrics-http");
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+	}
+
+}
@@ -0,0 +1,220 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+import org.rsna.isn.dao.Dao;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Data access used by the monitor loop and the progress comments.  JobDao 
+ * writes each status change in its own transaction, which adds up when 
+ * there are a lot of pending jobs.  This class writes status changes and 
+ * comments as one JDBC batch.  Jobs are still loaded with JobDao so they're
+ * filled in the same way everywhere.
+ * <p>
+ * The updates only touch the status columns of the jobs table.  If a status
+ * update fails the caller is expected to fall back to JobDao. 
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class MonitorDao extends Dao
+{
+	/**
+	 * Set while the monitor writes its own changes so the triggers in 
+	 * job-events.sql don't notify it about them
+	 */
+	private static final String MARK_MONITOR = "SET LOCAL prep_content.monitor = 'on'";
+
+	private static final String UPDATE_STATUS =
+			"UPDATE jobs SET status = ?, "
+			+ "status_message = COALESCE(?, status_message), "
+			+ "modified_date = now() WHERE job_id = ?";
+
+	private static final String UPDATE_COMMENTS =
+			"UPDATE jobs SET status_message = ?, modified_date = now() "
+			+ "WHERE job_id = ? AND status = ?";
+
+	private final boolean marked;
+
+	/**
+	 * @param marked True to mark the changes as coming from the monitor.  
+	 * Only set this if job events are enabled since the setting is specific
+	 * to PostgreSQL. 
+	 */
+	public MonitorDao(boolean marked)
+	{
+		this.marked = marked;
+	}
+
+	/**
+	 * Write a set of status changes in a single batch.  Either all of the 
+	 * changes are written or none of them are. 
+	 *
+	 * @param updates The status changes
+	 * @throws SQLException If there was an error updating the database
+	 */
+	public void updateStatus(List<StatusUpdate> updates) throws SQLException
+	{
+		if (updates.isEmpty())
+			return;
+
+		Connection con = getConnection();
+		try
+		{
+			con.setAutoCommit(false);
+
+			if (marked)
+			{
+				Statement mark = con.createStatement();
+				mark.execute(MARK_MONITOR);
+				mark.close();
+			}
+
+			PreparedStatement stmt = con.prepareStatement(UPDATE_STATUS);
+			for (StatusUpdate update : updates)
+			{
+				stmt.setInt(1, update.getStatus());
+
+				if (update.getComments() != null)
+					stmt.setString(2, update.getComments());
+				else
+					stmt.setNull(2, Types.VARCHAR);
+
+				stmt.setInt(3, update.getJob().getJobId());
+
+				stmt.addBatch();
+			}
+
+			stmt.executeBatch();
+
+			con.commit();
+		}
+		catch (SQLException ex)
+		{
+			con.rollback();
+
+			throw ex;
+		}
+		finally
+		{
+			con.setAutoCommit(true);
+
+			con.close();
+		}
+	}
+
+	/**
+	 * Write a set of comments in a single batch.  A job's comment is only 
+	 * written if the job still has the status given with the comment, so 
+	 * a comment that arrives late can't overwrite the comment or status of 
+	 * a job that has moved on. 
+	 *
+	 * @param updates The comments along with the status each job must have
+	 * @throws SQLException If there was an error updating the database
+	 */
+	public void updateComments(List<StatusUpdate> updates) throws SQLException
+	{
+		if (updates.isEmpty())
+			return;
+
+		Connection con = getConnection();
+		try
+		{
+			PreparedStatement stmt = con.prepareStatement(UPDATE_COMMENTS);
+			for (StatusUpdate update : updates)
+			{
+				stmt.setString(1, update.getComments());
+				stmt.setInt(2, update.getJob().getJobId());
+				stmt.setInt(3, update.getStatus());
+
+				stmt.addBatch();
+			}
+
+			stmt.executeBatch();
+		}
+		finally
+		{
+			con.close();
+		}
+	}
+
+	/**
+	 * A status change for a job. 
+	 */
+	public static class StatusUpdate
+	{
+		private final Job job;
+
+		private final int status;
+
+		private final String comments;
+
+		public StatusUpdate(Job job, int status, String comments)
+		{
+			this.job = job;
+			this.status = status;
+			this.comments = comments;
+		}
+
+		/**
+		 * Get the value of job
+		 *
+		 * @return the value of job
+		 */
+		public Job getJob()
+		{
+			return job;
+		}
+
+		/**
+		 * Get the value of status
+		 *
+		 * @return the value of status
+		 */
+		public int getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * Get the value of comments
+		 *
+		 * @return the value of comments
+		 */
+		public String getComments()
+		{
+			return comments;
+		}
+
+	}
+
+}
@@ -0,0 +1,131 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.util.List;
+import junit.framework.TestCase;
+import org.apache.commons.lang.time.DateUtils;
+import org.rsna.isn.prepcontent.WakeupScheduler.Type;
+import org.rsna.isn.prepcontent.WakeupScheduler.Wakeup;
+
+/**
+ * Tests for WakeupScheduler
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class WakeupSchedulerTest extends TestCase
+{
+	private static final long HOUR = DateUtils.MILLIS_PER_HOUR;
+
+	private WakeupScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		scheduler = new WakeupScheduler();
+
+		// Clear any signal left over from another test
+		JobEvents.await(0);
+	}
+
+	public void testDueWakeupIsReturnedOnce()
+	{
+		scheduler.schedule(1, Type.RETRY, System.currentTimeMillis() - 1);
+
+		List<Wakeup> due = scheduler.pollDue();
+		assertEquals(1, due.size());
+		assertEquals(1, due.get(0).getJobId());
+		assertEquals(Type.RETRY, due.get(0).getType());
+
+		assertTrue(scheduler.pollDue().isEmpty());
+		assertEquals(0, scheduler.size());
+	}
+
+	public void testLaterWakeupIsNotDue()
+	{
+		scheduler.schedule(1, Type.DELAY_EXPIRED, System.currentTimeMillis() + HOUR);
+
+		assertTrue(scheduler.pollDue().isEmpty());
+		assertEquals(1, scheduler.size());
+	}
+
+	public void testRescheduleReplacesQueuedWakeup()
+	{
+		long now = System.currentTimeMillis();
+		scheduler.schedule(1, Type.DELAY_EXPIRED, now + HOUR);
+		scheduler.schedule(1, Type.DELAY_EXPIRED, now + 2 * HOUR);
+
+		// The old wake up must not hold the head of the queue
+		assertTrue(scheduler.getNextDelay() > HOUR);
+		assertEquals(1, scheduler.size());
+	}
+
+	public void testReplacedWakeupIsNotDue()
+	{
+		long now = System.currentTimeMillis();
+		scheduler.schedule(1, Type.RETRY, now - 1);
+		scheduler.schedule(1, Type.RETRY, now + HOUR);
+
+		assertTrue(scheduler.pollDue().isEmpty());
+		assertEquals(1, scheduler.size());
+	}
+
+	public void testCancel()
+	{
+		scheduler.schedule(1, Type.RETRY, System.currentTimeMillis() - 1);
+		scheduler.cancel(1);
+
+		assertTrue(scheduler.pollDue().isEmpty());
+		assertEquals(Long.MAX_VALUE, scheduler.getNextDelay());
+	}
+
+	public void testSignalOnlyWhenEarlierThanHead() throws Exception
+	{
+		long now = System.currentTimeMillis();
+
+		scheduler.schedule(1, Type.RETRY, now + HOUR);
+		assertTrue(JobEvents.await(0));
+
+		scheduler.schedule(2, Type.RETRY, now + 2 * HOUR);
+		assertFalse(JobEvents.await(0));
+
+		scheduler.schedule(3, Type.RETRY, now + HOUR / 2);
+		assertTrue(JobEvents.await(0));
+	}
+
+	public void testUnchangedWakeupIsNotRequeued() throws Exception
+	{
+		long time = System.currentTimeMillis() + HOUR;
+
+		scheduler.schedule(1, Type.DELAY_EXPIRED, time);
+		assertTrue(JobEvents.await(0));
+
+		scheduler.schedule(1, Type.DELAY_EXPIRED, time);
+		assertFalse(JobEvents.await(0));
+		assertEquals(1, scheduler.size());
+	}
+
+}
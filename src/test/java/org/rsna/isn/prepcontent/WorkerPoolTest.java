@@ -0,0 +1,330 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import junit.framework.TestCase;
+import org.rsna.isn.domain.Device;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+import org.rsna.isn.prepcontent.WorkerPool.Priority;
+import org.rsna.isn.prepcontent.WorkerPool.QueuedJob;
+
+/**
+ * Tests for the order in which WorkerPool runs jobs
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class WorkerPoolTest extends TestCase
+{
+	private static final int UNKNOWN = WorkerPool.UNKNOWN_SIZE;
+
+	public void testFewerFailuresFirst()
+	{
+		Priority failed = new Priority(1, 10, 1000, 0);
+		Priority fresh = new Priority(0, 5000, 2000, 1);
+
+		assertOrder(fresh, failed);
+	}
+
+	public void testSmallerStudiesFirst()
+	{
+		Priority small = new Priority(0, 10, 2000, 1);
+		Priority large = new Priority(0, 5000, 1000, 0);
+
+		assertOrder(small, large);
+	}
+
+	public void testUnknownSizeLast()
+	{
+		Priority unknown = new Priority(0, UNKNOWN, 1000, 0);
+		Priority large = new Priority(0, 5000, 2000, 1);
+
+		assertOrder(large, unknown);
+	}
+
+	public void testOlderExamsFirst()
+	{
+		Priority older = new Priority(0, UNKNOWN, 1000, 1);
+		Priority newer = new Priority(0, UNKNOWN, 2000, 0);
+
+		assertOrder(older, newer);
+	}
+
+	public void testSequenceBreaksTies()
+	{
+		Priority first = new Priority(0, 10, 1000, 0);
+		Priority second = new Priority(0, 10, 1000, 1);
+
+		assertOrder(first, second);
+		assertEquals(0, first.compareTo(new Priority(0, 10, 1000, 0)));
+	}
+
+	public void testOnlyFailuresAreCounted()
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1));
+		Job job = createJob(1);
+
+		// Being queued again (e.g. after a requeue) doesn't count as a failure
+		assertEquals(0, pool.prioritize(job).getFailures());
+		assertEquals(0, pool.prioritize(job).getFailures());
+
+		pool.recordFailure(job);
+		assertEquals(1, pool.prioritize(job).getFailures());
+	}
+
+	public void testZeroCountLeavesSizeUnknown()
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1));
+		Job unknown = createJob(1);
+		Job known = createJob(2);
+
+		pool.setStudySize(unknown, 0);
+		pool.setStudySize(known, 5000);
+
+		assertOrder(pool.prioritize(known), pool.prioritize(unknown));
+	}
+
+	public void testDevicesServedRoundRobin()
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(10));
+
+		Job a1 = submit(pool, 1, "A");
+		Job a2 = submit(pool, 2, "A");
+		Job a3 = submit(pool, 3, "A");
+		Job b1 = submit(pool, 4, "B");
+		Job c1 = submit(pool, 5, "C");
+
+		assertSame(a1, pool.poll().getJob());
+		assertSame(b1, pool.poll().getJob());
+		assertSame(c1, pool.poll().getJob());
+		assertSame(a2, pool.poll().getJob());
+		assertSame(a3, pool.poll().getJob());
+		assertNull(pool.poll());
+		assertEquals(0, pool.getQueueSize());
+	}
+
+	public void testBusyDeviceIsSkipped() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1));
+
+		Job slow1 = submit(pool, 1, "SLOW");
+		Job slow2 = submit(pool, 2, "SLOW");
+		Job fast = submit(pool, 3, "FAST");
+
+		QueuedJob first = pool.poll();
+		assertSame(slow1, first.getJob());
+		assertEquals("SLOW", first.getReserved());
+
+		// The only slot on SLOW is taken, so its second job has to wait
+		assertSame(fast, pool.poll().getJob());
+		assertNull(pool.poll());
+		assertEquals(1, pool.getQueueSize());
+
+		Device device = createDevice("SLOW");
+		assertTrue(pool.tryAcquire(slow1, device));
+		pool.release(device);
+
+		assertSame(slow2, pool.poll().getJob());
+	}
+
+	public void testReservationIsUsedOnce() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1));
+
+		Job job = submit(pool, 1, "A");
+		assertSame(job, pool.poll().getJob());
+
+		Device device = createDevice("A");
+		assertTrue(pool.tryAcquire(job, device));
+		assertFalse(pool.tryAcquire(job, device));
+
+		pool.release(device);
+		assertTrue(pool.tryAcquire(job, device));
+	}
+
+	public void testRequeuedJobWaitsForItsDevice() throws Exception
+	{
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1));
+
+		Job other = submit(pool, 1, "A");
+		assertSame(other, pool.poll().getJob());
+
+
+		// The device isn't known until the job has been queried
+		Job job = submit(pool, 2, null);
+		assertSame(job, pool.poll().getJob());
+
+		pool.setDevice(job, "A");
+		pool.requeue(job, null);
+
+		assertTrue(pool.isActive(job));
+		assertFalse(pool.submit(job));
+		assertNull(pool.poll());
+
+
+		Device device = createDevice("A");
+		assertTrue(pool.tryAcquire(other, device));
+		pool.release(device);
+
+		QueuedJob next = pool.poll();
+		assertSame(job, next.getJob());
+		assertEquals("A", next.getReserved());
+	}
+
+	public void testRequeueLaterWaitsForWakeup() throws Exception
+	{
+		WakeupScheduler scheduler = new WakeupScheduler();
+		WorkerPool pool = new WorkerPool(0, new FixedLimiter(1), scheduler, null);
+
+		Job job = submit(pool, 1, null);
+		assertSame(job, pool.poll().getJob());
+
+		assertEquals(1, pool.recordIncompleteFind(job));
+		assertEquals(2, pool.recordIncompleteFind(job));
+		pool.requeueLater(job, 0);
+
+		assertTrue(pool.isActive(job));
+		assertFalse(pool.submit(job));
+		assertNull(pool.poll());
+
+
+		List<WakeupScheduler.Wakeup> due = scheduler.pollDue();
+		assertEquals(1, due.size());
+		assertEquals(WakeupScheduler.Type.REQUEUE, due.get(0).getType());
+
+		assertTrue(pool.resume(job.getJobId()));
+		assertFalse(pool.resume(job.getJobId()));
+		assertSame(job, pool.poll().getJob());
+
+
+		pool.clearIncompleteFinds(job);
+		assertEquals(1, pool.recordIncompleteFind(job));
+	}
+
+	public void testStatsSurviveRestart() throws Exception
+	{
+		File file = File.createTempFile("worker-pool-stats", ".properties");
+		file.delete();
+		try
+		{
+			WorkerPool pool = new WorkerPool(0, new FixedLimiter(1), 
+					new WakeupScheduler(), file);
+
+			Job job = createJob(1);
+			pool.setStudySize(job, 100);
+			pool.setDevice(job, "A");
+			pool.recordFailure(job);
+			pool.shutdown(1000);
+
+			assertTrue(file.exists());
+
+
+			pool = new WorkerPool(0, new FixedLimiter(1), new WakeupScheduler(), file);
+
+			Priority priority = pool.prioritize(job);
+			assertEquals(1, priority.getFailures());
+			assertOrder(new Priority(1, 50, 0, 0), priority);
+
+			assertTrue(pool.submit(job));
+			assertEquals("A", pool.poll().getReserved());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	private static Job submit(WorkerPool pool, int jobId, String aeTitle)
+	{
+		Job job = createJob(jobId);
+		if (aeTitle != null)
+			pool.setDevice(job, aeTitle);
+
+		assertTrue(pool.submit(job));
+
+		return job;
+	}
+
+	private static Device createDevice(String aeTitle)
+	{
+		Device device = new Device();
+		device.setAeTitle(aeTitle);
+
+		return device;
+	}
+
+	private static void assertOrder(Priority first, Priority second)
+	{
+		assertTrue(first.compareTo(second) < 0);
+		assertTrue(second.compareTo(first) > 0);
+
+		List<Priority> list = new ArrayList<Priority>();
+		list.add(second);
+		list.add(first);
+		Collections.sort(list);
+
+		assertSame(first, list.get(0));
+	}
+
+	private static Job createJob(int jobId)
+	{
+		Exam exam = new Exam();
+		exam.setMrn("mrn");
+		exam.setAccNum("acc-" + jobId);
+		exam.setStatusTimestamp(new Date(1000));
+
+		Job job = new Job();
+		job.setJobId(jobId);
+		job.setExam(exam);
+
+		return job;
+	}
+
+	private static class FixedLimiter extends DeviceLimiter
+	{
+		private final int limit;
+
+		private FixedLimiter(int limit)
+		{
+			super(limit);
+
+			this.limit = limit;
+		}
+
+		@Override
+		int getLimit(String aeTitle)
+		{
+			return limit;
+		}
+
+	}
+
+}
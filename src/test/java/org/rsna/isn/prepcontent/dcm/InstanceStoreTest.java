@@ -0,0 +1,138 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for InstanceStore
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class InstanceStoreTest extends TestCase
+{
+	private File tmpDir;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		tmpDir = Files.createTempDirectory("instance-store-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	public void testLinkSharesData() throws Exception
+	{
+		InstanceStore store = new InstanceStore(new File(tmpDir, "store"), true, 1);
+
+		File stored = write(new File(tmpDir, "stored.dcm"), "abc");
+		File dest = new File(tmpDir, "dest.dcm");
+		store.link(stored, dest);
+
+		assertEquals("abc", FileUtils.readFileToString(dest));
+		assertTrue(Files.isSameFile(stored.toPath(), dest.toPath()));
+	}
+
+	public void testCopyWhenLinksDisabled() throws Exception
+	{
+		InstanceStore store = new InstanceStore(new File(tmpDir, "store"), false, 1);
+
+		File stored = write(new File(tmpDir, "stored.dcm"), "abc");
+		File dest = new File(tmpDir, "dest.dcm");
+		store.link(stored, dest);
+
+		assertEquals("abc", FileUtils.readFileToString(dest));
+		assertFalse(Files.isSameFile(stored.toPath(), dest.toPath()));
+
+
+		// Removing the stored object must not affect the copy
+		assertTrue(stored.delete());
+		assertEquals("abc", FileUtils.readFileToString(dest));
+	}
+
+	public void testLinkReplacesExistingFile() throws Exception
+	{
+		InstanceStore store = new InstanceStore(new File(tmpDir, "store"), true, 1);
+
+		File stored = write(new File(tmpDir, "stored.dcm"), "new");
+		File dest = write(new File(tmpDir, "dest.dcm"), "old");
+		store.link(stored, dest);
+
+		assertEquals("new", FileUtils.readFileToString(dest));
+	}
+
+	public void testPurgeOnlyRemovesExpiredObjects() throws Exception
+	{
+		File storeDir = new File(tmpDir, "store");
+		InstanceStore store = new InstanceStore(storeDir, true, 1);
+
+		File bucket = new File(storeDir, "0a");
+		bucket.mkdirs();
+
+		File expired = write(new File(bucket, "1.2.3.dcm"), "x");
+		expired.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+
+		File current = write(new File(bucket, "1.2.4.dcm"), "y");
+
+		assertEquals(1, store.purge());
+		assertFalse(expired.exists());
+		assertTrue(current.exists());
+	}
+
+	public void testPurgeKeepsLinkedCopies() throws Exception
+	{
+		File storeDir = new File(tmpDir, "store");
+		InstanceStore store = new InstanceStore(storeDir, true, 1);
+
+		File bucket = new File(storeDir, "0a");
+		bucket.mkdirs();
+
+		File stored = write(new File(bucket, "1.2.3.dcm"), "x");
+		File dest = new File(tmpDir, "dest.dcm");
+		store.link(stored, dest);
+
+		stored.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+
+		assertEquals(1, store.purge());
+		assertEquals("x", FileUtils.readFileToString(dest));
+	}
+
+	private static File write(File file, String data) throws IOException
+	{
+		FileUtils.writeStringToFile(file, data);
+
+		return file;
+	}
+
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.rsna.isn.domain.Exam;
+import org.rsna.isn.domain.Job;
+
+/**
+ * Tests for JobIndex
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class JobIndexTest extends TestCase
+{
+	private final List<Job> jobs = new ArrayList<Job>();
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		for (Job job : jobs)
+		{
+			JobIndex.remove(job);
+		}
+	}
+
+	public void testUnknownExam()
+	{
+		assertNull(JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	public void testDispatchedJobAloneIsNotEnough()
+	{
+		// A failed job for the same exam might exist in the database
+		JobIndex.add(createJob(1, "MRN1", "ACC1"));
+
+		assertNull(JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	public void testLoadedExamIsServedFromIndex()
+	{
+		Job started = createJob(1, "MRN1", "ACC1");
+		Job failed = createJob(2, "MRN1", "ACC1");
+		JobIndex.add(started);
+
+		JobIndex.addExam("MRN1", "ACC1", "1.2.3", Arrays.asList(started, failed));
+
+		assertEquals(Arrays.asList(started, failed), JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	public void testRemoveSendsExamBackToDatabase()
+	{
+		Job first = createJob(1, "MRN1", "ACC1");
+		Job second = createJob(2, "MRN1", "ACC1");
+		JobIndex.addExam("MRN1", "ACC1", "1.2.3", Arrays.asList(first, second));
+
+		JobIndex.remove(first);
+
+		assertNull(JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	public void testNewJobKeepsExamLoaded()
+	{
+		Job first = createJob(1, "MRN1", "ACC1");
+		JobIndex.addExam("MRN1", "ACC1", "1.2.3", Arrays.asList(first));
+
+		Job second = createJob(2, "MRN1", "ACC1");
+		JobIndex.add(second);
+
+		assertEquals(Arrays.asList(first, second), JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	public void testMatchByStudyUid()
+	{
+		Job job = createJob(1, "MRN1", "ACC1");
+		JobIndex.add(job);
+		JobIndex.addStudy(job, "1.2.3");
+
+		// E.g. the PACS returned a different accession number
+		assertEquals(Arrays.asList(job), JobIndex.get("MRN1", "OTHER", "1.2.3"));
+	}
+
+	public void testRemoveClearsStudies()
+	{
+		Job job = createJob(1, "MRN1", "ACC1");
+		JobIndex.addExam("MRN1", "ACC1", "1.2.3", Arrays.asList(job));
+
+		JobIndex.remove(job);
+
+		assertNull(JobIndex.get("MRN1", "OTHER", "1.2.3"));
+		assertNull(JobIndex.get("MRN1", "ACC1", "1.2.3"));
+	}
+
+	private Job createJob(int jobId, String mrn, String accNum)
+	{
+		Exam exam = new Exam();
+		exam.setMrn(mrn);
+		exam.setAccNum(accNum);
+
+		Job job = new Job();
+		job.setJobId(jobId);
+		job.setExam(exam);
+
+		jobs.add(job);
+
+		return job;
+	}
+
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.dcm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for StudyArrivals
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class StudyArrivalsTest extends TestCase
+{
+	private File tmpDir;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		tmpDir = Files.createTempDirectory("study-arrivals-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		StudyArrivals.unregister(tmpDir);
+
+		FileUtils.deleteDirectory(tmpDir);
+	}
+
+	public void testExistingObjectsAreCounted() throws Exception
+	{
+		touch(new File(tmpDir, "1.dcm"));
+		touch(new File(tmpDir, "2.dcm"));
+
+		StudyArrivals study = StudyArrivals.register(tmpDir);
+
+		assertEquals(2, study.getCount());
+	}
+
+	public void testArrivalIsCountedOnce() throws Exception
+	{
+		touch(new File(tmpDir, "1.dcm"));
+
+		StudyArrivals study = StudyArrivals.register(tmpDir);
+		StudyArrivals.arrived(tmpDir, "1.dcm");
+		StudyArrivals.arrived(tmpDir, "2.dcm");
+
+		assertEquals(2, study.getCount());
+	}
+
+	public void testArrivalWhileListingIsCounted() throws Exception
+	{
+		touch(new File(tmpDir, "1.dcm"));
+
+		// An object is saved right after the directory has been listed
+		File dir = new File(tmpDir.getPath())
+		{
+			@Override
+			public String[] list()
+			{
+				String list[] = super.list();
+
+				try
+				{
+					touch(new File(this, "2.dcm"));
+				}
+				catch (IOException ex)
+				{
+					throw new RuntimeException(ex);
+				}
+				StudyArrivals.arrived(this, "2.dcm");
+
+				return list;
+			}
+
+		};
+
+		StudyArrivals study = StudyArrivals.register(dir);
+
+		assertEquals(2, study.getCount());
+	}
+
+	public void testAwaitChange() throws Exception
+	{
+		final StudyArrivals study = StudyArrivals.register(tmpDir);
+
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				StudyArrivals.arrived(tmpDir, "1.dcm");
+			}
+
+		};
+		thread.start();
+
+		assertEquals(1, study.awaitChange(0, 10 * 1000));
+
+		thread.join();
+	}
+
+	public void testUntrackedDirectoryIsIgnored() throws Exception
+	{
+		StudyArrivals study = StudyArrivals.register(tmpDir);
+		StudyArrivals.unregister(tmpDir);
+
+		StudyArrivals.arrived(tmpDir, "1.dcm");
+
+		assertEquals(0, study.getCount());
+	}
+
+	private static void touch(File file) throws IOException
+	{
+		FileUtils.writeStringToFile(file, "abc");
+	}
+
+}
@@ -0,0 +1,198 @@
+/* Copyright (c) <2026>, <Radiological Society of North America>
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * Neither the name of the <RSNA> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY
+ * OF SUCH DAMAGE.
+ */
+package org.rsna.isn.prepcontent.util;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.rsna.isn.dao.ConfigurationDao;
+
+/**
+ * Tests for ConfigCache
+ *
+ * @author agent
+ * @since 5.0.0
+ * @version 5.0.0
+ */
+public class ConfigCacheTest extends TestCase
+{
+	private final FakeDao fake = new FakeDao();
+
+	private ConfigurationDao original;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		original = ConfigCache.dao;
+		ConfigCache.dao = fake;
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		ConfigCache.stop();
+		ConfigCache.dao = original;
+	}
+
+	public void testUncachedUntilStarted() throws Exception
+	{
+		fake.values.put("a", "1");
+
+		assertEquals("1", ConfigCache.getString("a"));
+		assertEquals("1", ConfigCache.getString("a"));
+		assertEquals(2, fake.calls.size());
+	}
+
+	public void testCachedAfterStart() throws Exception
+	{
+		fake.values.put("a", "1");
+		ConfigCache.start(60 * 1000);
+
+		assertEquals(1, ConfigCache.getInt("a", 0));
+		fake.values.put("a", "2");
+		assertEquals(1, ConfigCache.getInt("a", 0));
+		assertEquals(1, fake.calls.size());
+	}
+
+	public void testDefaults() throws Exception
+	{
+		fake.values.put("b", "maybe");
+
+		assertEquals("x", ConfigCache.getString("missing", "x"));
+		assertEquals(7, ConfigCache.getInt("missing", 7));
+		assertTrue(ConfigCache.getBoolean("b", true));
+		fake.values.put("b", "FALSE");
+		assertFalse(ConfigCache.getBoolean("b", true));
+	}
+
+	public void testRefreshNotifiesListeners() throws Exception
+	{
+		fake.values.put("a", "1");
+		ConfigCache.start(60 * 1000);
+		ConfigCache.getString("a");
+
+		final List<String> changes = new CopyOnWriteArrayList<String>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		ConfigCache.Listener listener = new ConfigCache.Listener()
+		{
+			@Override
+			public void configurationChanged(String key, String oldValue, String newValue)
+			{
+				changes.add(key + ":" + oldValue + "->" + newValue);
+				latch.countDown();
+			}
+
+		};
+
+		ConfigCache.addListener(listener);
+		try
+		{
+			fake.values.put("a", "2");
+			ConfigCache.refresh();
+
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals("[a:1->2]", changes.toString());
+			assertEquals("2", ConfigCache.getString("a"));
+		}
+		finally
+		{
+			ConfigCache.removeListener(listener);
+		}
+	}
+
+	public void testRefreshContinuesAfterFailure() throws Exception
+	{
+		ConfigCache.start(60 * 1000);
+		for (int i = 0; i < 10; i++)
+		{
+			fake.values.put("key" + i, "old");
+			ConfigCache.getString("key" + i);
+		}
+
+		final CountDownLatch latch = new CountDownLatch(9);
+		ConfigCache.Listener listener = new ConfigCache.Listener()
+		{
+			@Override
+			public void configurationChanged(String key, String oldValue, String newValue)
+			{
+				latch.countDown();
+			}
+
+		};
+
+		// Whichever order the keys are reloaded in, one failing key must 
+		// not stop the others from being reloaded
+		fake.failing.add("key3");
+		for (int i = 0; i < 10; i++)
+		{
+			fake.values.put("key" + i, "new");
+		}
+
+		ConfigCache.addListener(listener);
+		try
+		{
+			ConfigCache.refresh();
+
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 10; i++)
+			{
+				String expected = (i == 3) ? "old" : "new";
+				assertEquals(expected, ConfigCache.getString("key" + i));
+			}
+		}
+		finally
+		{
+			ConfigCache.removeListener(listener);
+		}
+	}
+
+	private static class FakeDao extends ConfigurationDao
+	{
+		private final Map<String, String> values = new HashMap<String, String>();
+
+		private final List<String> calls = new CopyOnWriteArrayList<String>();
+
+		private final Set<String> failing = new HashSet<String>();
+
+		@Override
+		public synchronized String getConfiguration(String key) throws SQLException
+		{
+			calls.add(key);
+
+			if (failing.contains(key))
+				throw new SQLException("Unable to load " + key);
+
+			return values.get(key);
+		}
+
+	}
+
+}